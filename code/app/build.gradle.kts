@@ -60,6 +60,15 @@ android {
             ))
         }
     }
+
+    testOptions {
+        unitTests.all {
+            // Benchmarks only run when asked for, e.g. ./gradlew testDebugUnitTest -Pbenchmarks
+            if (!project.hasProperty("benchmarks")) {
+                it.exclude("**/*Benchmark.class")
+            }
+        }
+    }
 }
 
 dependencies {
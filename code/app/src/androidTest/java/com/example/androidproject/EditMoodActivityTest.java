@@ -77,7 +77,8 @@ public class EditMoodActivityTest {
         mood.setUser("user1");
         mood.setReason("Test not working");
 
-        moodsRef.document(mood.getId()).set(mood);
+        // Written in the stored mood format rather than as a bean
+        moodsRef.document(mood.getId()).set(MoodStateCodec.encode(mood));
     }
 
     /**
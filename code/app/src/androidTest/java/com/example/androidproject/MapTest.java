@@ -15,8 +15,6 @@ import static org.junit.Assert.assertFalse;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.location.Location;
-import android.location.LocationManager;
 import android.util.Log;
 
 import androidx.test.core.app.ActivityScenario;
@@ -85,13 +83,8 @@ public class MapTest {
         mood.setUser("TestPostUser");
         mood.setVisibility(Boolean.TRUE);
         mood.setReason("THIS TEXT IS FILLER");
-        Location location = new Location(LocationManager.GPS_PROVIDER);
         // Sets location info
-        location.setMslAltitudeAccuracyMeters(0);
-        location.setMslAltitudeMeters(0);
-        location.setLatitude(30.9);
-        location.setLongitude(40.5);
-        mood.setLocation(location);
+        mood.setLocation(new GeoCoordinate(30.9, 40.5));
         // Adds the mood
         db.addMood(mood);
     }
@@ -170,7 +163,7 @@ public class MapTest {
         // Subtracts 2 weeks from the mood
         mood.setDayTime(mood.getDayTime().minusWeeks(2));
         // Updates the document in firestore
-        FirebaseFirestore.getInstance().collection("Moods").document(mood.getId()).set(mood);
+        FirebaseFirestore.getInstance().collection("Moods").document(mood.getId()).set(MoodStateCodec.encode(mood));
         // Opens the map activity
         Intent intent = new Intent(ApplicationProvider.getApplicationContext(), LocationMapActivity.class);
         intent.putExtra("currentUser", "TestPostUser");
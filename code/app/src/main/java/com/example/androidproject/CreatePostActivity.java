@@ -27,11 +27,7 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.cardview.widget.CardView;
 
-import com.google.firebase.firestore.CollectionReference;
-import com.google.firebase.firestore.FirebaseFirestore;
-
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 
 
@@ -139,13 +135,9 @@ public class CreatePostActivity extends AppCompatActivity {
                     @Override
                     public void onActivityResult(Uri uri) {
                         // End of citation
+                        // Large images are shrunk by ImageProcessor when the mood is posted
                         chosenImage = uri;
 
-                        if (!isImageSizeValid(chosenImage)) {
-                            chosenImage = null;
-                            return;
-                        }
-
                         imagePreviewCard.setVisibility(View.VISIBLE);
                         imagePreview.setImageURI(chosenImage);
                         if (uri != null) {
@@ -156,15 +148,7 @@ public class CreatePostActivity extends AppCompatActivity {
                     }
                 });
         //Adds all the moods for the dropdowns
-        ArrayList<String> moodList = new ArrayList<>();
-        moodList.add("Anger");
-        moodList.add("Confusion");
-        moodList.add("Disgust");
-        moodList.add("Fear");
-        moodList.add("Happiness");
-        moodList.add("Sadness");
-        moodList.add("Shame");
-        moodList.add("Surprise");
+        List<MoodType> moodList = MoodType.all();
         // Sets the adapter for the list
         dropdownAdapter = new MoodSelectionAdapter(this, moodList);
         dropdownList.setAdapter(dropdownAdapter);
@@ -200,7 +184,7 @@ public class CreatePostActivity extends AppCompatActivity {
              */
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                chosenMood = moodList.get(position);
+                chosenMood = moodList.get(position).getLabel();
                 dropdownStatus = Boolean.FALSE;
                 dropdownList.setVisibility(View.GONE);
                 moodDropdown.setText(chosenMood);
@@ -391,7 +375,7 @@ public class CreatePostActivity extends AppCompatActivity {
                     }
                     // Sets the location
                     if (moodLocation != null) {
-                        newMood.setLocation(moodLocation);
+                        newMood.setLocation(GeoCoordinate.fromLocation(moodLocation));
                     }
                     // Sets the post to public if public is chosen
                     if (publicButton.isChecked()) {
@@ -402,14 +386,9 @@ public class CreatePostActivity extends AppCompatActivity {
                     }
                     // Sets the username
                     newMood.setUser(user);
-                    // Adds mood to database
-                    Database.getInstance().addMood(newMood);
-                    // Adds images to database
-                    if (chosenImage != null) {
-                        Database.getInstance().addImage(chosenImage, "images/" + newMood.getId(), getContentResolver());
-                        CollectionReference moodCol = FirebaseFirestore.getInstance().collection("Moods");
-                        moodCol.document(newMood.getId()).update("image", Uri.parse("images/" + newMood.getId()));
-                    }
+                    // Adds the mood and its image to the database, the mood is written once with the image path
+                    Database.getInstance().createMood(newMood, chosenImage, getContentResolver())
+                            .addOnFailureListener(e -> Log.e("CreatePostActivity", "Mood " + newMood.getId() + " was not stored", e));
                     finish();
                 }
             }
@@ -429,34 +408,6 @@ public class CreatePostActivity extends AppCompatActivity {
 
     }
 
-    /**
-     * Checks if an image is too large for the database
-     * @param chosenImage
-     *      path to image in phone
-     * @return
-     *      boolean of if it is too big
-     */
-    private boolean isImageSizeValid(Uri chosenImage) {
-        try {
-            // Opens the image input stream
-            InputStream inputStream = getContentResolver().openInputStream(chosenImage);
-            int imageSize = inputStream.available();
-            inputStream.close();
-            // Checks if the image is too large
-            if (imageSize >= 65536) {
-                Toast.makeText(this, "Image size exceeds 64KB limit. Please select a smaller image.",
-                        Toast.LENGTH_LONG).show();
-                return false;
-            }
-            return true;
-        } catch (IOException e) {
-            // Shows an error if checking image size goes wrong
-            Toast.makeText(this, "Error checking image size: " + e.getMessage(),
-                    Toast.LENGTH_SHORT).show();
-            return false;
-        }
-    }
-
     /**
      * Displays the address of the location after selecting it
      * @param location
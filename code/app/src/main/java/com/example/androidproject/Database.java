@@ -2,21 +2,39 @@ package com.example.androidproject;
 
 import android.content.ContentResolver;
 import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreSettings;
+import com.google.firebase.firestore.PersistentCacheSettings;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
 import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.StorageReference;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Creates a database class to allow interacting with the database
  */
 public class Database {
+    private static final String TAG = "Database";
+    // Size of the on disk Firestore cache, big enough to hold the moods and users a device reads
+    public static final long CACHE_SIZE_BYTES = 64L * 1024 * 1024;
+
+    // Reads served from the cache and from the server, counted per call site
+    private static final HashMap<String, int[]> readCounts = new HashMap<>();
+
     private FirebaseFirestore database;
     private static Database dbInstance; // Used to make sure there is only a singular instance of the database throughout all classes
     private CollectionReference moods;
@@ -36,6 +54,26 @@ public class Database {
         comments = database.collection("Comments");
     }
 
+    /**
+     * Sets up the persistent Firestore cache.
+     * Has to run before anything else uses Firestore, so it is called when the app starts.
+     * @param cacheSizeBytes
+     *      the most disk space the cache may use
+     */
+    public static void configureCache(long cacheSizeBytes) {
+        FirebaseFirestoreSettings settings = new FirebaseFirestoreSettings.Builder()
+                .setLocalCacheSettings(PersistentCacheSettings.newBuilder()
+                        .setSizeBytes(cacheSizeBytes)
+                        .build())
+                .build();
+        try {
+            FirebaseFirestore.getInstance().setFirestoreSettings(settings);
+        } catch (IllegalStateException e) {
+            // Firestore was already used, it keeps the settings it started with
+            Log.w(TAG, "Firestore cache settings could not be applied", e);
+        }
+    }
+
     /**
      * Creates an instance of the dataBase if it does not exists.
      * Otherwise returns the existing instance of it.
@@ -58,53 +96,204 @@ public class Database {
     }
 
     /**
-     * Allows a user to add moods to the database
+     * Reserves a document id for a new mood, so its image can be stored under it before the
+     * mood is written
+     * @return
+     *      a new unique mood id
+     */
+    public String newMoodId() {
+        return moods.document().getId();
+    }
+
+    /**
+     * Creates a mood together with its image.
+     * The mood is queued with the path its image will have before the image is touched, so the post
+     * is kept even if the app is killed while the image is shrunk. The picked image is queued in the
+     * WriteOutbox too, which shrinks it and uploads every variant in the background. The mood is
+     * still written once, but only after its image is stored, so no one sees an image that is not
+     * there. If the image fails the mood is written without it.
+     * @param mood
+     *      the mood to create, gets a new id
+     * @param image
+     *      where to find the image on the phone, or null for a mood without one
+     * @param resolver
+     *      content resolver to read the image
+     * @return
+     *      a Task that succeeds once the mood and its image are both stored
+     */
+    public Task<Void> createMood(MoodState mood, Uri image, ContentResolver resolver) {
+        mood.setId(newMoodId());
+        if (image == null) {
+            return addMood(mood);
+        }
+        String moodId = mood.getId();
+        WriteOutbox outbox = WriteOutbox.getInstance();
+        if (outbox == null) {
+            return addImage(image, moodId, resolver).continueWithTask(upload -> {
+                if (!upload.isSuccessful()) {
+                    Log.w(TAG, "Image of " + moodId + " failed, posting the mood without it", upload.getException());
+                    return addMood(mood).continueWithTask(added -> Tasks.<Void>forException(upload.getException()));
+                }
+                mood.setImage(Uri.parse(ImageVariant.FULL.path(moodId)));
+                return addMood(mood);
+            });
+        }
+        mood.setImage(Uri.parse(ImageVariant.FULL.path(moodId)));
+        ArrayList<String> imageTargets = new ArrayList<>();
+        imageTargets.add(WriteOutbox.imageTarget(moodId));
+        for (ImageVariant variant : ImageVariant.values()) {
+            imageTargets.add(variant.path(moodId));
+        }
+        // Listeners go first so no status change of the queued image or its variants is missed
+        ArrayList<Task<Void>> stored = new ArrayList<>();
+        for (String target : imageTargets) {
+            stored.add(outbox.whenDone(target));
+        }
+        stored.add(addMood(mood, imageTargets));
+        outbox.enqueueImage(image, moodId);
+        return Tasks.whenAll(stored);
+    }
+
+    /**
+     * Allows a user to add moods to the database.
+     * The mood is queued in the WriteOutbox, so it is kept if the phone is offline and sent
+     * with a single write once it is back online.
+     * @param mood
+     *      mood to be added, gets a new id if it does not have one yet
+     * @return
+     *      a Task that succeeds once the mood is stored in Firestore
+     */
+    public Task<Void> addMood(MoodState mood){
+        return addMood(mood, null);
+    }
+
+    /**
+     * Adds a mood whose image is queued in the WriteOutbox, see WriteOutbox.enqueueDocument
      * @param mood
-     *      mood to be added
+     *      mood to be added, gets a new id if it does not have one yet
+     * @param imageTargets
+     *      the outbox targets of its image, or null if it has none queued
+     * @return
+     *      a Task that succeeds once the mood is stored in Firestore
      */
-    public void addMood(MoodState mood){
-        DocumentReference newDoc = moods.document();
-        mood.setId(newDoc.getId());
-        newDoc.set(mood);
+    private Task<Void> addMood(MoodState mood, List<String> imageTargets) {
+        if (mood.getId() == null) {
+            mood.setId(newMoodId());
+        }
+        Map<String, Object> fields = MoodStateCodec.encode(mood);
+        // Shown from the local store straight away, the next sync stores the server copy
+        LocalMoodStore store = LocalMoodStore.getInstance();
+        if (store != null) {
+            store.save(mood);
+        }
+        FeedCache.invalidateAuthor(mood.getUser());
+        WriteOutbox outbox = WriteOutbox.getInstance();
+        if (outbox != null) {
+            // The outbox stamps updatedAt and fans out public moods once the write is stored
+            String path = moods.document(mood.getId()).getPath();
+            Task<Void> done = outbox.whenDone(path);
+            outbox.enqueueDocument(path, fields, true, imageTargets);
+            return done;
+        }
+        fields.put(MoodSyncEngine.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+        return moods.document(mood.getId()).set(fields).addOnSuccessListener(aVoid -> {
+            // Copy public moods into the follower inboxes
+            if (Boolean.TRUE.equals(mood.getVisibility())) {
+                new FeedInbox().fanOut(mood);
+            }
+        });
     }
 
     public void addFollowRequest(String requesterUsername){
     }
 
     /**
-     *  Adds an image to the database
+     *  Adds an image to the database, in every ImageVariant size
      * @param uri
      *      where to find image on phone
-     * @param id
-     *      id to store image under
+     * @param moodId
+     *      id of the mood to store image under
      * @param resolver
      *      content resolver to properly locate image
+     * @return
+     *      a Task that succeeds once every variant is stored
      */
-    public void addImage(Uri uri, String id, ContentResolver resolver){
-        try {
-            InputStream stream = resolver.openInputStream(uri);
-            int imageSize = stream.available();
-            stream.close();
+    public Task<Void> addImage(Uri uri, String moodId, ContentResolver resolver){
+        return ImageProcessor.process(resolver, uri)
+                .onSuccessTask(results -> uploadImages(results, moodId));
+    }
+
+    /**
+     * Uploads the encoded variants of an image, through the WriteOutbox when there is one
+     * @param variants
+     *      the encoded image of every variant
+     * @param moodId
+     *      id of the mood to store image under
+     * @return
+     *      a Task that succeeds once every variant is stored
+     */
+    public Task<Void> uploadImages(Map<ImageVariant, ImageProcessor.Result> variants, String moodId) {
+        ArrayList<Task<Void>> uploads = new ArrayList<>();
+        for (Map.Entry<ImageVariant, ImageProcessor.Result> variant : variants.entrySet()) {
+            uploads.add(uploadImage(variant.getValue().getBytes(), variant.getKey().path(moodId)));
+        }
+        // A replaced image gets new download URLs and files, including variants that fell back to the full one
+        Task<Void> uploaded = Tasks.whenAll(uploads);
+        uploaded.addOnCompleteListener(task -> invalidateImageCaches(moodId));
+        return uploaded;
+    }
 
-            if (imageSize >= 65536) {
-                throw new IllegalArgumentException("Image size exceeds 64KB limit");
+    /**
+     * Uploads one encoded image
+     */
+    private Task<Void> uploadImage(byte[] data, String path) {
+        WriteOutbox outbox = WriteOutbox.getInstance();
+        if (outbox != null) {
+            // Stored on the phone and uploaded in the background, retried until it is stored
+            Task<Void> done = outbox.whenDone(path);
+            outbox.enqueueUpload(data, path);
+            return done;
+        }
+        StorageReference newStorage = FirebaseStorage.getInstance().getReference().child(path);
+        return newStorage.putBytes(data).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
             }
+            return null;
+        });
+    }
 
-            // Gets the firebase instance
-            FirebaseStorage currentFirebase = FirebaseStorage.getInstance();
-            // Gets a child for the id
-            StorageReference newStorage = currentFirebase.getReference().child(id);
-            InputStream newSteam = null;
-            try {
-                // Gets a new stream to add
-                newSteam = resolver.openInputStream(uri);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
+    /**
+     * Deletes every variant of the image of a mood
+     * @param moodId
+     *      id of the mood the image is stored under
+     * @return
+     *      a Task that succeeds once the full image is deleted
+     */
+    public Task<Void> deleteImage(String moodId) {
+        invalidateImageCaches(moodId);
+        StorageReference root = FirebaseStorage.getInstance().getReference();
+        for (ImageVariant variant : ImageVariant.values()) {
+            if (variant != ImageVariant.FULL) {
+                // Images stored before there were variants do not have these
+                root.child(variant.path(moodId)).delete()
+                        .addOnFailureListener(e -> Log.d(TAG, "No " + variant + " image to delete for " + moodId));
             }
-            // Adds stream to storage
-            newStorage.putStream(newSteam);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        }
+        return root.child(ImageVariant.FULL.path(moodId)).delete();
+    }
+
+    /**
+     * Forgets the cached download URLs and image files of the image of a mood
+     */
+    private static void invalidateImageCaches(String moodId) {
+        StorageUrlCache cache = StorageUrlCache.getInstance();
+        if (cache != null) {
+            cache.invalidateImage(moodId);
+        }
+        MoodImageLoader loader = MoodImageLoader.peekInstance();
+        if (loader != null) {
+            loader.invalidateImage(moodId);
         }
     }
 
@@ -122,9 +311,133 @@ public class Database {
         Comment comment = new Comment(username,moodID,text);
         // Adds it to the database
         DocumentReference newDoc = comments.document();
+        WriteOutbox outbox = WriteOutbox.getInstance();
+        if (outbox != null) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("username", comment.getUsername());
+            fields.put("moodID", comment.getMoodID());
+            fields.put("text", comment.getText());
+            outbox.enqueueDocument(newDoc.getPath(), fields, false);
+            return;
+        }
         newDoc.set(comment);
     }
 
+    /**
+     * Reads a document with a read policy
+     * @param document
+     *      the document to read
+     * @param policy
+     *      where the read may be served from
+     * @param site
+     *      names the caller in the read metrics
+     * @return
+     *      a Task with the document
+     */
+    public Task<DocumentSnapshot> read(DocumentReference document, ReadPolicy policy, String site) {
+        if (policy != ReadPolicy.CACHE_FIRST) {
+            return countRead(site, document.get(policy.source));
+        }
+        return document.get(Source.CACHE).continueWithTask(cached -> {
+            if (cached.isSuccessful() && cached.getResult().exists()) {
+                countRead(site, cached);
+                // Refresh the cache so the next read is newer
+                document.get(Source.SERVER)
+                        .addOnFailureListener(e -> Log.w(TAG, "Background refresh failed for " + site, e));
+                return cached;
+            }
+            return countRead(site, document.get(Source.DEFAULT));
+        });
+    }
+
+    /**
+     * Runs a query with a read policy.
+     * A cached query result may hold only the documents some earlier query happened to load, so
+     * queries can not be served CACHE_FIRST, DEFAULT still answers from the cache when offline.
+     * @param query
+     *      the query to run
+     * @param policy
+     *      where the read may be served from, SERVER_ONLY or DEFAULT
+     * @param site
+     *      names the caller in the read metrics
+     * @return
+     *      a Task with the query result
+     */
+    public Task<QuerySnapshot> read(Query query, ReadPolicy policy, String site) {
+        if (policy == ReadPolicy.CACHE_FIRST) {
+            throw new IllegalArgumentException("CACHE_FIRST is only for single document reads, " + site + " runs a query");
+        }
+        return countRead(site, query.get(policy.source));
+    }
+
+    /**
+     * Counts where a successful read was served from
+     */
+    private static <T> Task<T> countRead(String site, Task<T> read) {
+        read.addOnSuccessListener(result -> {
+            boolean fromCache = result instanceof DocumentSnapshot
+                    ? ((DocumentSnapshot) result).getMetadata().isFromCache()
+                    : ((QuerySnapshot) result).getMetadata().isFromCache();
+            synchronized (readCounts) {
+                int[] counts = readCounts.get(site);
+                if (counts == null) {
+                    counts = new int[2];
+                    readCounts.put(site, counts);
+                }
+                counts[fromCache ? 0 : 1]++;
+                Log.d(TAG, "Reads for " + site + ": " + counts[0] + " from cache, " + counts[1] + " from server");
+            }
+        });
+        return read;
+    }
+
+    /**
+     * Gets how many reads of a call site were served from the cache
+     * @param site
+     *      the call site
+     * @return
+     *      the number of cache served reads
+     */
+    public static int getCacheReads(String site) {
+        synchronized (readCounts) {
+            int[] counts = readCounts.get(site);
+            return counts == null ? 0 : counts[0];
+        }
+    }
+
+    /**
+     * Gets how many reads of a call site were served from the server
+     * @param site
+     *      the call site
+     * @return
+     *      the number of server served reads
+     */
+    public static int getServerReads(String site) {
+        synchronized (readCounts) {
+            int[] counts = readCounts.get(site);
+            return counts == null ? 0 : counts[1];
+        }
+    }
+
+    /**
+     * Where a read may be served from
+     */
+    public enum ReadPolicy {
+        // Serve from the cache when it has the data and refresh it from the server in the background,
+        // single documents only since a cached query may be missing documents
+        CACHE_FIRST(Source.CACHE),
+        // Always ask the server, fails when offline
+        SERVER_ONLY(Source.SERVER),
+        // Ask the server and fall back to the cache when offline
+        DEFAULT(Source.DEFAULT);
+
+        private final Source source;
+
+        ReadPolicy(Source source) {
+            this.source = source;
+        }
+    }
+
     /**
      * Creates a function to get user collection
      * @return
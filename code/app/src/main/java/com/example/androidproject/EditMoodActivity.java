@@ -2,7 +2,6 @@ package com.example.androidproject;
 
 import android.content.Intent;
 import android.location.Location;
-import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.text.InputFilter;
@@ -25,9 +24,9 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.Calendar;
 import java.util.Map;
 
@@ -58,7 +57,7 @@ public class EditMoodActivity extends AppCompatActivity {
     private FloatingActionButton deleteButton;
 
     // Data
-    private String chosenMood, chosenColor, id;
+    private String chosenMood, chosenColor, id, userId;
     private boolean isPublic = false;
 
     // Managers
@@ -81,7 +80,7 @@ public class EditMoodActivity extends AppCompatActivity {
         setContentView(R.layout.activity_edit_mood);
 
         // Retrieve the currentUser from the Intent
-        String userId = (String) getIntent().getSerializableExtra("user");
+        userId = (String) getIntent().getSerializableExtra("user");
 
         if (savedInstanceState == null) {
             getSupportFragmentManager().beginTransaction()
@@ -151,7 +150,7 @@ public class EditMoodActivity extends AppCompatActivity {
      */
     private void initializeManagers() {
         // Create repository
-        moodRepository = new MoodRepository();
+        moodRepository = new MoodRepository(getContentResolver(), userId);
 
         // Create date/time manager
         dateTimeManager = new DateTimeManager(this, textViewSelectedDate, textViewSelectedTime);
@@ -167,7 +166,7 @@ public class EditMoodActivity extends AppCompatActivity {
         // Create mood dropdown manager
         moodDropdownManager = new MoodDropdownManager(this, moodDropdown, mood -> {
             chosenMood = mood;
-            chosenColor = new MoodState(mood).getColor();
+            chosenColor = MoodType.fromLabel(mood).getHex();
         });
     }
 
@@ -198,23 +197,12 @@ public class EditMoodActivity extends AppCompatActivity {
                     String color = document.getString("color");
                     String chosenSituation = document.getString("situation");
                     String reason = document.getString("reason");
-                    Location location = null;
-                    // Checks that the location isn't null
-                    if (document.get("location") != null) {
-                        // Gets the longitude and latitude
-                        Double latitude = document.get("location.latitude", Double.class);
-                        Double longitude = document.get("location.longitude", Double.class);
-                        // makes the location
-                        location = new Location(LocationManager.GPS_PROVIDER);
-                        // Set sea level so that there is no invocation error
-                        location.setMslAltitudeAccuracyMeters(0);
-                        location.setMslAltitudeMeters(0);
-
-                        location.setLatitude(latitude);
-                        location.setLongitude(longitude);
-                    }
+                    Object locationField = document.get("location");
+                    GeoCoordinate coordinate = locationField instanceof Map
+                            ? MoodStateCodec.readLocation((Map<String, Object>) locationField)
+                            : null;
+                    Location location = coordinate != null ? coordinate.toLocation() : null;
                     String imageUrl = document.getString("id");
-                    Object dayTimeObj = document.get("dayTime");
                     Boolean visibility = document.getBoolean("visibility");
 
                     // Set visibility (default to private/false if not set)
@@ -223,41 +211,12 @@ public class EditMoodActivity extends AppCompatActivity {
                     Calendar calendar = Calendar.getInstance();
 
                     // Handle timestamp
-                    if (dayTimeObj instanceof Map) {
-                        Map<String, Object> dayTimeMap = (Map<String, Object>) dayTimeObj;
-
-                        try {
-                            // Safely extract each component with null checks
-                            Integer year = dayTimeMap.containsKey("year") ?
-                                    ((Long) dayTimeMap.get("year")).intValue() :
-                                    calendar.get(Calendar.YEAR);
-
-                            Integer monthValue = dayTimeMap.containsKey("monthValue") ?
-                                    ((Long) dayTimeMap.get("monthValue")).intValue() - 1 :
-                                    calendar.get(Calendar.MONTH);
-
-                            Integer day = dayTimeMap.containsKey("dayOfMonth") ?
-                                    ((Long) dayTimeMap.get("dayOfMonth")).intValue() :
-                                    calendar.get(Calendar.DAY_OF_MONTH);
-
-                            Integer hour = dayTimeMap.containsKey("hour") ?
-                                    ((Long) dayTimeMap.get("hour")).intValue() :
-                                    calendar.get(Calendar.HOUR_OF_DAY);
-
-                            Integer minute = dayTimeMap.containsKey("minute") ?
-                                    ((Long) dayTimeMap.get("minute")).intValue() :
-                                    calendar.get(Calendar.MINUTE);
-
-                            // Set the calendar with extracted or default values
-                            calendar.set(
-                                    year,
-                                    monthValue,
-                                    day,
-                                    hour,
-                                    minute
-                            );
-                        } catch (Exception e) {
-                        }
+                    LocalDateTime dayTime = MoodStateCodec.readDayTime(document);
+                    if (dayTime != null) {
+                        calendar.setTimeInMillis(dayTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                        // The pickers only go down to the minute
+                        calendar.set(Calendar.SECOND, 0);
+                        calendar.set(Calendar.MILLISECOND, 0);
                     }
 
                     // Update UI components
@@ -392,11 +351,8 @@ public class EditMoodActivity extends AppCompatActivity {
         String imageToDeleteId = mediaManager.getImageToDeleteId();
 
         if (imageToDeleteId != null) {
-            // Delete the image from Firebase Storage
-            FirebaseStorage storage = FirebaseStorage.getInstance();
-            StorageReference imageRef = storage.getReference().child("images/" + imageToDeleteId);
-
-            imageRef.delete().addOnSuccessListener(aVoid -> {
+            // Delete every size of the image from Firebase Storage
+            Database.getInstance().deleteImage(imageToDeleteId).addOnSuccessListener(aVoid -> {
                 moodRepository.updateMood(
                         id,
                         chosenMood,
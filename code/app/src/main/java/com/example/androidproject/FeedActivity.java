@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.EditText;
@@ -17,13 +18,13 @@ import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.AppCompatButton;
+import androidx.lifecycle.Lifecycle;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.List;
 
 import android.content.Intent;
 
@@ -41,6 +42,18 @@ public class FeedActivity extends AppCompatActivity {
     private ListView moodListView;
 
     FeedManager feedManager;
+    private FeedPager feedPager;
+    // Keeps the newest moods up to date while the screen is visible
+    private LiveFeed liveFeed;
+    // Set while the shown list is a filtered view of the loaded feed
+    private boolean filterApplied = false;
+    // Number of preview rows shown at the end of the list while a page is loading
+    private int previewRows = 0;
+
+    // Number of moods requested per page
+    private static final int PAGE_SIZE = 20;
+    // How many rows from the bottom the next page starts loading
+    private static final int PAGE_PREFETCH_DISTANCE = 5;
 
     private String currentUser;
 
@@ -91,6 +104,7 @@ public class FeedActivity extends AppCompatActivity {
         moodAdapter = new MoodArrayAdapter(this, feed, currentUser);
         moodListView = findViewById(R.id.mood_list);
         moodListView.setAdapter(moodAdapter);
+        setUpPaging();
 
         // Fetch the following list asynchronously
         fetchFollowingAndFeed();
@@ -126,74 +140,276 @@ public class FeedActivity extends AppCompatActivity {
     }
 
     /**
-     * Fetches feed from Firestore and updates the UI.
+     * Starts paging the feed from the newest mood and shows the first page.
      */
     private void fetchFeed() {
-        feedManager.fetchFeed(following, new FeedManager.FeedCallback() {
+        feedPager = feedManager.createFeedPager(currentUser, following, PAGE_SIZE);
+        if (!showCachedFeed()) {
+            showStoredFeed(feedPager);
+        }
+        loadNextPage();
+    }
+
+    /**
+     * Shows the first page from the shared FeedCache as preview rows until the first page arrives.
+     * The cache is filled by this screen and by every other screen that shows the feed.
+     * @return
+     *      true if the cache had the first page of this following list
+     */
+    private boolean showCachedFeed() {
+        FeedCache.Entry cached = FeedCache.lookupHead(currentUser, following, PAGE_SIZE);
+        if (cached == null || filterApplied || !feed.isEmpty()) {
+            return false;
+        }
+        List<MoodState> head = cached.feed.subList(0, Math.min(PAGE_SIZE, cached.feed.size()));
+        feed.addAll(head);
+        previewRows = head.size();
+        moodAdapter.notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Shows the newest moods from the local store as preview rows until the first page arrives
+     * @param pager
+     *      the pager the preview is for
+     */
+    private void showStoredFeed(FeedPager pager) {
+        LocalMoodStore store = LocalMoodStore.getInstance();
+        if (store == null) {
+            return;
+        }
+        store.loadFeed(following, PAGE_SIZE, stored -> {
+            // Only fill an empty list, a page that already arrived is newer
+            if (stored == null || pager != feedPager || filterApplied || !feed.isEmpty()) {
+                return;
+            }
+            feed.addAll(stored);
+            previewRows = stored.size();
+            moodAdapter.notifyDataSetChanged();
+        });
+    }
+
+    /**
+     * Checks the following list again when coming back to the screen.
+     * The feed is only rebuilt if the list changed, otherwise the live feed already has every change.
+     */
+    private void refreshFollowing() {
+        feedManager.getFollowing(currentUser, new FeedManager.FollowingCallback() {
             /**
-             * Once the feed is received display it
-             * @param feed
-             *      The feed of moods
+             * Rebuilds the feed if the following list is different
+             * @param followingList
+             *      the list of following received
              */
             @Override
-            public void onCallback(ArrayList<MoodState> feed) {
-                if (feed != null) {
-                    // Update the mood history lists
-                    FeedActivity.this.feed.clear();
-                    FeedActivity.this.feed.addAll(feed);
+            public void onCallback(ArrayList<String> followingList) {
+                if (followingList != null && !followingList.equals(following)) {
+                    following = followingList;
+                    resetFeed();
+                    fetchFeed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the loaded feed and stops listening for changes to it.
+     */
+    private void resetFeed() {
+        if (liveFeed != null) {
+            liveFeed.stop();
+            liveFeed = null;
+        }
+        feedPager = null;
+        filterApplied = false;
+        previewRows = 0;
+        completeFeed.clear();
+        feed.clear();
+        moodAdapter.notifyDataSetChanged();
+    }
 
-                    completeFeed.clear();
-                    completeFeed.addAll(feed);
+    /**
+     * Starts listening for changes to the moods at the top of the feed once the first page is shown.
+     * The live window reaches back to the oldest mood on the first page.
+     * @param firstPage
+     *      the first page of the feed
+     * @param hasMore
+     *      if there are moods older than the first page
+     */
+    private void startLiveFeed(ArrayList<MoodState> firstPage, boolean hasMore) {
+        long since = 0;
+        if (hasMore && !firstPage.isEmpty()) {
+            since = firstPage.get(firstPage.size() - 1).getTimestamp();
+        }
+        liveFeed = feedManager.createLiveFeed(currentUser, following, since, completeFeed);
+        if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+            liveFeed.start(feedChanges);
+        }
+    }
 
-                    // Sort the mood history by date and time
-                    sortFeed();
+    /**
+     * Mirrors live feed changes in the shown list.
+     * A changed mood only rebinds its own row, and only if it is on screen. Inserts and removals
+     * shift the rows after them, which a ListView can only take as a full refresh, so those keep
+     * the rows on screen where they were.
+     * While a filter is applied only the complete feed is updated and the filter is redone on reset.
+     */
+    private final LiveFeed.ChangeListener feedChanges = new LiveFeed.ChangeListener() {
+        @Override
+        public void onInserted(MoodState mood, int position) {
+            if (!filterApplied) {
+                feed.add(position, mood);
+                refreshKeepingScroll(position, 1);
+            }
+        }
 
-                    // Notify the adapter that the data has changed
-                    moodAdapter.notifyDataSetChanged();
-                } else {
-                    Log.e("FeedActivity", "Failed to fetch feed");
-                }
+        @Override
+        public void onChanged(MoodState mood, int position) {
+            if (!filterApplied) {
+                feed.set(position, mood);
+                rebindRow(position);
             }
-        });
+        }
+
+        @Override
+        public void onRemoved(MoodState mood, int position) {
+            if (!filterApplied) {
+                feed.remove(position);
+                refreshKeepingScroll(position, -1);
+            }
+        }
+    };
+
+    /**
+     * Binds the mood at a position again into its row if the row is on screen
+     * @param position
+     *      the position of the mood in the shown list
+     */
+    private void rebindRow(int position) {
+        View row = moodListView.getChildAt(position - moodListView.getFirstVisiblePosition());
+        if (row != null) {
+            moodAdapter.getView(position, row, moodListView);
+        }
     }
 
     /**
-     * Sorts the mood history by date and time in reverse chronological order.
+     * Refreshes the list after a row was inserted or removed, and keeps the rows on screen in place
+     * when the change was above them
+     * @param position
+     *      where the row was inserted or removed
+     * @param shift
+     *      1 for an insert, -1 for a removal
      */
-    private void sortFeed() {
-        feed.sort(new Comparator<MoodState>() {
+    private void refreshKeepingScroll(int position, int shift) {
+        int first = moodListView.getFirstVisiblePosition();
+        View top = moodListView.getChildAt(0);
+        moodAdapter.notifyDataSetChanged();
+        if (top != null && position < first) {
+            moodListView.setSelectionFromTop(Math.max(0, first + shift), top.getTop());
+        }
+    }
+
+    /**
+     * Loads the next page of the feed and appends it to the list.
+     * Pages arrive newest first so the list stays in reverse chronological order without sorting.
+     */
+    private void loadNextPage() {
+        if (feedPager == null || feedPager.isLoading() || !feedPager.hasMore()) {
+            return;
+        }
+        FeedPager pager = feedPager;
+        pager.loadNextPage(new FeedPager.PageCallback() {
             /**
-             * A metric to compare
-             * @param m1 the first object to be compared.
-             * @param m2 the second object to be compared.
-             * @return
+             * Shows the moods that have arrived so far while the rest of the page loads
+             * @param preview
+             *      The newest moods received so far
              */
             @Override
-            public int compare(MoodState m1, MoodState m2) {
-                return m2.getDayTime().compareTo(m1.getDayTime()); // Reverse order
+            public void onPartialPage(ArrayList<MoodState> preview) {
+                if (pager != feedPager || filterApplied) {
+                    return;
+                }
+                removePreviewRows();
+                feed.addAll(preview);
+                previewRows = preview.size();
+                moodAdapter.notifyDataSetChanged();
+            }
+
+            /**
+             * Once a page is received display it
+             * @param page
+             *      The next moods of the feed
+             * @param hasMore
+             *      If there are older moods left to load
+             */
+            @Override
+            public void onPage(ArrayList<MoodState> page, boolean hasMore) {
+                // Ignore pages from a pager that was replaced by a refresh
+                if (pager != feedPager) {
+                    return;
+                }
+                // The live feed may already hold moods at the start of its window
+                ArrayList<MoodState> added = page;
+                if (liveFeed != null) {
+                    added = liveFeed.appendPage(page);
+                } else {
+                    completeFeed.addAll(page);
+                }
+                // While a filter is applied the shown list only holds the filtered moods
+                if (!filterApplied) {
+                    removePreviewRows();
+                    feed.addAll(added);
+                    moodAdapter.notifyDataSetChanged();
+                }
+                if (liveFeed == null) {
+                    // The first page is kept for the next time a feed screen opens
+                    FeedCache.putHead(currentUser, following, new ArrayList<>(page), hasMore);
+                    startLiveFeed(page, hasMore);
+                }
             }
         });
-        moodAdapter.notifyDataSetChanged(); // Refresh the adapter
+    }
+
+    /**
+     * Removes the preview rows of the page that is loading, they always sit at the end of the list
+     */
+    private void removePreviewRows() {
+        for (int i = 0; i < previewRows; i++) {
+            feed.remove(feed.size() - 1);
+        }
+        previewRows = 0;
+    }
+
+    /**
+     * Loads the next page once the user scrolls close to the bottom of the list.
+     */
+    private void setUpPaging() {
+        moodListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // Not using it
+            }
 
-        completeFeed.sort(new Comparator<MoodState>() {
             /**
-             * A metric to compare
-             * @param m1 the first object to be compared.
-             * @param m2 the second object to be compared.
-             * @return
+             * Checks how close the last visible row is to the end of the list
+             * @param view The view whose scroll state is being reported
+             * @param firstVisibleItem the index of the first visible cell
+             * @param visibleItemCount the number of visible cells
+             * @param totalItemCount the number of items in the list adapter
              */
             @Override
-            public int compare(MoodState m1, MoodState m2) {
-                return m2.getDayTime().compareTo(m1.getDayTime()); // Reverse order
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (!filterApplied && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
             }
         });
-        moodAdapter.notifyDataSetChanged(); // Refresh the adapter
     }
 
     /**
      * Filters the mood history by the most recent week.
      */
     public void filterByRecentWeek() {
+        filterApplied = true;
         ArrayList<MoodState> filteredMoods = Filter.filterByRecentWeek(feed);
         moodAdapter.clear();
         moodAdapter.addAll(filteredMoods);
@@ -206,6 +422,7 @@ public class FeedActivity extends AppCompatActivity {
      * @param emotionalState The emotional state to filter by.
      */
     public void filterByEmotionalState(String emotionalState) {
+        filterApplied = true;
         ArrayList<MoodState> filteredMoods = Filter.filterByEmotionalState(feed, emotionalState);
         moodAdapter.clear();
         moodAdapter.addAll(filteredMoods);
@@ -218,6 +435,7 @@ public class FeedActivity extends AppCompatActivity {
      * @param keyword The keyword to filter by.
      */
     public void filterByKeyword(String keyword) {
+        filterApplied = true;
         ArrayList<MoodState> filteredMoods = Filter.filterByKeyword(feed, keyword);
         moodAdapter.clear();
         moodAdapter.addAll(filteredMoods);
@@ -301,6 +519,8 @@ public class FeedActivity extends AppCompatActivity {
      * Resets the mood history to display all moods.
      */
     private void displayAllMoods() {
+        filterApplied = false;
+        previewRows = 0;
         feed.clear();
         feed.addAll(completeFeed); // Restore all moods from the original list
         moodAdapter.notifyDataSetChanged();
@@ -309,34 +529,35 @@ public class FeedActivity extends AppCompatActivity {
 
 
     /**
-     * Called when the activity is about to become visible or return to the foreground.
-     * Performs essential setup tasks and refreshes the feed data:
+     * Reattaches the live feed listeners when the screen becomes visible again
      */
     @Override
-    protected void onResume() {
-        super.onResume();
-        // Retrieve the currentUser from the Intent
-        currentUser = (String) getIntent().getSerializableExtra("currentUser");
-
-        if (currentUser != null) {
-            Log.d("FeedActivity", "Current user: " + currentUser);
-        } else {
-            Log.e("FeedActivity", "No user data found");
+    protected void onStart() {
+        super.onStart();
+        if (liveFeed != null) {
+            liveFeed.start(feedChanges);
         }
+    }
 
-        // Initialize feedManager
-        feedManager = new FeedManager();
-
-        // Initialize mood history lists
-        feed = new ArrayList<>();
-        completeFeed = new ArrayList<>();
-
-        // Initialize the adapter with an empty list
-        moodAdapter = new MoodArrayAdapter(this, feed, currentUser);
-        moodListView = findViewById(R.id.mood_list);
-        moodListView.setAdapter(moodAdapter);
+    /**
+     * Called when coming back to the screen, the feed is kept and only rebuilt if the following list changed
+     */
+    @Override
+    protected void onRestart() {
+        super.onRestart();
+        if (following != null) {
+            refreshFollowing();
+        }
+    }
 
-        // Fetch mood history for the current user
-        fetchFollowingAndFeed(); // Fetch following list and then fetch feed
+    /**
+     * Detaches the live feed listeners so no reads happen while the screen is hidden
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (liveFeed != null) {
+            liveFeed.stop();
+        }
     }
-}
\ No newline at end of file
+}
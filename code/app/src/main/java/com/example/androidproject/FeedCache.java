@@ -0,0 +1,304 @@
+package com.example.androidproject;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process wide cache of fetched feeds, shared by every screen that shows the feed.
+ * Entries are keyed by the user and a version of their following list, so following or unfollowing
+ * someone never serves a feed built from the old list. An entry older than the TTL is still served,
+ * but is marked stale so the caller revalidates it in the background.
+ * Screens that only show the newest moods cache just the first page of the feed, kept apart from
+ * the full feeds so a first page is never served as a whole feed.
+ * Used through FeedManager.fetchFeedCached and FeedManager.fetchRecentCached, and by FeedActivity
+ * for its first page. Posting, editing and deleting a mood drop the feeds that hold its author.
+ */
+public class FeedCache {
+    private static final String TAG = "FeedCache";
+    // How long a cached feed is considered fresh
+    public static final long DEFAULT_TTL_MILLIS = 60_000;
+
+    private static final HashMap<String, Entry> entries = new HashMap<>();
+    // First pages of feeds, by user
+    private static final HashMap<String, Entry> heads = new HashMap<>();
+    private static long ttlMillis = DEFAULT_TTL_MILLIS;
+
+    private static int hits = 0;
+    private static int misses = 0;
+    private static int staleHits = 0;
+
+    private FeedCache() {
+    }
+
+    /**
+     * Builds a version of a following list that does not depend on its order
+     * @param following
+     *      the following list
+     * @return
+     *      the same value for any list holding the same users
+     */
+    static int followingVersion(List<String> following) {
+        ArrayList<String> sorted = new ArrayList<>(following);
+        Collections.sort(sorted);
+        return sorted.hashCode();
+    }
+
+    /**
+     * Finds the cached feed of a user for the given following list and counts the lookup
+     * @param username
+     *      the owner of the feed
+     * @param following
+     *      the current following list of the user
+     * @return
+     *      the entry, or null on a miss
+     */
+    static synchronized Entry lookup(String username, List<String> following) {
+        Entry entry = entries.get(username);
+        if (entry == null || entry.version != followingVersion(following)) {
+            misses++;
+            return null;
+        }
+        if (entry.isStale()) {
+            staleHits++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the last feed cached for a user without checking the following list or counting the lookup
+     * @param username
+     *      the owner of the feed
+     * @return
+     *      the entry, or null if nothing is cached
+     */
+    static synchronized Entry peek(String username) {
+        return entries.get(username);
+    }
+
+    /**
+     * Finds the newest moods of a user's feed for the given following list and counts the lookup.
+     * A cached full feed is used when there is one, otherwise a cached first page that holds enough
+     * moods, or every mood of the feed.
+     * @param username
+     *      the owner of the feed
+     * @param following
+     *      the current following list of the user
+     * @param count
+     *      how many of the newest moods are needed
+     * @return
+     *      the entry, or null on a miss
+     */
+    static synchronized Entry lookupHead(String username, List<String> following, int count) {
+        int version = followingVersion(following);
+        Entry entry = entries.get(username);
+        if (entry == null || entry.version != version) {
+            entry = heads.get(username);
+        }
+        if (entry == null || entry.version != version || !entry.covers(count)) {
+            misses++;
+            return null;
+        }
+        if (entry.isStale()) {
+            staleHits++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the last cached newest moods of a user without checking the following list or counting
+     * the lookup
+     * @param username
+     *      the owner of the feed
+     * @param count
+     *      how many of the newest moods are needed
+     * @return
+     *      the full feed or first page, or null if neither holds enough moods
+     */
+    static synchronized Entry peekHead(String username, int count) {
+        Entry entry = entries.get(username);
+        if (entry == null || !entry.covers(count)) {
+            entry = heads.get(username);
+        }
+        return entry != null && entry.covers(count) ? entry : null;
+    }
+
+    /**
+     * Stores a freshly fetched feed, replacing any older feed of the user
+     * @param username
+     *      the owner of the feed
+     * @param following
+     *      the following list the feed was built from
+     * @param feed
+     *      the feed, newest first
+     * @return
+     *      the new entry
+     */
+    static synchronized Entry put(String username, List<String> following, ArrayList<MoodState> feed) {
+        Entry entry = new Entry(following, feed, true);
+        entries.put(username, entry);
+        return entry;
+    }
+
+    /**
+     * Stores a freshly loaded first page of a feed, replacing any older first page of the user
+     * @param username
+     *      the owner of the feed
+     * @param following
+     *      the following list the page was built from
+     * @param page
+     *      the newest moods, newest first
+     * @param hasMore
+     *      if the feed holds older moods than the page
+     * @return
+     *      the new entry
+     */
+    static synchronized Entry putHead(String username, List<String> following, ArrayList<MoodState> page,
+                                      boolean hasMore) {
+        Entry entry = new Entry(following, page, !hasMore);
+        heads.put(username, entry);
+        return entry;
+    }
+
+    /**
+     * Removes the cached feed of a user so the next request fetches it again
+     * @param username
+     *      the owner of the feed
+     */
+    public static synchronized void invalidate(String username) {
+        entries.remove(username);
+        heads.remove(username);
+    }
+
+    /**
+     * Removes every cached feed that can hold the moods of a user, so a post, edit or delete shows
+     * on the next request instead of after the TTL
+     * @param author
+     *      the user whose mood changed
+     */
+    public static synchronized void invalidateAuthor(String author) {
+        invalidate(author);
+        entries.values().removeIf(entry -> entry.following.contains(author));
+        heads.values().removeIf(entry -> entry.following.contains(author));
+    }
+
+    /**
+     * Removes every cached feed
+     */
+    public static synchronized void clear() {
+        entries.clear();
+        heads.clear();
+    }
+
+    /**
+     * Changes how long a cached feed is considered fresh
+     * @param millis
+     *      the new TTL in milliseconds
+     */
+    public static void setTtlMillis(long millis) {
+        ttlMillis = millis;
+    }
+
+    /**
+     * Gets how long a cached feed is considered fresh
+     * @return
+     *      the TTL in milliseconds
+     */
+    public static long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Gets how many lookups found a fresh feed
+     * @return
+     *      the number of fresh hits
+     */
+    public static synchronized int getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets how many lookups found nothing usable
+     * @return
+     *      the number of misses
+     */
+    public static synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets how many lookups found a feed older than the TTL
+     * @return
+     *      the number of stale hits
+     */
+    public static synchronized int getStaleCount() {
+        return staleHits;
+    }
+
+    /**
+     * Sets every counter back to zero
+     */
+    public static synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        staleHits = 0;
+    }
+
+    /**
+     * Logs the counters so the TTL can be tuned
+     */
+    static synchronized void logStats() {
+        Log.d(TAG, "hits=" + hits + " stale=" + staleHits + " misses=" + misses + " ttl=" + ttlMillis + "ms");
+    }
+
+    /**
+     * A cached feed together with the following list it was built from
+     */
+    static class Entry {
+        final ArrayList<String> following;
+        final int version;
+        final ArrayList<MoodState> feed;
+        // If feed holds every mood, false for a first page with older moods after it
+        final boolean complete;
+        final long storedAt;
+        // Callers waiting for the background revalidation of this entry
+        final ArrayList<FeedManager.CachedFeedCallback> waiters = new ArrayList<>();
+        boolean revalidating = false;
+
+        Entry(List<String> following, ArrayList<MoodState> feed, boolean complete) {
+            this.following = new ArrayList<>(following);
+            this.version = followingVersion(following);
+            this.feed = feed;
+            this.complete = complete;
+            this.storedAt = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Returns if the entry holds the newest moods of the feed up to a count
+         * @param count
+         *      how many of the newest moods are needed
+         * @return
+         *      true if the entry has that many moods or the whole feed
+         */
+        boolean covers(int count) {
+            return complete || feed.size() >= count;
+        }
+
+        /**
+         * Returns if the entry is older than the TTL
+         * @return
+         *      true if the feed should be revalidated
+         */
+        boolean isStale() {
+            return SystemClock.elapsedRealtime() - storedAt > ttlMillis;
+        }
+    }
+}
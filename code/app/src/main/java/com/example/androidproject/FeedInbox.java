@@ -0,0 +1,332 @@
+package com.example.androidproject;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fan-out-on-write feed.
+ * Posting a public mood writes a small copy of it into the "feed" subcollection of every follower,
+ * so a feed can be read with one query instead of one per followed user.
+ * Follow, unfollow, visibility changes and deletes keep the inboxes up to date.
+ * An inbox only holds moods posted since fan-out started, so it is only read once it has been
+ * backfilled with every followed user and FIELD_INBOX_READY is set on the user document. Until
+ * then feeds are read from the followed users directly.
+ */
+public class FeedInbox {
+    private static final String TAG = "FeedInbox";
+    // Firestore allows at most 500 writes in one batch
+    static final int MAX_BATCH_WRITES = 500;
+    // Set on a user document once the inbox of the user holds the moods of everyone they follow
+    static final String FIELD_INBOX_READY = "feedInboxReady";
+
+    // Users whose inbox is known to be backfilled, and users whose backfill is running
+    private static final Set<String> readyInboxes = new HashSet<>();
+    private static final Set<String> backfilling = new HashSet<>();
+
+    private FirebaseFirestore db;
+
+    /**
+     * Creates the feed inbox helper
+     */
+    public FeedInbox() {
+        db = FirebaseFirestore.getInstance();
+    }
+
+    /**
+     * Returns if the feed of a user can be read from their inbox
+     * @param username
+     *      the owner of the inbox
+     * @return
+     *      true if the user document was read with FIELD_INBOX_READY set, or the backfill finished
+     */
+    public static synchronized boolean isReady(String username) {
+        return readyInboxes.contains(username);
+    }
+
+    /**
+     * Records if the inbox of a user is ready from their user document, and backfills it once
+     * if it is not
+     * @param username
+     *      the owner of the inbox
+     * @param user
+     *      the user document
+     * @param following
+     *      the following list from the user document
+     */
+    public static void checkReady(String username, DocumentSnapshot user, List<String> following) {
+        synchronized (FeedInbox.class) {
+            if (Boolean.TRUE.equals(user.getBoolean(FIELD_INBOX_READY))) {
+                readyInboxes.add(username);
+                return;
+            }
+            if (readyInboxes.contains(username) || !backfilling.add(username)) {
+                return;
+            }
+        }
+        new FeedInbox().backfillAll(username, following).addOnCompleteListener(task -> {
+            synchronized (FeedInbox.class) {
+                backfilling.remove(username);
+                if (task.isSuccessful()) {
+                    readyInboxes.add(username);
+                }
+            }
+            if (!task.isSuccessful()) {
+                // Tried again the next time the user document is read
+                Log.e(TAG, "Could not backfill inbox of " + username, task.getException());
+            }
+        });
+    }
+
+    /**
+     * Gets the inbox collection of a user
+     * @param db
+     *      the firestore instance
+     * @param username
+     *      the owner of the inbox
+     * @return
+     *      the "feed" subcollection of the user
+     */
+    static CollectionReference inboxOf(FirebaseFirestore db, String username) {
+        return db.collection("Users").document(username).collection("feed");
+    }
+
+    /**
+     * Builds the denormalized inbox entry for a mood
+     * @param mood
+     *      the mood to copy
+     * @return
+     *      the fields the feed list needs to show the mood
+     */
+    static Map<String, Object> toEntry(MoodState mood) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("user", mood.getUser());
+        entry.put("mood", mood.getMood());
+        MoodStateCodec.putTime(entry, mood.getTimestamp(), mood.getZoneOffset());
+        entry.put("visibility", Boolean.TRUE);
+        if (mood.getReason() != null) {
+            entry.put("reason", mood.getReason());
+        }
+        if (mood.getSituation() != null) {
+            entry.put("situation", mood.getSituation());
+        }
+        // Read back by MoodStateCodec.decode, so feed rows can show the image without the mood document
+        if (mood.getImagePath() != null) {
+            entry.put("image", mood.getImagePath());
+        }
+        if (mood.getLocation() != null) {
+            MoodStateCodec.putLocation(entry, mood.getLocation());
+        }
+        return entry;
+    }
+
+    /**
+     * Copies a newly posted mood into the inbox of every follower of its author
+     * @param mood
+     *      the posted mood, with its id and user set
+     */
+    public void fanOut(MoodState mood) {
+        if (!Boolean.TRUE.equals(mood.getVisibility())) {
+            return;
+        }
+        Map<String, Object> entry = toEntry(mood);
+        forEachFollower(mood.getUser(), followers -> {
+            ArrayList<BatchOp> ops = new ArrayList<>(followers.size());
+            for (String follower : followers) {
+                ops.add(new BatchOp(follower, mood.getId(), entry));
+            }
+            commit(ops);
+        });
+    }
+
+    /**
+     * Brings the inboxes in line with a mood after it was edited.
+     * Public moods are rewritten in every follower inbox, private ones are removed.
+     * @param document
+     *      the mood document after the edit
+     */
+    public void syncMood(DocumentSnapshot document) {
+        if (!document.exists()) {
+            return;
+        }
+        MoodState mood = MoodStateCodec.decode(document);
+        if (Boolean.TRUE.equals(mood.getVisibility())) {
+            fanOut(mood);
+        } else {
+            removeMood(mood.getUser(), mood.getId());
+        }
+    }
+
+    /**
+     * Removes a mood from the inbox of every follower of its author
+     * @param author
+     *      the user who posted the mood
+     * @param moodId
+     *      the id of the mood
+     */
+    public void removeMood(String author, String moodId) {
+        forEachFollower(author, followers -> {
+            ArrayList<BatchOp> ops = new ArrayList<>(followers.size());
+            for (String follower : followers) {
+                ops.add(new BatchOp(follower, moodId, null));
+            }
+            commit(ops);
+        });
+    }
+
+    /**
+     * Copies the public moods of a user into the inbox of a new follower
+     * @param follower
+     *      the user who started following
+     * @param followed
+     *      the user who is now followed
+     */
+    public void backfill(String follower, String followed) {
+        db.collection("Moods")
+                .whereEqualTo("user", followed)
+                .whereEqualTo("visibility", Boolean.TRUE)
+                .get()
+                .addOnSuccessListener(queryDocumentSnapshots -> {
+                    ArrayList<BatchOp> ops = new ArrayList<>(queryDocumentSnapshots.size());
+                    for (DocumentSnapshot document : queryDocumentSnapshots.getDocuments()) {
+                        MoodState mood = MoodStateCodec.decode(document);
+                        ops.add(new BatchOp(follower, mood.getId(), toEntry(mood)));
+                    }
+                    commit(ops);
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "Could not backfill inbox of " + follower, e));
+    }
+
+    /**
+     * Copies the public moods of every followed user into an inbox, then marks it ready.
+     * Moods posted while this runs are fanned out as usual, so nothing is missed once it is ready.
+     * @param username
+     *      the owner of the inbox
+     * @param following
+     *      the users they follow
+     * @return
+     *      a Task that succeeds once the inbox is filled and marked ready
+     */
+    Task<Void> backfillAll(String username, List<String> following) {
+        ArrayList<Task<QuerySnapshot>> reads = new ArrayList<>();
+        for (List<String> users : FeedManager.chunk(following, FeedManager.WHERE_IN_LIMIT)) {
+            reads.add(db.collection("Moods")
+                    .whereIn("user", users)
+                    .whereEqualTo("visibility", Boolean.TRUE)
+                    .get());
+        }
+        return Tasks.<QuerySnapshot>whenAllSuccess(reads).onSuccessTask(snapshots -> {
+            ArrayList<BatchOp> ops = new ArrayList<>();
+            for (QuerySnapshot snapshot : snapshots) {
+                for (DocumentSnapshot document : snapshot.getDocuments()) {
+                    MoodState mood = MoodStateCodec.decode(document);
+                    ops.add(new BatchOp(username, mood.getId(), toEntry(mood)));
+                }
+            }
+            return Tasks.whenAll(commit(ops));
+        }).onSuccessTask(aVoid -> {
+            Map<String, Object> ready = new HashMap<>();
+            ready.put(FIELD_INBOX_READY, Boolean.TRUE);
+            return db.collection("Users").document(username).update(ready);
+        });
+    }
+
+    /**
+     * Removes every mood of a user from the inbox of someone who stopped following them
+     * @param follower
+     *      the user who stopped following
+     * @param unfollowed
+     *      the user who is no longer followed
+     */
+    public void removeAuthor(String follower, String unfollowed) {
+        inboxOf(db, follower)
+                .whereEqualTo("user", unfollowed)
+                .get()
+                .addOnSuccessListener(queryDocumentSnapshots -> {
+                    ArrayList<BatchOp> ops = new ArrayList<>(queryDocumentSnapshots.size());
+                    for (DocumentSnapshot document : queryDocumentSnapshots.getDocuments()) {
+                        ops.add(new BatchOp(follower, document.getId(), null));
+                    }
+                    commit(ops);
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "Could not clean inbox of " + follower, e));
+    }
+
+    /**
+     * Reads the followers of a user and passes them on
+     * @param author
+     *      the user whose followers are needed
+     * @param action
+     *      runs with the follower list
+     */
+    private void forEachFollower(String author, FollowersAction action) {
+        db.collection("Users").document(author).get()
+                .addOnSuccessListener(document -> {
+                    List<String> followers = (List<String>) document.get("followers");
+                    if (followers != null && !followers.isEmpty()) {
+                        action.run(followers);
+                    }
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "Could not read followers of " + author, e));
+    }
+
+    /**
+     * Commits the inbox writes in batches of at most MAX_BATCH_WRITES
+     * @param ops
+     *      the writes to commit
+     * @return
+     *      the commit of every batch
+     */
+    private List<Task<Void>> commit(List<BatchOp> ops) {
+        ArrayList<Task<Void>> commits = new ArrayList<>();
+        for (List<BatchOp> group : FeedManager.chunk(ops, MAX_BATCH_WRITES)) {
+            WriteBatch batch = db.batch();
+            for (BatchOp op : group) {
+                if (op.entry == null) {
+                    batch.delete(inboxOf(db, op.owner).document(op.moodId));
+                } else {
+                    batch.set(inboxOf(db, op.owner).document(op.moodId), op.entry);
+                }
+            }
+            commits.add(batch.commit()
+                    .addOnSuccessListener(aVoid -> Log.d(TAG, "Wrote " + group.size() + " inbox entries"))
+                    .addOnFailureListener(e -> Log.e(TAG, "Failed to write inbox entries", e)));
+        }
+        return commits;
+    }
+
+    /**
+     * Runs with the followers of a user
+     */
+    private interface FollowersAction {
+        void run(List<String> followers);
+    }
+
+    /**
+     * A single inbox write, a delete when entry is null
+     */
+    private static class BatchOp {
+        private final String owner;
+        private final String moodId;
+        private final Map<String, Object> entry;
+
+        BatchOp(String owner, String moodId, Map<String, Object> entry) {
+            this.owner = owner;
+            this.moodId = moodId;
+            this.entry = entry;
+        }
+    }
+}
@@ -1,29 +1,51 @@
 package com.example.androidproject;
 
-import android.location.Location;
-import android.location.LocationManager;
-import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 
-import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * FeedManager is a utility class responsible for managing following data in Firestore.
  * It provides methods to fetch, store, and manipulate mood entries for a specific user.
  */
 public class FeedManager {
+    private static final String TAG = "FeedManager";
+    // Firestore allows at most 30 values in a single whereIn filter
+    public static final int WHERE_IN_LIMIT = 30;
+    // How many whereIn chunk queries may be running at the same time
+    public static final int MAX_CONCURRENT_CHUNKS = 4;
+
+    // Whether fetchFeed uses the batched whereIn path or one query per followed user
+    private static boolean batchedFetch = true;
+    // Whether feed pagers also read the moods that have no "timestamp" field yet. Queries ordered
+    // by timestamp leave those out until MoodSchemaMigrator has rewritten them, which each author's
+    // own device does, so this can be turned off once every author has been migrated.
+    private static boolean legacyFallback = true;
+    // Timings of the most recently completed feed fetch
+    private static FetchTimings lastFetchTimings;
+
+    // Identical following list and feed reads running at the same time share one request
+    private static final SingleFlight<ArrayList<String>> followingFlights = new SingleFlight<>();
+    private static final SingleFlight<ArrayList<MoodState>> feedFlights = new SingleFlight<>();
+    // Streaming feed fetches that are still running, by following list. Only touched on the main thread.
+    private static final HashMap<String, FeedStream> feedStreams = new HashMap<>();
+
     private FirebaseFirestore db;
 
     public FeedManager() {
@@ -31,88 +53,717 @@ public class FeedManager {
     }
 
     /**
-     * Fetches the following list for a user from the "moods" collection.
+     * Chooses between the batched whereIn fetch and the one query per user fetch
+     * @param enabled
+     *      true to use batched whereIn queries
+     */
+    public static void setBatchedFetch(boolean enabled) {
+        batchedFetch = enabled;
+    }
+
+    /**
+     * Returns if fetchFeed is currently using batched whereIn queries
+     * @return
+     *      true if batched fetch is enabled
+     */
+    public static boolean isBatchedFetch() {
+        return batchedFetch;
+    }
+
+    /**
+     * Chooses whether feed pagers also read moods written before the "timestamp" field
+     * @param enabled
+     *      true to page in legacy moods after the stamped ones
+     */
+    public static void setLegacyFallback(boolean enabled) {
+        legacyFallback = enabled;
+    }
+
+    /**
+     * Gets the timings recorded by the most recently completed feed fetch
+     * @return
+     *      the timings, or null if no fetch has completed yet
+     */
+    public static FetchTimings getLastFetchTimings() {
+        return lastFetchTimings;
+    }
+
+    /**
+     * Fetches the public moods of every user in the following list from the "moods" collection.
+     * The feed is returned newest first.
+     * Callers asking for the same following list while a fetch is running share that fetch.
      *
      * @param following The following list of the user.
      * @param callback  The callback to handle the result.
      */
     public void fetchFeed(ArrayList<String> following, FeedCallback callback) {
-        ArrayList<MoodState> feed = new ArrayList<>();
+        feedFlights.run(followingKey(following), () -> {
+            TaskCompletionSource<ArrayList<MoodState>> source = new TaskCompletionSource<>();
+            fetchFeedMerged(following, merger -> source.setResult(merger.drain()));
+            return source.getTask();
+        }).addOnSuccessListener(feed -> callback.onCallback(new ArrayList<>(feed)));
+    }
+
+    /**
+     * Gets the feed of a user through the shared FeedCache.
+     * The last cached feed is handed over straight away, marked stale since the following list it
+     * was built from is not confirmed yet. Then the following list is read and the callback runs
+     * again with the current feed, fetched first if it was stale, missing or built from a different
+     * following list. On a miss the feed is streamed, so the callback also runs with the sorted
+     * moods received so far. Every call gets its own copy of the lists.
+     *
+     * @param username The user whose feed is shown.
+     * @param callback Runs with isStale set until the current and complete feed is handed over, once.
+     */
+    public void fetchFeedCached(String username, CachedFeedCallback callback) {
+        FeedCache.Entry shown = FeedCache.peek(username);
+        if (shown != null) {
+            callback.onFeed(new ArrayList<>(shown.following), new ArrayList<>(shown.feed), true);
+        }
+
+        getFollowing(username, following -> {
+            FeedCache.Entry entry = FeedCache.lookup(username, following);
+            if (entry == null) {
+                fetchMissing(username, following, callback);
+            } else if (entry.isStale()) {
+                if (entry != shown) {
+                    callback.onFeed(new ArrayList<>(entry.following), new ArrayList<>(entry.feed), true);
+                }
+                revalidate(username, following, entry, callback);
+            } else {
+                callback.onFeed(new ArrayList<>(entry.following), new ArrayList<>(entry.feed), false);
+            }
+        });
+    }
+
+    /**
+     * Gets the newest moods of a user's feed through the shared FeedCache, for screens that only
+     * show the head of the feed.
+     * Cached moods are handed over straight away, marked stale until the following list is read.
+     * A cached full feed is used when it is current. Otherwise the first page of a FeedPager is
+     * loaded, which reads at most count moods per source query, and only that page is cached.
+     *
+     * @param username The user whose feed is shown.
+     * @param count    How many of the newest moods are shown.
+     * @param callback Runs with isStale set until the current moods are handed over, once.
+     */
+    public void fetchRecentCached(String username, int count, CachedFeedCallback callback) {
+        FeedCache.Entry shown = FeedCache.peekHead(username, count);
+        if (shown != null) {
+            callback.onFeed(new ArrayList<>(shown.following), head(shown.feed, count), true);
+        }
+
+        getFollowing(username, following -> {
+            FeedCache.Entry entry = FeedCache.lookupHead(username, following, count);
+            if (entry != null && !entry.isStale()) {
+                callback.onFeed(new ArrayList<>(entry.following), head(entry.feed, count), false);
+                return;
+            }
+            if (entry != null && entry != shown) {
+                callback.onFeed(new ArrayList<>(entry.following), head(entry.feed, count), true);
+            }
+            createFeedPager(username, following, count).loadNextPage(new FeedPager.PageCallback() {
+                @Override
+                public void onPartialPage(ArrayList<MoodState> preview) {
+                    callback.onFeed(new ArrayList<>(following), preview, true);
+                }
+
+                @Override
+                public void onPage(ArrayList<MoodState> page, boolean hasMore) {
+                    FeedCache.Entry fresh = FeedCache.putHead(username, following, page, hasMore);
+                    FeedCache.logStats();
+                    callback.onFeed(new ArrayList<>(fresh.following), new ArrayList<>(fresh.feed), false);
+                }
+            });
+        });
+    }
+
+    /**
+     * Copies the newest moods of a feed
+     */
+    private static ArrayList<MoodState> head(List<MoodState> feed, int count) {
+        return new ArrayList<>(feed.subList(0, Math.min(count, feed.size())));
+    }
+
+    /**
+     * Gets a feed that is not cached yet.
+     * If every followed user is mirrored in the local store, the stored feed is shown first and only
+     * the changes since the last sync are read. Otherwise the feed is streamed from Firestore and the
+     * store is filled in the background for next time.
+     *
+     * @param username  The user whose feed is fetched.
+     * @param following The current following list of the user.
+     * @param callback  Receives the partial feeds and then the complete feed.
+     */
+    private void fetchMissing(String username, ArrayList<String> following, CachedFeedCallback callback) {
+        LocalMoodStore store = LocalMoodStore.getInstance();
+        if (store == null) {
+            fetchMissingFromServer(username, following, callback);
+            return;
+        }
+        MoodSyncEngine syncEngine = new MoodSyncEngine(store);
+        store.loadFeed(following, 0, local -> {
+            if (local == null) {
+                syncMissing(username, following, syncEngine, store, callback);
+                return;
+            }
+            callback.onFeed(new ArrayList<>(following), local, true);
+            syncEngine.syncFeed(following).addOnCompleteListener(task -> {
+                if (!task.isSuccessful()) {
+                    // Offline, the stored feed is the best there is but it is not cached as fresh
+                    Log.w(TAG, "Could not sync feed", task.getException());
+                    callback.onFeed(new ArrayList<>(following), new ArrayList<>(local), false);
+                    return;
+                }
+                store.loadFeed(following, 0, synced -> {
+                    FeedCache.Entry fresh = FeedCache.put(username, following, synced);
+                    FeedCache.logStats();
+                    callback.onFeed(new ArrayList<>(fresh.following), new ArrayList<>(fresh.feed), false);
+                });
+            });
+        });
+    }
+
+    /**
+     * Syncs a feed that was never stored, handing over the sorted moods of every chunk the sync
+     * reads so the feed is read from the server once.
+     * Falls back to streaming the feed from the server when the sync fails.
+     *
+     * @param username   The user whose feed is fetched.
+     * @param following  The current following list of the user.
+     * @param syncEngine The sync engine of the local store.
+     * @param store      The local store the sync writes to.
+     * @param callback   Receives the partial feeds and then the complete feed.
+     */
+    private void syncMissing(String username, ArrayList<String> following, MoodSyncEngine syncEngine,
+                             LocalMoodStore store, CachedFeedCallback callback) {
+        ArrayList<MoodState> received = new ArrayList<>();
+        syncEngine.syncFeed(following, batch -> {
+            batch.sort(MoodState.NEWEST_FIRST);
+            ArrayList<MoodState> merged = new MoodMerger(Arrays.asList(received, batch)).drain();
+            received.clear();
+            received.addAll(merged);
+            callback.onFeed(new ArrayList<>(following), new ArrayList<>(received), true);
+        }).addOnCompleteListener(task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Could not sync feed, reading it from the server", task.getException());
+                fetchMissingFromServer(username, following, callback);
+                return;
+            }
+            store.loadFeed(following, 0, synced -> {
+                if (synced == null) {
+                    // A user was not stored after all, so read the feed the old way
+                    fetchMissingFromServer(username, following, callback);
+                    return;
+                }
+                FeedCache.Entry fresh = FeedCache.put(username, following, synced);
+                FeedCache.logStats();
+                callback.onFeed(new ArrayList<>(fresh.following), new ArrayList<>(fresh.feed), false);
+            });
+        });
+    }
+
+    /**
+     * Streams a feed that is not cached yet, handing over the sorted moods received so far after
+     * every batch, and stores the complete feed in the cache.
+     *
+     * @param username  The user whose feed is fetched.
+     * @param following The current following list of the user.
+     * @param callback  Receives the partial feeds and then the complete feed.
+     */
+    private void fetchMissingFromServer(String username, ArrayList<String> following,
+                                        CachedFeedCallback callback) {
+        ArrayList<MoodState> received = new ArrayList<>();
+        fetchFeedStreaming(following, new FeedStreamCallback() {
+            @Override
+            public void onBatch(ArrayList<MoodState> batch) {
+                ArrayList<MoodState> merged = new MoodMerger(Arrays.asList(received, batch)).drain();
+                received.clear();
+                received.addAll(merged);
+                callback.onFeed(new ArrayList<>(following), new ArrayList<>(received), true);
+            }
+
+            @Override
+            public void onComplete(MoodMerger feed, boolean complete) {
+                ArrayList<MoodState> moods = feed.drain();
+                if (!complete) {
+                    // Handed over as the best there is, but not cached as fresh
+                    callback.onFeed(new ArrayList<>(following), moods, false);
+                    return;
+                }
+                FeedCache.Entry fresh = FeedCache.put(username, following, moods);
+                FeedCache.logStats();
+                callback.onFeed(new ArrayList<>(fresh.following), new ArrayList<>(fresh.feed), false);
+            }
+        });
+    }
+
+    /**
+     * Brings a stale feed up to date and stores it in the cache.
+     * With a local store only the changes since the last sync are read, like fetchMissing does.
+     * Without one the feed is read again from the server. A feed is only cached when every read
+     * succeeded, otherwise the waiters get the stale feed and the next caller tries again.
+     * Callers that ask while the same stale entry is being refreshed wait for that fetch.
+     *
+     * @param username  The user whose feed is fetched.
+     * @param following The current following list of the user.
+     * @param stale     The stale entry being replaced.
+     * @param callback  Receives the fresh feed.
+     */
+    private void revalidate(String username, ArrayList<String> following, FeedCache.Entry stale,
+                            CachedFeedCallback callback) {
+        stale.waiters.add(callback);
+        if (stale.revalidating) {
+            return;
+        }
+        stale.revalidating = true;
+
+        LocalMoodStore store = LocalMoodStore.getInstance();
+        if (store != null) {
+            new MoodSyncEngine(store).syncFeed(following).addOnCompleteListener(task -> {
+                if (!task.isSuccessful()) {
+                    Log.w(TAG, "Could not sync stale feed", task.getException());
+                    finishRevalidate(stale, following, stale.feed);
+                    return;
+                }
+                store.loadFeed(following, 0, synced -> {
+                    if (synced == null) {
+                        finishRevalidate(stale, following, stale.feed);
+                        return;
+                    }
+                    FeedCache.put(username, following, synced);
+                    FeedCache.logStats();
+                    finishRevalidate(stale, following, synced);
+                });
+            });
+            return;
+        }
+
+        fetchFeedStreaming(following, new FeedStreamCallback() {
+            @Override
+            public void onBatch(ArrayList<MoodState> batch) {
+                // Only the complete feed replaces the stale one
+            }
+
+            @Override
+            public void onComplete(MoodMerger feed, boolean complete) {
+                if (!complete) {
+                    finishRevalidate(stale, following, stale.feed);
+                    return;
+                }
+                ArrayList<MoodState> moods = feed.drain();
+                FeedCache.put(username, following, moods);
+                FeedCache.logStats();
+                finishRevalidate(stale, following, moods);
+            }
+        });
+    }
+
+    /**
+     * Hands the result of a revalidation to everyone waiting for it
+     *
+     * @param stale     The stale entry that was refreshed.
+     * @param following The current following list of the user.
+     * @param feed      The fresh feed, or the stale one if it could not be refreshed.
+     */
+    private static void finishRevalidate(FeedCache.Entry stale, ArrayList<String> following,
+                                         List<MoodState> feed) {
+        for (CachedFeedCallback waiter : stale.waiters) {
+            waiter.onFeed(new ArrayList<>(following), new ArrayList<>(feed), false);
+        }
+        stale.waiters.clear();
+        // A failed refresh is tried again by the next caller
+        stale.revalidating = false;
+    }
+
+    /**
+     * Fetches the public moods of every user in the following list as a lazy newest first merge.
+     * Each query's moods are sorted newest first as they arrive, so the per query lists only need to
+     * be merged rather than sorted as a whole.
+     *
+     * @param following The following list of the user.
+     * @param callback  The callback to handle the merged feed.
+     */
+    public void fetchFeedMerged(ArrayList<String> following, MergedFeedCallback callback) {
+        startFeedFetch(following, new FeedStreamCallback() {
+            @Override
+            public void onBatch(ArrayList<MoodState> batch) {
+                // Only the merged result is needed
+            }
+
+            @Override
+            public void onComplete(MoodMerger feed, boolean complete) {
+                callback.onCallback(feed);
+            }
+        });
+    }
+
+    /**
+     * Fetches the feed and hands over the moods of each query as soon as that query finishes,
+     * so the first moods can be shown before a slow query completes.
+     * Callers asking for the same following list while a fetch is running join it and are first
+     * given the batches that already arrived.
+     *
+     * @param following The following list of the user.
+     * @param callback  Receives every batch, newest first within the batch, then the merged feed.
+     */
+    public void fetchFeedStreaming(ArrayList<String> following, FeedStreamCallback callback) {
+        String key = followingKey(following);
+        FeedStream running = feedStreams.get(key);
+        if (running != null) {
+            running.join(callback);
+            return;
+        }
+
+        FeedStream stream = new FeedStream();
+        stream.join(callback);
+        feedStreams.put(key, stream);
+        startFeedFetch(following, new FeedStreamCallback() {
+            @Override
+            public void onBatch(ArrayList<MoodState> batch) {
+                stream.batch(batch);
+            }
+
+            @Override
+            public void onComplete(MoodMerger feed, boolean complete) {
+                feedStreams.remove(key);
+                stream.complete(complete);
+            }
+        });
+    }
+
+    /**
+     * Starts the batched or the per user fetch depending on the current setting
+     *
+     * @param following The following list of the user.
+     * @param sink      Receives every batch and the merged feed.
+     */
+    private void startFeedFetch(ArrayList<String> following, FeedStreamCallback sink) {
+        if (batchedFetch) {
+            fetchFeedBatched(following, sink);
+        } else {
+            fetchFeedPerUser(following, sink);
+        }
+    }
+
+    /**
+     * Builds a key that is the same for any order of the same following list
+     *
+     * @param following The following list of the user.
+     * @return The sorted list as a string.
+     */
+    private static String followingKey(List<String> following) {
+        ArrayList<String> key = new ArrayList<>(following);
+        Collections.sort(key);
+        return key.toString();
+    }
+
+    /**
+     * Fetches the feed by splitting the following list into whereIn chunks.
+     * At most MAX_CONCURRENT_CHUNKS queries are in flight at once, the rest wait for a free slot.
+     *
+     * @param following The following list of the user.
+     * @param callback  Receives the moods of each chunk and then the merged feed.
+     */
+    private void fetchFeedBatched(ArrayList<String> following, FeedStreamCallback callback) {
+        // One newest first list per chunk query
+        ArrayList<ArrayList<MoodState>> streams = new ArrayList<>();
+
+        if (following.isEmpty()) {
+            callback.onComplete(new MoodMerger(streams), true); // Return empty feed if no users are followed
+            return;
+        }
+
+        List<List<String>> chunks = chunk(following, WHERE_IN_LIMIT);
+        FetchTimings timings = new FetchTimings("batched", SystemClock.elapsedRealtime());
+        // Index of the next chunk to start and the number of chunks that have finished
+        final int[] nextChunk = {0};
+        final int[] completedChunks = {0};
+        final boolean[] failed = {false};
+
+        // Runs a chunk query, then starts the next waiting chunk once it finishes
+        Runnable[] startNext = new Runnable[1];
+        startNext[0] = () -> {
+            if (nextChunk[0] >= chunks.size()) {
+                return;
+            }
+            List<String> users = chunks.get(nextChunk[0]++);
+            long start = SystemClock.elapsedRealtime();
+            db.collection("Moods")
+                    .whereIn("user", users) // Filter moods by every user in the chunk
+                    .whereEqualTo("visibility", Boolean.TRUE) // Filter out private moods
+                    .get()
+                    .addOnCompleteListener(task -> {
+                        timings.addQuery(SystemClock.elapsedRealtime() - start);
+                        if (task.isSuccessful()) {
+                            ArrayList<MoodState> stream = new ArrayList<>(task.getResult().size());
+                            for (QueryDocumentSnapshot document : task.getResult()) {
+                                stream.add(MoodStateCodec.decode(document));
+                            }
+                            // Sorted here rather than by the query so moods without a timestamp field are kept
+                            stream.sort(MoodState.NEWEST_FIRST);
+                            streams.add(stream);
+                            if (!stream.isEmpty()) {
+                                timings.firstMoods(SystemClock.elapsedRealtime());
+                                callback.onBatch(stream);
+                            }
+                        } else {
+                            Log.w(TAG, "Error fetching feed for users: " + users, task.getException());
+                            failed[0] = true;
+                        }
+
+                        completedChunks[0]++;
+                        if (completedChunks[0] == chunks.size()) {
+                            finishFetch(timings);
+                            callback.onComplete(new MoodMerger(streams), !failed[0]); // Call the callback even if some chunks fail
+                        } else {
+                            startNext[0].run();
+                        }
+                    });
+        };
+
+        int initial = Math.min(MAX_CONCURRENT_CHUNKS, chunks.size());
+        for (int i = 0; i < initial; i++) {
+            startNext[0].run();
+        }
+    }
+
+    /**
+     * Fetches the feed with one query for every followed user.
+     *
+     * @param following The following list of the user.
+     * @param callback  Receives the moods of each user and then the merged feed.
+     */
+    private void fetchFeedPerUser(ArrayList<String> following, FeedStreamCallback callback) {
+        // One newest first list per user query
+        ArrayList<ArrayList<MoodState>> streams = new ArrayList<>();
         int totalUsers = following.size();
         final int[] completedUsers = {0}; // Counter for completed Firestore queries
+        final boolean[] failed = {false};
 
         if (totalUsers == 0) {
-            callback.onCallback(feed); // Return empty feed if no users are followed
+            callback.onComplete(new MoodMerger(streams), true); // Return empty feed if no users are followed
             return;
         }
 
+        FetchTimings timings = new FetchTimings("per-user", SystemClock.elapsedRealtime());
         for (String user : following) {
+            long start = SystemClock.elapsedRealtime();
             db.collection("Moods")
                     .whereEqualTo("user", user) // Filter moods by the user ID
                     .whereEqualTo("visibility",Boolean.TRUE)// Filter out private moods
                     .get()
                     .addOnSuccessListener(queryDocumentSnapshots -> {
+                        timings.addQuery(SystemClock.elapsedRealtime() - start);
+                        ArrayList<MoodState> stream = new ArrayList<>(queryDocumentSnapshots.size());
                         for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                            MoodState moodState = documentToMoodState(document);
-                            feed.add(moodState);
+                            MoodState moodState = MoodStateCodec.decode(document);
+                            stream.add(moodState);
+                        }
+                        // Sorted here rather than by the query so moods without a timestamp field are kept
+                        stream.sort(MoodState.NEWEST_FIRST);
+                        streams.add(stream);
+                        if (!stream.isEmpty()) {
+                            timings.firstMoods(SystemClock.elapsedRealtime());
+                            callback.onBatch(stream);
                         }
 
                         completedUsers[0]++;
                         if (completedUsers[0] == totalUsers) {
-                            callback.onCallback(feed); // Call the callback when all queries are done
+                            finishFetch(timings);
+                            callback.onComplete(new MoodMerger(streams), !failed[0]); // Call the callback when all queries are done
                         }
                     })
                     .addOnFailureListener(e -> {
-                        Log.w("FeedManager", "Error fetching feed for user: " + user, e);
+                        timings.addQuery(SystemClock.elapsedRealtime() - start);
+                        Log.w(TAG, "Error fetching feed for user: " + user, e);
+                        failed[0] = true;
                         completedUsers[0]++;
                         if (completedUsers[0] == totalUsers) {
-                            callback.onCallback(feed); // Call the callback even if some queries fail
+                            finishFetch(timings);
+                            callback.onComplete(new MoodMerger(streams), false); // Call the callback even if some queries fail
                         }
                     });
         }
     }
 
     /**
-     * Converts a Firestore document to a MoodState object.
+     * Creates a pager that loads the feed newest first, one page at a time.
+     * Moods are ordered by their "timestamp" field. While the legacy fallback is on, moods written
+     * before that field existed are read once the stamped moods run out and shown after them.
+     *
+     * @param following The following list of the user.
+     * @param pageSize  How many moods each page holds.
+     * @return A pager positioned before the newest mood.
+     */
+    public FeedPager createPager(List<String> following, int pageSize) {
+        return FeedPager.forFollowing(db, following, legacyFallback, pageSize);
+    }
+
+    /**
+     * Creates a pager over the feed inbox that fan-out-on-write fills for the user.
+     * Reading the inbox takes a single query no matter how many users are followed.
      *
-     * @param document The Firestore document representing a mood.
-     * @return The MoodState object.
+     * @param username The user whose inbox is read.
+     * @param pageSize How many moods each page holds.
+     * @return A pager positioned before the newest mood.
      */
-    private MoodState documentToMoodState(QueryDocumentSnapshot document) {
-        MoodState moodState = new MoodState(document.getString("mood"));
-        moodState.setUser(document.getString("user"));
-        moodState.setId(document.getId()); // Use the document ID as the mood ID
-        moodState.setReason(document.getString("reason"));
+    public FeedPager createInboxPager(String username, int pageSize) {
+        return new FeedPager(inboxQueries(db, username), pageSize);
+    }
 
-        // Convert dayTime map to LocalDateTime
-        Map<String, Object> dayTimeMap = (Map<String, Object>) document.get("dayTime");
-        if (dayTimeMap != null) {
-            LocalDateTime dayTime = mapToLocalDateTime(dayTimeMap);
-            moodState.setDayTime(dayTime);
+    /**
+     * Creates the pager the feed screens should use: the inbox once it has been backfilled,
+     * otherwise the moods of every followed user. getFollowing finds out if the inbox is ready.
+     *
+     * @param username  The user whose feed is shown.
+     * @param following The following list of the user.
+     * @param pageSize  How many moods each page holds.
+     * @return A pager positioned before the newest mood.
+     */
+    public FeedPager createFeedPager(String username, List<String> following, int pageSize) {
+        if (FeedInbox.isReady(username)) {
+            return createInboxPager(username, pageSize);
         }
+        return createPager(following, pageSize);
+    }
 
-        // Handle nullable fields
-        if (document.getString("image") != null) {
-            moodState.setImage(Uri.parse(document.getString("image")));
+    /**
+     * Creates a live view of the head of the feed that follows changes as they happen.
+     * Only moods at or after sinceMillis are listened to, so the listeners cover the moods already
+     * on screen plus anything newer instead of the whole feed.
+     *
+     * @param username    The user whose feed is shown.
+     * @param following   The following list of the user.
+     * @param sinceMillis The timestamp of the oldest mood the live window covers.
+     * @param moods       The shown moods, newest first. The live feed keeps this list up to date.
+     * @return A live feed that starts listening once started.
+     */
+    public LiveFeed createLiveFeed(String username, List<String> following, long sinceMillis,
+                                   ArrayList<MoodState> moods) {
+        List<Query> sources = FeedInbox.isReady(username)
+                ? inboxQueries(db, username)
+                : followingQueries(db, following);
+        ArrayList<Query> windows = new ArrayList<>(sources.size());
+        for (Query source : sources) {
+            windows.add(source.whereGreaterThanOrEqualTo("timestamp", sinceMillis));
         }
+        return new LiveFeed(windows, sinceMillis, moods);
+    }
 
-        // Handles location
-        // Checks that the location isn't null
-        if (document.get("location") != null) {
-            // Gets the longitude and latitude
-            Double latitude = document.get("location.latitude", Double.class);
-            Double longitude = document.get("location.longitude", Double.class);
-            // makes the location
-            Location location = new Location(LocationManager.GPS_PROVIDER);
-            // Set sea level so that there is no invocation error
-            location.setMslAltitudeAccuracyMeters(0);
-            location.setMslAltitudeMeters(0);
-            location.setLatitude(latitude);
-            location.setLongitude(longitude);
-            moodState.setLocation(location);
+    /**
+     * Builds one newest first query per whereIn chunk of the following list
+     *
+     * @param db        The firestore instance to query.
+     * @param following The users whose public moods make up the feed.
+     * @return The queries, one per chunk of at most WHERE_IN_LIMIT users.
+     */
+    static List<Query> followingQueries(FirebaseFirestore db, List<String> following) {
+        ArrayList<Query> sources = new ArrayList<>();
+        for (List<String> users : chunk(following, WHERE_IN_LIMIT)) {
+            sources.add(db.collection("Moods")
+                    .whereIn("user", users)
+                    .whereEqualTo("visibility", Boolean.TRUE)
+                    .orderBy("timestamp", Query.Direction.DESCENDING));
         }
+        return sources;
+    }
 
-        return moodState;
+    /**
+     * Builds one query per whereIn chunk of the following list for the moods written before the
+     * "timestamp" field. Firestore leaves documents without the field out of queries ordered by it
+     * and cannot filter on a missing field, so these read the chunk unordered and the caller keeps
+     * the documents isLegacy accepts.
+     *
+     * @param db        The firestore instance to query.
+     * @param following The users whose public moods make up the feed.
+     * @return The queries, one per chunk of at most WHERE_IN_LIMIT users.
+     */
+    static List<Query> legacyQueries(FirebaseFirestore db, List<String> following) {
+        ArrayList<Query> sources = new ArrayList<>();
+        for (List<String> users : chunk(following, WHERE_IN_LIMIT)) {
+            sources.add(db.collection("Moods")
+                    .whereIn("user", users)
+                    .whereEqualTo("visibility", Boolean.TRUE));
+        }
+        return sources;
+    }
+
+    /**
+     * Returns if a mood document predates the "timestamp" field
+     *
+     * @param document The mood document.
+     * @return True if queries ordered by timestamp leave the document out.
+     */
+    static boolean isLegacy(DocumentSnapshot document) {
+        return !document.contains(MoodStateCodec.FIELD_TIMESTAMP);
+    }
+
+    /**
+     * Builds the newest first query over a user's feed inbox.
+     * Inbox entries are only written by fan-out-on-write, which always stores the timestamp.
+     *
+     * @param db       The firestore instance to query.
+     * @param username The owner of the inbox.
+     * @return A list holding the single inbox query.
+     */
+    static List<Query> inboxQueries(FirebaseFirestore db, String username) {
+        ArrayList<Query> sources = new ArrayList<>();
+        sources.add(FeedInbox.inboxOf(db, username).orderBy("timestamp", Query.Direction.DESCENDING));
+        return sources;
+    }
+
+    /**
+     * Fetches the newest moods of a user's feed inbox with a single query.
+     *
+     * @param username The user whose inbox is read.
+     * @param limit    The largest number of moods to return.
+     * @param callback The callback to handle the result, newest first.
+     */
+    public void fetchInboxFeed(String username, int limit, FeedCallback callback) {
+        FeedInbox.inboxOf(db, username)
+                .orderBy("timestamp", Query.Direction.DESCENDING)
+                .limit(limit)
+                .get()
+                .addOnSuccessListener(queryDocumentSnapshots -> {
+                    ArrayList<MoodState> feed = new ArrayList<>(queryDocumentSnapshots.size());
+                    for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
+                        feed.add(MoodStateCodec.decode(document));
+                    }
+                    callback.onCallback(feed);
+                })
+                .addOnFailureListener(e -> {
+                    Log.w(TAG, "Error fetching feed inbox for user: " + username, e);
+                    callback.onCallback(new ArrayList<>());
+                });
+    }
+
+    /**
+     * Splits a list into consecutive sublists of at most size elements
+     * @param list
+     *      the list to split
+     * @param size
+     *      the largest allowed chunk size
+     * @return
+     *      the chunks in their original order
+     */
+    static <T> List<List<T>> chunk(List<T> list, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += size) {
+            chunks.add(new ArrayList<>(list.subList(i, Math.min(i + size, list.size()))));
+        }
+        return chunks;
+    }
+
+    /**
+     * Stores and logs the timings of a feed fetch once every query is done
+     * @param timings
+     *      the timings of the finished fetch
+     */
+    private static void finishFetch(FetchTimings timings) {
+        timings.finish(SystemClock.elapsedRealtime());
+        lastFetchTimings = timings;
+        Log.d(TAG, timings.toString());
     }
 
     /**
@@ -123,58 +774,79 @@ public class FeedManager {
     }
 
     /**
-     * Converts a dayTime map to a LocalDateTime object.
-     *
-     * @param dayTimeMap The map representing the dayTime.
-     * @return The LocalDateTime object.
+     * Callback interface for fetching the feed as a lazy newest first merge.
      */
-    private LocalDateTime mapToLocalDateTime(Map<String, Object> dayTimeMap) {
-        // Convert Long values to int
-        int year = ((Long) dayTimeMap.get("year")).intValue();
-        int monthValue = ((Long) dayTimeMap.get("monthValue")).intValue();
-        int dayOfMonth = ((Long) dayTimeMap.get("dayOfMonth")).intValue();
-        int hour = ((Long) dayTimeMap.get("hour")).intValue();
-        int minute = ((Long) dayTimeMap.get("minute")).intValue();
-        int second = ((Long) dayTimeMap.get("second")).intValue();
-        int nano = ((Long) dayTimeMap.get("nano")).intValue();
-
-        return LocalDateTime.of(year, monthValue, dayOfMonth, hour, minute, second, nano);
+    public interface MergedFeedCallback {
+        void onCallback(MoodMerger feed);
     }
 
     /**
      * Retrieves the following array for a specific user as an ArrayList of a string.
+     * Callers asking for the same user while a read is running share that read.
      *
      * @param username The username of the user whose following list needs to be retrieved.
      * @param callback The callback to handle the result.
      */
     public void getFollowing(String username, FollowingCallback callback) {
+        followingFlights.run(username, () -> loadFollowing(username))
+                .addOnSuccessListener(following -> callback.onCallback(new ArrayList<>(following)));
+    }
+
+    /**
+     * Reads the following list of a user. Errors give an empty list so callers always get a result.
+     *
+     * @param username The username of the user.
+     * @return A Task that completes with the following list.
+     */
+    private Task<ArrayList<String>> loadFollowing(String username) {
+        TaskCompletionSource<ArrayList<String>> source = new TaskCompletionSource<>();
         DocumentReference userRef = db.collection("Users").document(username);
 
-        userRef.get().addOnCompleteListener(new OnCompleteListener<DocumentSnapshot>() {
-            /**
-             * Runs code once the following list has been found
-             * @param task
-             */
-            @Override
-            public void onComplete(@NonNull Task<DocumentSnapshot> task) {
-                if (task.isSuccessful()) {
-                    DocumentSnapshot document = task.getResult();
-                    if (document != null && document.exists()) {
-                        List<String> following = (List<String>) document.get("following");
-                        if (following != null) {
-                            callback.onCallback(new ArrayList<>(following));
+        // The following list rarely changes, so the cached copy is used and refreshed in the background
+        Database.getInstance().read(userRef, Database.ReadPolicy.CACHE_FIRST, "following")
+                .addOnCompleteListener(new OnCompleteListener<DocumentSnapshot>() {
+                    /**
+                     * Runs code once the following list has been found
+                     * @param task
+                     */
+                    @Override
+                    public void onComplete(@NonNull Task<DocumentSnapshot> task) {
+                        if (task.isSuccessful()) {
+                            DocumentSnapshot document = task.getResult();
+                            if (document != null && document.exists()) {
+                                List<String> following = (List<String>) document.get("following");
+                                if (following == null) {
+                                    following = new ArrayList<>(); // Return empty list if "following" field is null
+                                }
+                                FeedInbox.checkReady(username, document, following);
+                                source.setResult(new ArrayList<>(following));
+                            } else {
+                                source.setResult(new ArrayList<>()); // Return empty list if document doesn't exist
+                            }
                         } else {
-                            callback.onCallback(new ArrayList<>()); // Return empty list if "following" field is null
+                            Log.w("FeedManager", "Error fetching following list", task.getException());
+                            source.setResult(new ArrayList<>()); // Return empty list on error
                         }
-                    } else {
-                        callback.onCallback(new ArrayList<>()); // Return empty list if document doesn't exist
                     }
-                } else {
-                    Log.w("FeedManager", "Error fetching following list", task.getException());
-                    callback.onCallback(new ArrayList<>()); // Return empty list on error
-                }
-            }
-        });
+                });
+        return source.getTask();
+    }
+
+    /**
+     * Callback interface for receiving the feed one query at a time.
+     * onComplete is told if every query succeeded, a feed missing the moods of a failed query must
+     * not be cached as current.
+     */
+    public interface FeedStreamCallback {
+        void onBatch(ArrayList<MoodState> batch);
+        void onComplete(MoodMerger feed, boolean complete);
+    }
+
+    /**
+     * Callback interface for receiving a feed from the cache.
+     */
+    public interface CachedFeedCallback {
+        void onFeed(ArrayList<String> following, ArrayList<MoodState> feed, boolean isStale);
     }
 
     /**
@@ -183,4 +855,105 @@ public class FeedManager {
     public interface FollowingCallback {
         void onCallback(ArrayList<String> following);
     }
-}
\ No newline at end of file
+
+    /**
+     * Records how long each query of a feed fetch took so the batched and per-user paths can be compared
+     */
+    public static class FetchTimings {
+        private final String mode;
+        private final long startedAt;
+        private final ArrayList<Long> queryLatencies = new ArrayList<>();
+        private long firstMoodsMillis = -1;
+        private long totalMillis;
+
+        FetchTimings(String mode, long startedAt) {
+            this.mode = mode;
+            this.startedAt = startedAt;
+        }
+
+        void addQuery(long millis) {
+            queryLatencies.add(millis);
+        }
+
+        void firstMoods(long arrivedAt) {
+            if (firstMoodsMillis < 0) {
+                firstMoodsMillis = arrivedAt - startedAt;
+            }
+        }
+
+        void finish(long finishedAt) {
+            totalMillis = finishedAt - startedAt;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public List<Long> getQueryLatencies() {
+            return Collections.unmodifiableList(queryLatencies);
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        /**
+         * Gets how long it took until the first moods could be shown
+         * @return
+         *      the time to the first non empty query in milliseconds, or -1 if the feed was empty
+         */
+        public long getFirstMoodsMillis() {
+            return firstMoodsMillis;
+        }
+
+        /**
+         * Gets the slowest single query of the fetch
+         * @return
+         *      the latency in milliseconds
+         */
+        public long getMaxQueryMillis() {
+            long max = 0;
+            for (long latency : queryLatencies) {
+                max = Math.max(max, latency);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "Feed fetch (" + mode + "): " + queryLatencies.size() + " queries, first moods "
+                    + firstMoodsMillis + "ms, total " + totalMillis + "ms, slowest " + getMaxQueryMillis()
+                    + "ms, per query " + queryLatencies;
+        }
+    }
+
+    /**
+     * A streaming feed fetch that several callers can share.
+     * Batches are kept so a caller that joins late is caught up first.
+     */
+    private static class FeedStream {
+        private final ArrayList<ArrayList<MoodState>> batches = new ArrayList<>();
+        private final ArrayList<FeedStreamCallback> callbacks = new ArrayList<>();
+
+        void join(FeedStreamCallback callback) {
+            for (ArrayList<MoodState> batch : batches) {
+                callback.onBatch(new ArrayList<>(batch));
+            }
+            callbacks.add(callback);
+        }
+
+        void batch(ArrayList<MoodState> batch) {
+            batches.add(batch);
+            for (FeedStreamCallback callback : callbacks) {
+                callback.onBatch(new ArrayList<>(batch));
+            }
+        }
+
+        void complete(boolean complete) {
+            // Each caller gets its own merger since a merger can only be read once
+            for (FeedStreamCallback callback : callbacks) {
+                callback.onComplete(new MoodMerger(batches), complete);
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.example.androidproject;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the feed of a user one page at a time, newest moods first.
+ * Every source query (a whereIn chunk of the following list, or the user's feed inbox) keeps its
+ * own startAfter cursor and a small buffer, so a page is always the true newest pageSize moods
+ * that have not been shown yet.
+ * Moods written before the "timestamp" field existed are left out by the ordered queries. When
+ * legacy sources are given they are read once every source query has run dry, and shown after
+ * the stamped moods since they are older than all of them.
+ * Created through FeedManager.createFeedPager.
+ */
+public class FeedPager {
+    private static final String TAG = "FeedPager";
+
+    private final int pageSize;
+    private final ArrayList<ChunkCursor> chunks = new ArrayList<>();
+    private final List<Query> legacySources;
+    // Moods without a timestamp field, newest first, once the legacy sources have been read
+    private final ArrayDeque<MoodState> legacy = new ArrayDeque<>();
+    private boolean legacyLoaded = false;
+    private boolean loading = false;
+
+    /**
+     * Creates a pager over the given source queries
+     * @param sources
+     *      queries that each return moods ordered newest first
+     * @param pageSize
+     *      how many moods each page holds
+     */
+    FeedPager(List<Query> sources, int pageSize) {
+        this(sources, new ArrayList<>(), pageSize);
+    }
+
+    /**
+     * Creates a pager over the given source queries that ends with the legacy moods
+     * @param sources
+     *      queries that each return moods ordered newest first
+     * @param legacySources
+     *      unordered queries whose documents without a timestamp field are shown last
+     * @param pageSize
+     *      how many moods each page holds
+     */
+    FeedPager(List<Query> sources, List<Query> legacySources, int pageSize) {
+        this.pageSize = pageSize;
+        this.legacySources = legacySources;
+        for (Query source : sources) {
+            chunks.add(new ChunkCursor(source));
+        }
+    }
+
+    /**
+     * Creates a pager over the public moods of the given users
+     * @param db
+     *      the firestore instance to query
+     * @param following
+     *      the users whose public moods make up the feed
+     * @param withLegacy
+     *      true to also page in the moods that have no timestamp field yet
+     * @param pageSize
+     *      how many moods each page holds
+     * @return
+     *      a pager with one source query per whereIn chunk
+     */
+    static FeedPager forFollowing(FirebaseFirestore db, List<String> following, boolean withLegacy, int pageSize) {
+        List<Query> legacySources = withLegacy
+                ? FeedManager.legacyQueries(db, following)
+                : new ArrayList<>();
+        return new FeedPager(FeedManager.followingQueries(db, following), legacySources, pageSize);
+    }
+
+    /**
+     * Callback interface for receiving a page of the feed.
+     */
+    public interface PageCallback {
+        void onPartialPage(ArrayList<MoodState> preview);
+        void onPage(ArrayList<MoodState> page, boolean hasMore);
+    }
+
+    /**
+     * Returns if a page is currently being loaded
+     * @return
+     *      true while a page request is running
+     */
+    public boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * Returns if there are moods that have not been paged in yet
+     * @return
+     *      true if another page can be loaded
+     */
+    public boolean hasMore() {
+        for (ChunkCursor chunk : chunks) {
+            if (!chunk.exhausted || !chunk.buffer.isEmpty()) {
+                return true;
+            }
+        }
+        return !legacy.isEmpty() || (!legacyLoaded && !legacySources.isEmpty());
+    }
+
+    /**
+     * Loads the next page of the feed. Does nothing if a page is already loading.
+     * While several source queries are refilling, a sorted preview of the page is handed over
+     * after each one finishes, so rows can be shown before the slowest query is done.
+     * Moods in a preview may still move to a later page once every query has answered.
+     * @param callback
+     *      receives the previews and then the page, all in newest first order
+     */
+    public void loadNextPage(PageCallback callback) {
+        if (loading) {
+            return;
+        }
+        loading = true;
+        long startedAt = SystemClock.elapsedRealtime();
+        final long[] firstRowsMillis = {-1};
+
+        // Every chunk that could still supply part of this page needs at least pageSize buffered moods
+        ArrayList<ChunkCursor> toRefill = new ArrayList<>();
+        for (ChunkCursor chunk : chunks) {
+            if (!chunk.exhausted && chunk.buffer.size() < pageSize) {
+                toRefill.add(chunk);
+            }
+        }
+
+        if (toRefill.isEmpty()) {
+            finishPage(callback);
+            return;
+        }
+
+        final int[] nextRefill = {0};
+        final int[] completedRefills = {0};
+        Runnable[] startNext = new Runnable[1];
+        startNext[0] = () -> {
+            if (nextRefill[0] >= toRefill.size()) {
+                return;
+            }
+            ChunkCursor chunk = toRefill.get(nextRefill[0]++);
+            buildQuery(chunk).get().addOnCompleteListener(task -> {
+                if (task.isSuccessful()) {
+                    QuerySnapshot snapshot = task.getResult();
+                    for (DocumentSnapshot document : snapshot.getDocuments()) {
+                        chunk.buffer.addLast(MoodStateCodec.decode(document));
+                        chunk.last = document;
+                    }
+                    // A short page means there is nothing older left for this chunk
+                    if (snapshot.size() < pageSize) {
+                        chunk.exhausted = true;
+                    }
+                } else {
+                    Log.w(TAG, "Error fetching feed page", task.getException());
+                    chunk.exhausted = true;
+                }
+
+                completedRefills[0]++;
+                if (completedRefills[0] == toRefill.size()) {
+                    long totalMillis = SystemClock.elapsedRealtime() - startedAt;
+                    Log.d(TAG, "Page loaded in " + totalMillis + "ms, first rows after "
+                            + (firstRowsMillis[0] < 0 ? totalMillis : firstRowsMillis[0]) + "ms");
+                    finishPage(callback);
+                } else {
+                    ArrayList<MoodState> preview = previewPage();
+                    if (!preview.isEmpty()) {
+                        if (firstRowsMillis[0] < 0) {
+                            firstRowsMillis[0] = SystemClock.elapsedRealtime() - startedAt;
+                        }
+                        callback.onPartialPage(preview);
+                    }
+                    startNext[0].run();
+                }
+            });
+        };
+
+        int initial = Math.min(FeedManager.MAX_CONCURRENT_CHUNKS, toRefill.size());
+        for (int i = 0; i < initial; i++) {
+            startNext[0].run();
+        }
+    }
+
+    /**
+     * Creates the query for the next page of a chunk
+     * @param chunk
+     *      the chunk to query
+     * @return
+     *      the query starting after the last mood the chunk returned
+     */
+    private Query buildQuery(ChunkCursor chunk) {
+        Query query = chunk.source.limit(pageSize);
+        if (chunk.last != null) {
+            query = query.startAfter(chunk.last);
+        }
+        return query;
+    }
+
+    /**
+     * Gets the newest buffered moods across all chunks without taking them out of the buffers
+     * @return
+     *      up to pageSize moods in newest first order
+     */
+    private ArrayList<MoodState> previewPage() {
+        ArrayList<ArrayList<MoodState>> buffers = new ArrayList<>(chunks.size());
+        for (ChunkCursor chunk : chunks) {
+            buffers.add(new ArrayList<>(chunk.buffer));
+        }
+        return new MoodMerger(buffers).take(pageSize);
+    }
+
+    /**
+     * Reads the legacy moods if the stamped ones cannot fill this page anymore, then delivers it
+     * @param callback
+     *      receives the page
+     */
+    private void finishPage(PageCallback callback) {
+        int buffered = 0;
+        for (ChunkCursor chunk : chunks) {
+            if (!chunk.exhausted) {
+                deliverPage(callback);
+                return;
+            }
+            buffered += chunk.buffer.size();
+        }
+        if (legacyLoaded || legacySources.isEmpty() || buffered >= pageSize) {
+            deliverPage(callback);
+            return;
+        }
+
+        legacyLoaded = true;
+        ArrayList<Task<QuerySnapshot>> reads = new ArrayList<>(legacySources.size());
+        for (Query source : legacySources) {
+            reads.add(source.get());
+        }
+        Tasks.whenAllComplete(reads).addOnCompleteListener(done -> {
+            ArrayList<MoodState> moods = new ArrayList<>();
+            for (Task<QuerySnapshot> read : reads) {
+                if (!read.isSuccessful()) {
+                    Log.w(TAG, "Error fetching legacy feed moods", read.getException());
+                    continue;
+                }
+                for (DocumentSnapshot document : read.getResult().getDocuments()) {
+                    if (FeedManager.isLegacy(document)) {
+                        moods.add(MoodStateCodec.decode(document));
+                    }
+                }
+            }
+            moods.sort(MoodState.NEWEST_FIRST);
+            legacy.addAll(moods);
+            deliverPage(callback);
+        });
+    }
+
+    /**
+     * Takes the newest buffered moods across all chunks and hands them to the callback.
+     * The legacy moods follow once every chunk is empty.
+     * @param callback
+     *      receives the page
+     */
+    private void deliverPage(PageCallback callback) {
+        ArrayList<MoodState> page = new ArrayList<>();
+        while (page.size() < pageSize) {
+            ChunkCursor newest = null;
+            for (ChunkCursor chunk : chunks) {
+                MoodState head = chunk.buffer.peekFirst();
+                if (head != null && (newest == null
+                        || MoodState.NEWEST_FIRST.compare(head, newest.buffer.peekFirst()) < 0)) {
+                    newest = chunk;
+                }
+            }
+            if (newest != null) {
+                page.add(newest.buffer.pollFirst());
+            } else if (!legacy.isEmpty()) {
+                page.add(legacy.pollFirst());
+            } else {
+                break;
+            }
+        }
+        loading = false;
+        callback.onPage(page, hasMore());
+    }
+
+    /**
+     * Keeps the paging position of one source query
+     */
+    private static class ChunkCursor {
+        private final Query source;
+        private final ArrayDeque<MoodState> buffer = new ArrayDeque<>();
+        private DocumentSnapshot last;
+        private boolean exhausted = false;
+
+        ChunkCursor(Query source) {
+            this.source = source;
+        }
+    }
+}
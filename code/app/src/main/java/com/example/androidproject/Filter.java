@@ -5,7 +5,7 @@ import android.location.Location;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -43,8 +43,9 @@ public class Filter {
      */
     public static ArrayList<MoodState> filterByEmotionalState(ArrayList<MoodState> moodHistory, String emotionalState) {
         ArrayList<MoodState> filteredMoods = new ArrayList<>();
+        MoodType type = MoodType.fromLabel(emotionalState);
         for (MoodState mood : moodHistory) {
-            if (mood.getMood().equals(emotionalState)) {
+            if (mood.getType() == type) {
                 filteredMoods.add(mood);
             }
         }
@@ -72,7 +73,7 @@ public class Filter {
      * Filters the mood history to include only events from users within a specified radius
      * who are followed by the current user. Each followed user is represented by their most recent mood state.
      *
-     * @param moodHistory    The list of mood states to filter.
+     * @param moodHistory    The list of mood states to filter, in any order.
      * @param currentLocation The current location of the user.
      * @param followingList  The list of usernames the user is following.
      * @param radius         The maximum distance (in kilometers) to consider.
@@ -80,43 +81,121 @@ public class Filter {
      * @return A filtered list containing only the most recent mood event from each followed user within the specified radius.
      */
     public static ArrayList<MoodState> filterBy5kDistance(ArrayList<MoodState> moodHistory, Location currentLocation, List<String> followingList, double radius, String currentUserName) {
-        if (currentLocation == null || followingList == null || followingList.isEmpty()) {
-            return new ArrayList<>(); //location permission denied or user isnt following anyone then the results is basically null/empty
+        return filterBy5kDistance(moodHistory, currentLocation, followingList, radius, currentUserName, new DistanceIndex());
+    }
+
+    /**
+     * Filters the mood history like filterBy5kDistance, reusing the grid index of a screen that
+     * filters the same moods again, e.g. with another radius or after the following list changed.
+     *
+     * @param moodHistory     The list of mood states to filter, in any order.
+     * @param currentLocation The current location of the user.
+     * @param followingList   The list of usernames the user is following.
+     * @param radius          The maximum distance (in kilometers) to consider.
+     * @param currentUserName The username of the current user (to exclude their own moods).
+     * @param index           The index kept by the screen, rebuilt when the moods changed.
+     * @return A filtered list containing only the most recent mood event from each followed user within the specified radius.
+     */
+    public static ArrayList<MoodState> filterBy5kDistance(ArrayList<MoodState> moodHistory, Location currentLocation, List<String> followingList, double radius, String currentUserName, DistanceIndex index) {
+        if (currentLocation == null) {
+            return new ArrayList<>(); //location permission denied then the results is basically null/empty
         }
-        ArrayList<MoodState> filteredMoods = new ArrayList<>(); //a store for moods that may fit the criteria
-        // start by checking the radius relative to users current position as well as the users we follow
-        ArrayList<MoodState> candidateMoods = new ArrayList<>();
-        for (MoodState mood : moodHistory) {
-            if (mood.getLocation() != null && followingList.contains(mood.getUser()) && !mood.getUser().equals(currentUserName)) {
-                // Calculate distance
-                // Taken from https://stackoverflow.com/questions/22751306/android-location-distancebetween-and-using-previous-location/22755930#22755930
-                // Taken from https://stackoverflow.com/questions/6510050/android-location-distancebetween-and-location-distanceto-difference
-                // By: Haasya
-                float[] distance = new float[1];
-                Location.distanceBetween(
-                        currentLocation.getLatitude(), currentLocation.getLongitude(),
-                        mood.getLocation().getLatitude(), mood.getLocation().getLongitude(),
-                        distance
-                );
-
-                // fix added: needed to convert it to kilometers
-                if (distance[0] / 1000 <= radius) {
-                    candidateMoods.add(mood);
-                }
-            }
+        return filterBy5kDistance(moodHistory, GeoCoordinate.fromLocation(currentLocation), followingList, radius, currentUserName, index);
+    }
+
+    /**
+     * Filters the mood history to the newest mood of each followed user within a radius of a point
+     *
+     * @param moodHistory     The list of mood states to filter, in any order.
+     * @param center          Where the user is.
+     * @param followingList   The list of usernames the user is following.
+     * @param radius          The maximum distance (in kilometers) to consider.
+     * @param currentUserName The username of the current user (to exclude their own moods).
+     * @param index           The index kept by the screen, rebuilt when the moods changed.
+     * @return The newest mood of each followed user within the radius, newest first.
+     */
+    static ArrayList<MoodState> filterBy5kDistance(List<MoodState> moodHistory, GeoCoordinate center, List<String> followingList, double radius, String currentUserName, DistanceIndex index) {
+        if (followingList == null || followingList.isEmpty()) {
+            return new ArrayList<>(); //user isnt following anyone then the results is basically null/empty
         }
-        ArrayList<String> processedUsers = new ArrayList<>(); // we use this to store if the user has been processed (like a boolean)
-        Collections.sort(candidateMoods, (m1, m2) ->
-                m2.getDayTime().compareTo(m1.getDayTime())); // this sorts the mood in desc order so that each users latest mood is first
-
-        // only need to add the most recent mood for each user we are following
-        for (MoodState mood : candidateMoods) {
-            String username = mood.getUser();
-            if (!processedUsers.contains(username)) {
-                filteredMoods.add(mood);
-                processedUsers.add(username);
+        // start by checking the radius relative to users current position through the grid index
+        ArrayList<MoodState> nearbyMoods = index.indexFor(moodHistory).withinRadius(center, radius * 1000);
+
+        // Only the moods of followed users other than the current user count, the set makes each check O(1)
+        HashSet<String> following = new HashSet<>(followingList);
+        following.remove(currentUserName);
+        ArrayList<MoodState> followedMoods = new ArrayList<>();
+        for (MoodState mood : nearbyMoods) {
+            if (following.contains(mood.getUser())) {
+                followedMoods.add(mood);
             }
         }
+
+        // only need to add the most recent mood for each user we are following, compared by timestamp
+        // so the order of moodHistory does not matter, then sorted newest first
+        ArrayList<MoodState> filteredMoods = new ArrayList<>(MoodSpatialIndex.latestPerUser(followedMoods).values());
+        filteredMoods.sort(MoodState.NEWEST_FIRST);
         return filteredMoods;
     }
+
+    /**
+     * The grid index of the moods a screen filters by distance.
+     * Kept by the screen that owns the mood list, so it goes away with the screen instead of
+     * holding the last list for the life of the app.
+     */
+    public static class DistanceIndex {
+        // The moods indexed last, and where each was when it was indexed
+        private ArrayList<MoodState> moods;
+        private GeoCoordinate[] locations;
+        private MoodSpatialIndex index;
+
+        /**
+         * Gets the grid index of a mood list, building it only when the list holds other moods
+         * than the list indexed last, or one of them moved since. Feed copies of the same snapshot
+         * hold the same mood objects, so checking them is a pass over the references instead of a
+         * rebuild.
+         *
+         * @param moods The moods to search.
+         * @return The index over every mood in the list with a location.
+         */
+        synchronized MoodSpatialIndex indexFor(List<MoodState> moods) {
+            if (this.moods != null && sameMoods(moods)) {
+                return index;
+            }
+            this.moods = new ArrayList<>(moods);
+            locations = new GeoCoordinate[this.moods.size()];
+            for (int i = 0; i < locations.length; i++) {
+                locations[i] = this.moods.get(i).getLocation();
+            }
+            index = new MoodSpatialIndex(this.moods);
+            return index;
+        }
+
+        /**
+         * Drops the index, e.g. when the moods were changed in place
+         */
+        public synchronized void clear() {
+            moods = null;
+            locations = null;
+            index = null;
+        }
+
+        /**
+         * Checks if a list holds the very same mood objects in the same order as the indexed
+         * list, each still at the location it was indexed at. Locations are never changed in
+         * place, so a moved mood has a new location object.
+         */
+        private boolean sameMoods(List<MoodState> other) {
+            if (moods.size() != other.size()) {
+                return false;
+            }
+            for (int i = 0; i < moods.size(); i++) {
+                MoodState mood = other.get(i);
+                if (moods.get(i) != mood || locations[i] != mood.getLocation()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
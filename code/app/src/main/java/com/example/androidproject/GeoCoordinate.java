@@ -0,0 +1,133 @@
+package com.example.androidproject;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable latitude and longitude.
+ * Used by moods in place of android.location.Location, so storing a position does not need the
+ * Android framework and distance checks do not allocate.
+ * The radians and cosine of the latitude are worked out once so each distance only needs the
+ * trigonometry for the other point.
+ */
+public final class GeoCoordinate {
+    // Mean radius of the earth in meters
+    static final double EARTH_RADIUS_METERS = 6_371_008.8;
+
+    private final double latitude;
+    private final double longitude;
+    private final double latitudeRadians;
+    private final double longitudeRadians;
+    private final double cosLatitude;
+
+    /**
+     * Creates a coordinate
+     * @param latitude
+     *      the latitude in degrees
+     * @param longitude
+     *      the longitude in degrees
+     */
+    public GeoCoordinate(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.latitudeRadians = Math.toRadians(latitude);
+        this.longitudeRadians = Math.toRadians(longitude);
+        this.cosLatitude = Math.cos(latitudeRadians);
+    }
+
+    /**
+     * Creates a coordinate from an Android location
+     * @param location
+     *      the location, may be null
+     * @return
+     *      the coordinate, or null if the location is null
+     */
+    public static GeoCoordinate fromLocation(Location location) {
+        return location == null ? null : new GeoCoordinate(location.getLatitude(), location.getLongitude());
+    }
+
+    /**
+     * Creates an Android location for screens and APIs that need one
+     * @return
+     *      a new location at this coordinate
+     */
+    public Location toLocation() {
+        Location location = new Location(LocationManager.GPS_PROVIDER);
+        // Set sea level so that there is no invocation error
+        location.setMslAltitudeAccuracyMeters(0);
+        location.setMslAltitudeMeters(0);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        return location;
+    }
+
+    /**
+     * Gets the map this coordinate is stored as in Firestore
+     * @return
+     *      a map holding "latitude" and "longitude"
+     */
+    public Map<String, Double> toMap() {
+        Map<String, Double> map = new HashMap<>();
+        map.put("latitude", latitude);
+        map.put("longitude", longitude);
+        return map;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Checks that the coordinate is on the globe
+     * @return
+     *      true if the latitude and longitude are in range
+     */
+    public boolean isValid() {
+        return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+    }
+
+    /**
+     * Gets the great circle distance to another coordinate using the haversine formula
+     * @param other
+     *      the other coordinate
+     * @return
+     *      the distance in meters
+     */
+    public double distanceTo(GeoCoordinate other) {
+        double sinHalfLatitude = Math.sin((other.latitudeRadians - latitudeRadians) / 2);
+        double sinHalfLongitude = Math.sin((other.longitudeRadians - longitudeRadians) / 2);
+        double a = sinHalfLatitude * sinHalfLatitude
+                + cosLatitude * other.cosLatitude * sinHalfLongitude * sinHalfLongitude;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof GeoCoordinate)) {
+            return false;
+        }
+        GeoCoordinate other = (GeoCoordinate) o;
+        return Double.compare(latitude, other.latitude) == 0
+                && Double.compare(longitude, other.longitude) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Double.hashCode(latitude) + Double.hashCode(longitude);
+    }
+
+    @Override
+    public String toString() {
+        return latitude + "," + longitude;
+    }
+}
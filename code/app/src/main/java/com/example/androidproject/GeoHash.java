@@ -0,0 +1,204 @@
+package com.example.androidproject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Geohashes of mood locations and the cells that cover a map viewport.
+ * A geohash interleaves the bits of the longitude and latitude into a base 32 string, so every
+ * prefix is a cell and the moods in a cell are one range of the sorted "geohash" field. A viewport
+ * is fetched with one range query per cell that covers it instead of reading every mood.
+ * Does not use the Android framework so it can be tested on the JVM.
+ */
+public final class GeoHash {
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final int BITS_PER_CHAR = 5;
+
+    // Characters stored on each mood, cells of about 5 meters
+    static final int STORED_PRECISION = 9;
+    // Most cells, and so range queries, used to cover one viewport
+    static final int MAX_CELLS = 9;
+
+    private GeoHash() {
+    }
+
+    /**
+     * Gets the geohash of a position
+     * @param latitude
+     *      the latitude in degrees
+     * @param longitude
+     *      the longitude in degrees
+     * @param precision
+     *      the number of characters
+     * @return
+     *      the geohash
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean isLongitude = true;
+        int bits = 0;
+        int value = 0;
+        while (hash.length() < precision) {
+            if (isLongitude) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    value = value * 2 + 1;
+                    minLongitude = middle;
+                } else {
+                    value = value * 2;
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    value = value * 2 + 1;
+                    minLatitude = middle;
+                } else {
+                    value = value * 2;
+                    maxLatitude = middle;
+                }
+            }
+            isLongitude = !isLongitude;
+            if (++bits == BITS_PER_CHAR) {
+                hash.append(BASE32.charAt(value));
+                bits = 0;
+                value = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Gets the geohash stored on a mood at a position
+     * @param location
+     *      the position of the mood
+     * @return
+     *      the geohash, or null if there is no valid position
+     */
+    public static String forLocation(GeoCoordinate location) {
+        if (location == null || !location.isValid()) {
+            return null;
+        }
+        return encode(location.getLatitude(), location.getLongitude(), STORED_PRECISION);
+    }
+
+    /**
+     * Gets the height of a cell in degrees of latitude
+     */
+    static double cellHeight(int precision) {
+        return 180 / Math.pow(2, (BITS_PER_CHAR * precision) / 2);
+    }
+
+    /**
+     * Gets the width of a cell in degrees of longitude, longitude gets the odd bit
+     */
+    static double cellWidth(int precision) {
+        return 360 / Math.pow(2, (BITS_PER_CHAR * precision + 1) / 2);
+    }
+
+    /**
+     * Gets the cells that cover a viewport.
+     * Uses the finest precision at which at most MAX_CELLS cells cover it. The cell under the
+     * middle of the viewport is found first and the cells around it are filled in until the
+     * viewport is covered, so the moods of the viewport are the moods of these cells.
+     * @param south
+     *      the southern edge in degrees
+     * @param west
+     *      the western edge in degrees
+     * @param north
+     *      the northern edge in degrees
+     * @param east
+     *      the eastern edge in degrees, less than west if the viewport crosses the antimeridian
+     * @return
+     *      the cells, a single empty string if only the whole world covers the viewport
+     */
+    public static List<String> cover(double south, double west, double north, double east) {
+        if (west > east) {
+            // Covers each side of the antimeridian on its own
+            LinkedHashSet<String> cells = new LinkedHashSet<>(cover(south, west, north, 180));
+            cells.addAll(cover(south, -180, north, east));
+            ArrayList<String> both = new ArrayList<>(cells);
+            return both.contains("") ? coverWorld() : both;
+        }
+        int precision = precisionFor(south, west, north, east);
+        if (precision == 0) {
+            return coverWorld();
+        }
+        double height = cellHeight(precision);
+        double width = cellWidth(precision);
+        double middleLatitude = (south + north) / 2;
+        double middleLongitude = (west + east) / 2;
+        // Rows and columns of cells around the middle cell that the viewport reaches into
+        long middleRow = row(middleLatitude, height);
+        long middleColumn = column(middleLongitude, width);
+        long firstRow = row(south, height) - middleRow;
+        long lastRow = row(north, height) - middleRow;
+        long firstColumn = column(west, width) - middleColumn;
+        long lastColumn = column(east, width) - middleColumn;
+
+        ArrayList<String> cells = new ArrayList<>();
+        cells.add(encode(middleLatitude, middleLongitude, precision));
+        for (long dy = firstRow; dy <= lastRow; dy++) {
+            for (long dx = firstColumn; dx <= lastColumn; dx++) {
+                if (dx == 0 && dy == 0) {
+                    continue;
+                }
+                double latitude = -90 + ((middleRow + dy) + 0.5) * height;
+                double longitude = -180 + ((middleColumn + dx) + 0.5) * width;
+                cells.add(encode(latitude, longitude, precision));
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Gets the finest precision at which at most MAX_CELLS cells cover a viewport
+     * @return
+     *      the precision, 0 if even single characters need too many cells
+     */
+    static int precisionFor(double south, double west, double north, double east) {
+        int precision = 0;
+        for (int next = 1; next <= STORED_PRECISION; next++) {
+            long rows = row(north, cellHeight(next)) - row(south, cellHeight(next)) + 1;
+            long columns = column(east, cellWidth(next)) - column(west, cellWidth(next)) + 1;
+            if (rows * columns > MAX_CELLS) {
+                break;
+            }
+            precision = next;
+        }
+        return precision;
+    }
+
+    /**
+     * Gets the last string that starts with a cell, so a cell is the range from it to this
+     * @param cell
+     *      the geohash of the cell
+     * @return
+     *      the end of the range of the cell
+     */
+    public static String rangeEnd(String cell) {
+        // Sorts after every geohash character
+        return cell + "~";
+    }
+
+    private static List<String> coverWorld() {
+        ArrayList<String> world = new ArrayList<>();
+        world.add("");
+        return world;
+    }
+
+    private static long row(double latitude, double height) {
+        long rows = Math.round(180 / height);
+        return Math.min(rows - 1, Math.max(0, (long) Math.floor((latitude + 90) / height)));
+    }
+
+    private static long column(double longitude, double width) {
+        long columns = Math.round(360 / width);
+        return Math.min(columns - 1, Math.max(0, (long) Math.floor((longitude + 180) / width)));
+    }
+}
@@ -11,8 +11,6 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 
 /**
  * The HomePageActivity serves as the main landing page after the user logs in or signs up. This
@@ -33,6 +31,8 @@ public class HomePageActivity extends AppCompatActivity {
     private ArrayList<String> following;
     private FeedManager feedManager;
     private static final String TAG = "HomePageActivity";
+    // Number of recent moods shown on the home page
+    private static final int RECENT_MOOD_COUNT = 3;
 
     /**
      * Runs the main home page activity loop
@@ -71,45 +71,31 @@ public class HomePageActivity extends AppCompatActivity {
     }
 
     /**
-     * Fetches the following list and then fetches moods for the followed users.
+     * Fetches the most recent moods through the shared feed cache and shows them.
+     * Cached moods are shown straight away, otherwise only the first page of the feed is loaded
+     * since the home page shows a few moods.
      */
     private void fetchFollowingAndMoods() {
-        feedManager.getFollowing(currentUser, new FeedManager.FollowingCallback() {
+        feedManager.fetchRecentCached(currentUser, RECENT_MOOD_COUNT, new FeedManager.CachedFeedCallback() {
             /**
-             * Displays the following list once it has been found
+             * Displays the most recent moods of the people being followed
              * @param followingList
              *      The list of individuals being followed
-             */
-            @Override
-            public void onCallback(ArrayList<String> followingList) {
-                if (followingList != null && !followingList.isEmpty()) {
-                    following = followingList;
-
-                    // Fetch moods for the followed users
-                    fetchMoodsFromFollowing();
-                } else {
-                    Toast.makeText(HomePageActivity.this, "You are not following anyone yet.", Toast.LENGTH_SHORT).show();
-                }
-            }
-        });
-    }
-
-    /**
-     * Fetches moods from users in the following list
-     */
-    private void fetchMoodsFromFollowing() {
-        feedManager.fetchFeed(following, new FeedManager.FeedCallback() {
-            /**
-             * Gets the list of moods that of the people being followed
              * @param feed
-             *      List of people being followed
+             *      The feed, most recent first
+             * @param isStale
+             *      If a refreshed feed is still on its way
              */
             @Override
-            public void onCallback(ArrayList<MoodState> feed) {
-                if (feed != null && !feed.isEmpty()) {
-                    // Process and display the moods
-                    processMoods(feed);
-                } else {
+            public void onFeed(ArrayList<String> followingList, ArrayList<MoodState> feed, boolean isStale) {
+                following = followingList;
+                processMoods(feed);
+                if (isStale) {
+                    return;
+                }
+                if (following.isEmpty()) {
+                    Toast.makeText(HomePageActivity.this, "You are not following anyone yet.", Toast.LENGTH_SHORT).show();
+                } else if (feed.isEmpty()) {
                     Toast.makeText(HomePageActivity.this, "No recent moods from people you follow.", Toast.LENGTH_SHORT).show();
                 }
             }
@@ -118,28 +104,14 @@ public class HomePageActivity extends AppCompatActivity {
 
     /**
      * Processes and displays the mood data
-     * @param moods List of moods to process
+     * @param moods List of moods to process, most recent first
      */
     private void processMoods(ArrayList<MoodState> moods) {
         // Clear current data
         moodDataList.clear();
 
-        // Sort by date
-        Collections.sort(moods, new Comparator<MoodState>() {
-            /**
-             * Comparison method
-             * @param m1 the first object to be compared.
-             * @param m2 the second object to be compared.
-             * @return
-             */
-            @Override
-            public int compare(MoodState m1, MoodState m2) {
-                return m2.getDayTime().compareTo(m1.getDayTime()); // Reverse order
-            }
-        });
-
-        // Take only the 3 most recent moods
-        int moodCount = Math.min(moods.size(), 3);
+        // Take only the most recent moods
+        int moodCount = Math.min(moods.size(), RECENT_MOOD_COUNT);
         for (int i = 0; i < moodCount; i++) {
             moodDataList.add(moods.get(i));
         }
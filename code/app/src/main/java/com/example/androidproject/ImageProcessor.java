@@ -0,0 +1,204 @@
+package com.example.androidproject;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shrinks picked images so they fit the storage budget of a mood.
+ * The image is decoded once straight to the full variant size, then every ImageVariant is scaled
+ * from it and encoded as WebP with the quality stepped down until it fits. If a variant still does
+ * not fit at the lowest quality it is scaled down and tried again. All of it runs on a background
+ * thread.
+ */
+public class ImageProcessor {
+    private static final String TAG = "ImageProcessor";
+
+    // Images are not scaled below this edge, they fail instead
+    static final int MIN_DIMENSION = 160;
+
+    static final int START_QUALITY = 85;
+    static final int MIN_QUALITY = 35;
+    static final int QUALITY_STEP = 10;
+    // How much each edge shrinks when no quality fits
+    static final float SCALE_STEP = 0.75f;
+
+    // Decoding takes a lot of memory, so one image is processed at a time
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private ImageProcessor() {
+    }
+
+    /**
+     * Decodes an image and encodes every variant of it
+     * @param resolver
+     *      content resolver to read the image
+     * @param uri
+     *      where to find the image on the phone
+     * @return
+     *      a Task with the encoded image of every variant, or failing if the image can not be read or
+     *      made to fit
+     */
+    public static Task<Map<ImageVariant, Result>> process(ContentResolver resolver, Uri uri) {
+        return Tasks.call(executor, () -> {
+            Bitmap decoded = decode(resolver, uri, ImageVariant.FULL.getMaxDimension());
+            try {
+                Map<ImageVariant, Result> results = new EnumMap<>(ImageVariant.class);
+                for (ImageVariant variant : ImageVariant.values()) {
+                    results.put(variant, encode(decoded, variant));
+                }
+                return results;
+            } finally {
+                decoded.recycle();
+            }
+        });
+    }
+
+    /**
+     * Decodes an image no larger than a size, reading the file once
+     */
+    private static Bitmap decode(ContentResolver resolver, Uri uri, int maxDimension) throws IOException {
+        ImageDecoder.Source source = ImageDecoder.createSource(resolver, uri);
+        return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+            int[] size = targetSize(info.getSize().getWidth(), info.getSize().getHeight(), maxDimension);
+            decoder.setTargetSize(size[0], size[1]);
+            // Software bitmaps can be compressed and scaled again
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+        });
+    }
+
+    /**
+     * Encodes a variant of a bitmap at the best quality that fits its budget, leaving the bitmap as
+     * it is
+     */
+    private static Result encode(Bitmap bitmap, ImageVariant variant) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        int[] size = targetSize(bitmap.getWidth(), bitmap.getHeight(), variant.getMaxDimension());
+        Bitmap current = size[0] == bitmap.getWidth() && size[1] == bitmap.getHeight()
+                ? bitmap
+                : Bitmap.createScaledBitmap(bitmap, size[0], size[1], true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(variant.getMaxBytes());
+        try {
+            while (true) {
+                for (int quality = START_QUALITY; quality >= MIN_QUALITY; quality -= QUALITY_STEP) {
+                    out.reset();
+                    current.compress(Bitmap.CompressFormat.WEBP_LOSSY, quality, out);
+                    if (out.size() <= variant.getMaxBytes()) {
+                        Result result = new Result(out.toByteArray(), current.getWidth(), current.getHeight(),
+                                quality, SystemClock.elapsedRealtime() - start);
+                        Log.d(TAG, "Encoded " + variant + " " + result.getWidth() + "x" + result.getHeight()
+                                + " at quality " + quality + " to " + result.getBytes().length + " bytes in "
+                                + result.getEncodeMillis() + " ms");
+                        return result;
+                    }
+                }
+                int[] smaller = scaledSize(current.getWidth(), current.getHeight());
+                if (smaller == null) {
+                    throw new IOException(variant + " image does not fit in " + variant.getMaxBytes() + " bytes");
+                }
+                Bitmap scaled = Bitmap.createScaledBitmap(current, smaller[0], smaller[1], true);
+                if (current != bitmap) {
+                    current.recycle();
+                }
+                current = scaled;
+            }
+        } finally {
+            if (current != bitmap) {
+                current.recycle();
+            }
+        }
+    }
+
+    /**
+     * Gets the size to decode an image to, keeping its aspect ratio and never scaling it up
+     * @param width
+     *      the width of the image
+     * @param height
+     *      the height of the image
+     * @param maxDimension
+     *      the longest edge allowed
+     * @return
+     *      the width and height to decode to
+     */
+    static int[] targetSize(int width, int height, int maxDimension) {
+        int longest = Math.max(width, height);
+        if (longest <= maxDimension) {
+            return new int[] {width, height};
+        }
+        double scale = (double) maxDimension / longest;
+        return new int[] {
+                Math.max(1, (int) Math.round(width * scale)),
+                Math.max(1, (int) Math.round(height * scale))
+        };
+    }
+
+    /**
+     * Gets the next smaller size to try when no quality fits
+     * @param width
+     *      the current width
+     * @param height
+     *      the current height
+     * @return
+     *      the smaller width and height, or null if the image is already as small as allowed
+     */
+    static int[] scaledSize(int width, int height) {
+        int longest = Math.max(width, height);
+        if (longest <= MIN_DIMENSION) {
+            return null;
+        }
+        int next = Math.max(MIN_DIMENSION, Math.round(longest * SCALE_STEP));
+        return targetSize(width, height, next);
+    }
+
+    /**
+     * An encoded image and what it took to make it
+     */
+    public static class Result {
+        private final byte[] bytes;
+        private final int width;
+        private final int height;
+        private final int quality;
+        private final long encodeMillis;
+
+        Result(byte[] bytes, int width, int height, int quality, long encodeMillis) {
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+            this.encodeMillis = encodeMillis;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+
+        public long getEncodeMillis() {
+            return encodeMillis;
+        }
+    }
+}
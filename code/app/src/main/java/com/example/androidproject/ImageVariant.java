@@ -0,0 +1,136 @@
+package com.example.androidproject;
+
+import android.net.Uri;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+
+/**
+ * The sizes every mood image is stored in.
+ * Each upload stores all of them under predictable paths, so a screen can download the smallest one
+ * that still fills its ImageView instead of the full image.
+ */
+public enum ImageVariant {
+    THUMBNAIL(240, 16 * 1024, "images/thumb/"),
+    MEDIUM(540, 32 * 1024, "images/medium/"),
+    // Stored where images were stored before there were variants
+    FULL(1080, 64 * 1024, "images/");
+
+    private final int maxDimension;
+    private final int maxBytes;
+    private final String folder;
+
+    ImageVariant(int maxDimension, int maxBytes, String folder) {
+        this.maxDimension = maxDimension;
+        this.maxBytes = maxBytes;
+        this.folder = folder;
+    }
+
+    /**
+     * Gets the longest edge of this variant
+     * @return
+     *      the edge in pixels
+     */
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    /**
+     * Gets the most bytes this variant may take in storage
+     * @return
+     *      the budget in bytes
+     */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets where this variant of an image is stored
+     * @param moodId
+     *      the id of the mood the image belongs to
+     * @return
+     *      the Firebase Storage path
+     */
+    public String path(String moodId) {
+        return folder + moodId;
+    }
+
+    /**
+     * Gets the smallest variant that covers a size without being scaled up
+     * @param pixels
+     *      the longest edge the image is shown at
+     * @return
+     *      the variant to load
+     */
+    public static ImageVariant forDimension(int pixels) {
+        for (ImageVariant variant : values()) {
+            if (variant.maxDimension >= pixels) {
+                return variant;
+            }
+        }
+        return FULL;
+    }
+
+    /**
+     * Gets the smallest variant that fills an ImageView.
+     * Views that are not laid out yet are sized from their layout params, and edges that match
+     * their parent are taken as the width of the screen.
+     * @param view
+     *      the view the image is shown in
+     * @return
+     *      the variant to load
+     */
+    public static ImageVariant forView(ImageView view) {
+        int screen = view.getResources().getDisplayMetrics().widthPixels;
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        int width = view.getWidth();
+        int height = view.getHeight();
+        if (width <= 0) {
+            width = params != null && params.width > 0 ? params.width : screen;
+        }
+        if (height <= 0) {
+            height = params != null && params.height > 0 ? params.height : 0;
+        }
+        return forDimension(Math.max(width, height));
+    }
+
+    /**
+     * Gets the download URL of a variant of an image, through StorageUrlCache when there is one.
+     * Images uploaded before there were variants only have the full size, so that is used when
+     * the variant does not exist. The full size URL is only cached under its own path, so the
+     * variant is found once it has been made. Any other failure is passed on.
+     * @param moodId
+     *      the id of the mood the image belongs to
+     * @param variant
+     *      the variant to get
+     * @return
+     *      a Task with the URL
+     */
+    public static Task<Uri> getDownloadUrl(String moodId, ImageVariant variant) {
+        StorageUrlCache cache = StorageUrlCache.getInstance();
+        Task<Uri> url = lookup(cache, variant.path(moodId));
+        if (variant == FULL) {
+            return url;
+        }
+        return url.continueWithTask(task -> {
+            if (task.isSuccessful() || !isNotFound(task.getException())) {
+                return task;
+            }
+            return lookup(cache, FULL.path(moodId));
+        });
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof StorageException
+                && ((StorageException) e).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND;
+    }
+
+    private static Task<Uri> lookup(StorageUrlCache cache, String path) {
+        return cache != null
+                ? cache.getDownloadUrl(path)
+                : FirebaseStorage.getInstance().getReference().child(path).getDownloadUrl();
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.androidproject;
+
+import android.util.Log;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Keeps the head of the feed up to date with snapshot listeners.
+ * Each source query only covers moods at or after the start of the live window, and only the
+ * DocumentChange deltas of each snapshot are applied to the sorted list of moods, so reads grow
+ * with the number of changes instead of the size of the feed.
+ * Created through FeedManager.createLiveFeed.
+ */
+public class LiveFeed {
+    private static final String TAG = "LiveFeed";
+
+    private final List<Query> sources;
+    private final long sinceMillis;
+    // The shown moods, newest first
+    private final ArrayList<MoodState> moods;
+    // Moods inside the live window by document id
+    private final HashMap<String, MoodState> byId = new HashMap<>();
+    // Ids each source query has reported, used to spot deletes that happened while detached
+    private final ArrayList<HashSet<String>> sourceIds = new ArrayList<>();
+    private final ArrayList<ListenerRegistration> registrations = new ArrayList<>();
+    private ChangeListener listener;
+    private int appliedChanges = 0;
+
+    /**
+     * Creates a live feed over the given windowed queries
+     * @param sources
+     *      queries limited to the live window
+     * @param sinceMillis
+     *      the timestamp of the oldest mood in the live window
+     * @param moods
+     *      the shown moods in newest first order, kept up to date by this live feed
+     */
+    LiveFeed(List<Query> sources, long sinceMillis, ArrayList<MoodState> moods) {
+        this.sources = sources;
+        this.sinceMillis = sinceMillis;
+        this.moods = moods;
+        for (int i = 0; i < sources.size(); i++) {
+            sourceIds.add(new HashSet<>());
+        }
+    }
+
+    /**
+     * Receives each change applied to the list of moods so the adapter can update just that row
+     */
+    public interface ChangeListener {
+        void onInserted(MoodState mood, int position);
+        void onChanged(MoodState mood, int position);
+        void onRemoved(MoodState mood, int position);
+    }
+
+    /**
+     * Attaches the snapshot listeners. Does nothing if they are already attached.
+     * @param changeListener
+     *      receives every change applied to the list
+     */
+    public void start(ChangeListener changeListener) {
+        if (isStarted()) {
+            return;
+        }
+        listener = changeListener;
+
+        // Index the moods that the listeners will report on
+        byId.clear();
+        for (MoodState mood : moods) {
+            if (mood.getId() != null && mood.getTimestamp() >= sinceMillis) {
+                byId.put(mood.getId(), mood);
+            }
+        }
+
+        for (int i = 0; i < sources.size(); i++) {
+            HashSet<String> ids = sourceIds.get(i);
+            boolean[] firstSnapshot = {true};
+            registrations.add(sources.get(i).addSnapshotListener((snapshots, e) -> {
+                if (e != null) {
+                    Log.w(TAG, "Live feed listener failed", e);
+                    return;
+                }
+                if (snapshots == null) {
+                    return;
+                }
+                if (firstSnapshot[0]) {
+                    firstSnapshot[0] = false;
+                    // The first snapshot after attaching holds the whole window, anything missing was deleted
+                    HashSet<String> present = new HashSet<>();
+                    for (DocumentChange change : snapshots.getDocumentChanges()) {
+                        present.add(change.getDocument().getId());
+                    }
+                    for (String id : new ArrayList<>(ids)) {
+                        if (!present.contains(id)) {
+                            remove(id);
+                            ids.remove(id);
+                        }
+                    }
+                }
+                for (DocumentChange change : snapshots.getDocumentChanges()) {
+                    if (change.getType() == DocumentChange.Type.REMOVED) {
+                        ids.remove(change.getDocument().getId());
+                    } else {
+                        ids.add(change.getDocument().getId());
+                    }
+                    apply(change);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Detaches the snapshot listeners
+     */
+    public void stop() {
+        for (ListenerRegistration registration : registrations) {
+            registration.remove();
+        }
+        registrations.clear();
+        listener = null;
+    }
+
+    /**
+     * Returns if the snapshot listeners are attached
+     * @return
+     *      true while changes are being applied
+     */
+    public boolean isStarted() {
+        return !registrations.isEmpty();
+    }
+
+    /**
+     * Gets how many document changes have been applied since the live feed was created
+     * @return
+     *      the number of applied changes
+     */
+    public int getAppliedChangeCount() {
+        return appliedChanges;
+    }
+
+    /**
+     * Appends an older page of the feed to the list of moods, leaving out moods already in it.
+     * The live window starts at sinceMillis inclusive and the pager continues after the last mood
+     * of the first page, so moods sharing the timestamp of the window start can come from both.
+     * @param page
+     *      the next page of the feed, newest first and not newer than the moods in the list
+     * @return
+     *      the moods that were appended
+     */
+    public ArrayList<MoodState> appendPage(List<MoodState> page) {
+        ArrayList<MoodState> appended = new ArrayList<>(page.size());
+        for (MoodState mood : page) {
+            if (mood.getId() != null && mood.getTimestamp() >= sinceMillis) {
+                if (byId.containsKey(mood.getId()) || indexOfId(mood) >= 0) {
+                    continue;
+                }
+                // A listener that reports this mood later replaces it instead of adding it again
+                byId.put(mood.getId(), mood);
+            }
+            moods.add(mood);
+            appended.add(mood);
+        }
+        return appended;
+    }
+
+    /**
+     * Finds a mood with the same id among the moods with the same timestamp
+     * @param mood
+     *      the mood to look for
+     * @return
+     *      the position of the mood with its id, or -1 if there is none
+     */
+    private int indexOfId(MoodState mood) {
+        for (int i = insertionIndex(moods, mood); i < moods.size(); i++) {
+            MoodState candidate = moods.get(i);
+            if (MoodState.NEWEST_FIRST.compare(candidate, mood) != 0) {
+                break;
+            }
+            if (mood.getId().equals(candidate.getId())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Applies one document change to the list of moods
+     * @param change
+     *      the change reported by a snapshot listener
+     */
+    private void apply(DocumentChange change) {
+        String id = change.getDocument().getId();
+        MoodState existing = byId.get(id);
+        appliedChanges++;
+
+        if (change.getType() == DocumentChange.Type.REMOVED) {
+            remove(id);
+            return;
+        }
+
+        // ADDED is also reported for moods already shown when a listener first attaches
+        MoodState mood = MoodStateCodec.decode(change.getDocument());
+        byId.put(id, mood);
+        int oldPosition = existing == null ? -1 : positionOf(existing);
+        if (oldPosition >= 0) {
+            moods.remove(oldPosition);
+        }
+        int newPosition = insertionIndex(moods, mood);
+        moods.add(newPosition, mood);
+
+        if (oldPosition < 0) {
+            listener.onInserted(mood, newPosition);
+        } else if (oldPosition == newPosition) {
+            listener.onChanged(mood, newPosition);
+        } else {
+            listener.onRemoved(existing, oldPosition);
+            listener.onInserted(mood, newPosition);
+        }
+    }
+
+    /**
+     * Removes a mood from the list if it is in the live window
+     * @param id
+     *      the document id of the mood
+     */
+    private void remove(String id) {
+        MoodState existing = byId.remove(id);
+        if (existing == null) {
+            return;
+        }
+        int position = positionOf(existing);
+        if (position >= 0) {
+            moods.remove(position);
+            listener.onRemoved(existing, position);
+        }
+    }
+
+    /**
+     * Finds a mood in the list by binary searching its timestamp
+     * @param mood
+     *      the exact mood object to find
+     * @return
+     *      its position, or -1 if it is not in the list
+     */
+    private int positionOf(MoodState mood) {
+        for (int i = insertionIndex(moods, mood); i < moods.size(); i++) {
+            MoodState candidate = moods.get(i);
+            if (candidate == mood) {
+                return i;
+            }
+            if (MoodState.NEWEST_FIRST.compare(candidate, mood) != 0) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds where a mood belongs in a newest first list
+     * @param moods
+     *      the list, sorted newest first
+     * @param mood
+     *      the mood to place
+     * @return
+     *      the first position whose mood is not newer than the given mood
+     */
+    static int insertionIndex(List<MoodState> moods, MoodState mood) {
+        int low = 0;
+        int high = moods.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (MoodState.NEWEST_FIRST.compare(moods.get(mid), mood) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,429 @@
+package com.example.androidproject;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SQLite mirror of the moods of the current user and the public moods of the users they follow.
+ * Screens read from here first so they can show moods straight away, MoodSyncEngine keeps it up
+ * to date with the changes made in Firestore. The mirror belongs to one signed in user and is
+ * emptied when someone else signs in.
+ * Every database call runs on one background thread and results are handed back on the main thread.
+ */
+public class LocalMoodStore extends SQLiteOpenHelper {
+    private static final String TAG = "LocalMoodStore";
+    private static final String DATABASE_NAME = "moods.db";
+    private static final int DATABASE_VERSION = 2;
+    // Older SQLite versions allow at most 999 arguments in a statement
+    static final int MAX_FEED_USERS = 900;
+
+    private static final String TABLE_MOODS = "moods";
+    private static final String TABLE_CURSORS = "sync_cursors";
+    private static final String TABLE_OWNER = "owner";
+
+    private static LocalMoodStore instance;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private LocalMoodStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Opens the store for the app, called once when the app starts
+     * @param context
+     *      any context of the app
+     */
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new LocalMoodStore(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * Gets the store of the app
+     * @return
+     *      the store, or null if the app did not open one
+     */
+    public static synchronized LocalMoodStore getInstance() {
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MOODS + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "user TEXT NOT NULL, "
+                + "mood TEXT NOT NULL, "
+                + "reason TEXT, "
+                + "situation TEXT, "
+                + "visibility INTEGER, "
+                + "image TEXT, "
+                + "latitude REAL, "
+                + "longitude REAL, "
+                + "timestamp INTEGER NOT NULL, "
+                + "zone_offset INTEGER NOT NULL)");
+        // Serves both the mood history of a user and the feed, newest first
+        db.execSQL("CREATE INDEX moods_user_time ON " + TABLE_MOODS + " (user, timestamp DESC)");
+        db.execSQL("CREATE TABLE " + TABLE_CURSORS + " ("
+                + "scope TEXT PRIMARY KEY, "
+                + "updated_at INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_OWNER + " (username TEXT NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The store is only a mirror, so it is rebuilt and synced again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MOODS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CURSORS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_OWNER);
+        onCreate(db);
+    }
+
+    /**
+     * Gets the thread every database call runs on
+     * @return
+     *      the executor of the store
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets who is signed in, emptying the store if it holds the moods of someone else.
+     * Reads queued after this only see moods synced for the new user.
+     * @param username
+     *      the user who signed in
+     */
+    public void setOwner(String username) {
+        executor.execute(() -> switchOwner(username));
+    }
+
+    /**
+     * Reads the moods of a user, newest first
+     * @param username
+     *      the user whose moods are read
+     * @param callback
+     *      gets the moods on the main thread, or null if the user was never synced
+     */
+    public void loadUserMoods(String username, LocalMoodsCallback callback) {
+        executor.execute(() -> {
+            ArrayList<MoodState> moods = null;
+            if (getCursor(MoodSyncEngine.userScope(username)) != null) {
+                moods = queryMoods("user = ?", new String[] {username}, 0);
+            }
+            ArrayList<MoodState> result = moods;
+            handler.post(() -> callback.onLoaded(result));
+        });
+    }
+
+    /**
+     * Reads the public moods of the followed users, newest first
+     * @param following
+     *      the users whose moods are read
+     * @param limit
+     *      the most moods to read, 0 for all of them
+     * @param callback
+     *      gets the moods on the main thread, or null if any of the users was never synced
+     */
+    public void loadFeed(List<String> following, int limit, LocalMoodsCallback callback) {
+        executor.execute(() -> {
+            ArrayList<MoodState> moods = null;
+            if (hasCursors(MoodSyncEngine.feedScopes(following))) {
+                moods = queryFeed(following, limit);
+            }
+            ArrayList<MoodState> result = moods;
+            handler.post(() -> callback.onLoaded(result));
+        });
+    }
+
+    /**
+     * Stores a mood written on this device so it shows before the next sync
+     * @param mood
+     *      the mood to store
+     */
+    public void save(MoodState mood) {
+        ArrayList<MoodState> moods = new ArrayList<>();
+        moods.add(mood);
+        executor.execute(() -> upsert(moods));
+    }
+
+    /**
+     * Removes a mood deleted on this device
+     * @param id
+     *      the id of the mood
+     */
+    public void remove(String id) {
+        ArrayList<String> ids = new ArrayList<>();
+        ids.add(id);
+        executor.execute(() -> delete(ids));
+    }
+
+    /**
+     * Reads the public moods of users, runs on the store thread.
+     * More users than fit in one statement are read in chunks and merged newest first.
+     */
+    ArrayList<MoodState> queryFeed(List<String> following, int limit) {
+        if (following.size() <= MAX_FEED_USERS) {
+            return queryFeedChunk(following, limit);
+        }
+        ArrayList<MoodState> moods = new ArrayList<>();
+        for (List<String> users : FeedManager.chunk(following, MAX_FEED_USERS)) {
+            // Each chunk only needs its own newest moods, the rest cannot make the cut
+            moods.addAll(queryFeedChunk(users, limit));
+        }
+        moods.sort(MoodState.NEWEST_FIRST);
+        if (limit > 0 && moods.size() > limit) {
+            moods.subList(limit, moods.size()).clear();
+        }
+        return moods;
+    }
+
+    private ArrayList<MoodState> queryFeedChunk(List<String> users, int limit) {
+        if (users.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringBuilder selection = new StringBuilder("visibility = 1 AND user IN (");
+        for (int i = 0; i < users.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        selection.append(")");
+        return queryMoods(selection.toString(), users.toArray(new String[0]), limit);
+    }
+
+    /**
+     * Empties the store when a different user signs in, runs on the store thread
+     */
+    void switchOwner(String username) {
+        SQLiteDatabase db = getWritableDatabase();
+        String owner;
+        try (Cursor cursor = db.query(TABLE_OWNER, new String[] {"username"}, null, null, null, null, null)) {
+            owner = cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+        if (username.equals(owner)) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_MOODS, null, null);
+            db.delete(TABLE_CURSORS, null, null);
+            db.delete(TABLE_OWNER, null, null);
+            ContentValues values = new ContentValues();
+            values.put("username", username);
+            db.insert(TABLE_OWNER, null, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (owner != null) {
+            Log.d(TAG, "Cleared the moods of " + owner + " for " + username);
+        }
+    }
+
+    /**
+     * Inserts or replaces moods, runs on the store thread
+     */
+    void upsert(Collection<MoodState> moods) {
+        if (moods.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (MoodState mood : moods) {
+                db.insertWithOnConflict(TABLE_MOODS, null, toValues(mood), SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes moods by id, runs on the store thread
+     */
+    void delete(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String id : ids) {
+                db.delete(TABLE_MOODS, "id = ?", new String[] {id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replaces every stored mood of a user after a full sync, runs on the store thread
+     */
+    void replaceUser(String username, Collection<MoodState> moods) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_MOODS, "user = ?", new String[] {username});
+            upsert(moods);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Gets how far a scope was synced, runs on the store thread
+     * @return
+     *      the update time in epoch milliseconds, or null if the scope was never synced
+     */
+    Long getCursor(String scope) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_CURSORS, new String[] {"updated_at"},
+                "scope = ?", new String[] {scope}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        }
+    }
+
+    /**
+     * Gets how far several scopes were synced, runs on the store thread
+     * @return
+     *      the cursor of every scope that was synced
+     */
+    Map<String, Long> getCursors(Collection<String> scopes) {
+        Map<String, Long> cursors = new HashMap<>();
+        for (String scope : scopes) {
+            Long cursor = getCursor(scope);
+            if (cursor != null) {
+                cursors.put(scope, cursor);
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * Stores how far a scope was synced, runs on the store thread
+     */
+    void setCursor(String scope, long updatedAt) {
+        ContentValues values = new ContentValues();
+        values.put("scope", scope);
+        values.put("updated_at", updatedAt);
+        getWritableDatabase().insertWithOnConflict(TABLE_CURSORS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Checks that every scope was synced at least once
+     */
+    private boolean hasCursors(Collection<String> scopes) {
+        for (String scope : scopes) {
+            if (getCursor(scope) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads moods newest first
+     */
+    private ArrayList<MoodState> queryMoods(String selection, String[] args, int limit) {
+        ArrayList<MoodState> moods = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(TABLE_MOODS, null, selection, args,
+                null, null, "timestamp DESC", limit > 0 ? String.valueOf(limit) : null)) {
+            while (cursor.moveToNext()) {
+                try {
+                    moods.add(MoodStateCodec.decode(cursor.getString(cursor.getColumnIndexOrThrow("id")),
+                            field -> readColumn(cursor, field)));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Skipping unreadable mood", e);
+                }
+            }
+        }
+        return moods;
+    }
+
+    /**
+     * Reads a mood document field from the current row, so rows decode like Firestore documents
+     */
+    private static Object readColumn(Cursor cursor, String field) {
+        switch (field) {
+            case "user":
+            case "mood":
+            case "reason":
+            case "situation":
+            case "image":
+                return stringOrNull(cursor, field);
+            case "visibility":
+                int visibility = cursor.getColumnIndexOrThrow("visibility");
+                return cursor.isNull(visibility) ? null : cursor.getInt(visibility) == 1;
+            case MoodStateCodec.FIELD_TIMESTAMP:
+                return cursor.getLong(cursor.getColumnIndexOrThrow("timestamp"));
+            case MoodStateCodec.FIELD_ZONE_OFFSET:
+                return cursor.getInt(cursor.getColumnIndexOrThrow("zone_offset"));
+            case "location":
+                int latitude = cursor.getColumnIndexOrThrow("latitude");
+                int longitude = cursor.getColumnIndexOrThrow("longitude");
+                if (cursor.isNull(latitude) || cursor.isNull(longitude)) {
+                    return null;
+                }
+                Map<String, Object> location = new HashMap<>();
+                location.put("latitude", cursor.getDouble(latitude));
+                location.put("longitude", cursor.getDouble(longitude));
+                return location;
+            default:
+                return null;
+        }
+    }
+
+    private static String stringOrNull(Cursor cursor, String column) {
+        int index = cursor.getColumnIndexOrThrow(column);
+        return cursor.isNull(index) ? null : cursor.getString(index);
+    }
+
+    /**
+     * Gets the row of a mood
+     */
+    private static ContentValues toValues(MoodState mood) {
+        ContentValues values = new ContentValues();
+        values.put("id", mood.getId());
+        values.put("user", mood.getUser());
+        values.put("mood", mood.getMood());
+        values.put("reason", mood.getReason());
+        values.put("situation", mood.getSituation());
+        values.put("visibility", mood.getVisibility() == null ? null : (mood.getVisibility() ? 1 : 0));
+        values.put("image", mood.getImage() != null ? mood.getImage().toString() : null);
+        if (mood.getLocation() != null) {
+            values.put("latitude", mood.getLocation().getLatitude());
+            values.put("longitude", mood.getLocation().getLongitude());
+        } else {
+            values.putNull("latitude");
+            values.putNull("longitude");
+        }
+        values.put("timestamp", mood.getTimestamp());
+        values.put("zone_offset", mood.getZoneOffset().getTotalSeconds());
+        return values;
+    }
+
+    /**
+     * Callback for moods read from the store
+     */
+    public interface LocalMoodsCallback {
+        void onLoaded(ArrayList<MoodState> moods);
+    }
+}
@@ -1,12 +1,13 @@
 package com.example.androidproject;
 
+import android.content.Intent;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.location.Location;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
@@ -27,14 +28,22 @@ import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.BitmapDescriptor;
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.tasks.Task;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Displays the map for filtered mood feed,history, and 5k
@@ -42,7 +51,7 @@ import java.util.Random;
 public class LocationMapActivity extends AppCompatActivity {
 
     private ArrayList<MoodState> moodHistory;
-    private MoodHistoryManager moodHistoryManager;
+    private MoodAreaQuery areaQuery;
     private String currentUser;
     private TextView mapTitle;
     private static final String TAG = "LocationMapActivity";
@@ -55,6 +64,36 @@ public class LocationMapActivity extends AppCompatActivity {
     private FeedManager feedManager;
     private FloatingActionButton distanceFilter;
     private CheckBox checkNearbyFollowing;
+    // Markers on the map by cluster key, so updates only touch the clusters that changed
+    private HashMap<String, ShownMarker> markers = new HashMap<>();
+    // Zoom levels a tap on a cluster zooms in by
+    private static final float CLUSTER_ZOOM_STEP = 2;
+    // Builds and queries the clusters off the main thread, one job at a time
+    private final ExecutorService clusterExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private MoodClusterer clusterer;
+    // Spreads moods at the same spot apart, only used on the cluster thread
+    private final MarkerSpreader spreader = new MarkerSpreader();
+    // Counts builds and reclusterings so results that were overtaken are dropped
+    private int buildGeneration = 0;
+    private int clusterGeneration = 0;
+    // Loads the moods of the viewport on each camera stop, until the nearby filter freezes the list
+    private boolean loadByViewport = true;
+    // The unfiltered moods of the last viewport load, the filters are applied again on every load
+    private ArrayList<MoodState> viewportMoods = new ArrayList<>();
+    // Filters applied until they are reset, null when unused
+    private boolean recentWeekFilter = false;
+    private String emotionalStateFilter;
+    private String keywordFilter;
+    // The camera is only moved to the moods once, later updates leave it where the user put it
+    private boolean cameraPlaced = false;
+    // The mode and geohash cells of the last viewport load, the same cells need no new reads
+    private String loadedArea;
+    private int areaGeneration = 0;
+    // Following list of the user, read the first time the feed is shown
+    private ArrayList<String> following;
+    // Grid index of the feed the nearby filter searched last, reused while the feed is the same
+    private final Filter.DistanceIndex nearbyIndex = new Filter.DistanceIndex();
 
     /**
      * Main loop of the activity
@@ -83,8 +122,8 @@ public class LocationMapActivity extends AppCompatActivity {
                     .add(R.id.nav_bar_container, NavBarFragment.newInstance(currentUser))
                     .commit();
         }
-        // Initialize MoodHistoryManager and list
-        moodHistoryManager = new MoodHistoryManager();
+        // Initialize the viewport query and list
+        areaQuery = new MoodAreaQuery();
         moodHistory = new ArrayList<>();
 
         //loads map fragment
@@ -110,19 +149,17 @@ public class LocationMapActivity extends AppCompatActivity {
             public void onClick(View v) {
                 // If we are currently on feed switch to users own
                 if (feedScreen) {
-                    // Fetches the mood history of the user and updates the markers
-                    fetchMoodHistory(currentUser);
+                    // Sets feed status to false before loading the moods of the user in view
+                    feedScreen = Boolean.FALSE;
+                    reloadViewport();
                     followingFilter.setImageDrawable(ResourcesCompat.getDrawable(getResources(),R.drawable.personal,null));
                     mapTitle.setText("History Map");
-                    // Sets feed status to false
-                    feedScreen = Boolean.FALSE;
                 } else {
-                    // Fetches the mood feed and updates the markers
-                    fetchMoodFeed(currentUser);
+                    // Sets feed status to True before loading the feed moods in view
+                    feedScreen = Boolean.TRUE;
+                    reloadViewport();
                     followingFilter.setImageDrawable(ResourcesCompat.getDrawable(getResources(),R.drawable.feed,null));
                     mapTitle.setText("Feed Map");
-                    // Sets feed status to True
-                    feedScreen = Boolean.TRUE;
                 }
             }
         });
@@ -138,7 +175,7 @@ public class LocationMapActivity extends AppCompatActivity {
         if (mapFragment != null) {
             mapFragment.getMapAsync(new OnMapReadyCallback() {
                 /**
-                 * When ready initialize map aspect amd fetch the mood history of user
+                 * When ready initialize map aspect and start it at the newest mood of the user
                  * @param googleMap
                  */
                 @Override
@@ -146,11 +183,23 @@ public class LocationMapActivity extends AppCompatActivity {
                     mMap = googleMap;
                     // Enables zoomin because it way annoying me
                     mMap.getUiSettings().setZoomControlsEnabled(Boolean.TRUE);
+                    // Clusters and loads the moods of the new viewport once the camera stops
+                    mMap.setOnCameraIdleListener(LocationMapActivity.this::onCameraIdle);
+                    mMap.setOnMarkerClickListener(LocationMapActivity.this::onMarkerClick);
                     isMapReady = true;
                     Log.d(TAG, "Google Map is ready.");
 
-                    // Once map is ready, fetch mood history
-                    fetchMoodHistory(currentUser);
+                    // Once map is ready, start where the user last posted, the camera stop loads the moods
+                    areaQuery.fetchLatestLocation(currentUser).addOnCompleteListener(task -> {
+                        GeoCoordinate latest = task.isSuccessful() ? task.getResult() : null;
+                        if (latest != null) {
+                            cameraPlaced = true;
+                            mMap.moveCamera(CameraUpdateFactory.newLatLngZoom(
+                                    new LatLng(latest.getLatitude(), latest.getLongitude()), 10));
+                        } else {
+                            loadViewport();
+                        }
+                    });
                 }
             });
         } else {
@@ -160,180 +209,426 @@ public class LocationMapActivity extends AppCompatActivity {
     }
 
     /**
-     * Fetches the mood history of the user and adds markers on the map
-     * @param username
-     *      the name of the user who's feed we are checking
+     * Clusters the moods again for the new viewport and loads the moods that came into view
      */
-    private void fetchMoodHistory(String username) {
-        Log.d(TAG, "Fetching mood history for user: " + username);
-
-        moodHistoryManager.fetchMoodHistory(username, new MoodHistoryManager.MoodHistoryCallback() {
-            /**
-             * Once mood history is received add it to this classes list
-             * @param retrievedMoods
-             *      List of mood history
-             */
-            @Override
-            public void onCallback(ArrayList<MoodState> retrievedMoods) {
-                if (retrievedMoods != null) {
-                    moodHistory.clear();
-                    moodHistory.addAll(retrievedMoods);
-                    Log.d(TAG, "Fetched " + moodHistory.size() + " moods.");
-                } else {
-                    Log.e(TAG, "No moods found.");
-                    Toast.makeText(LocationMapActivity.this, "No moods found for user.", Toast.LENGTH_SHORT).show();
-                }
-
-                // Updates the map if the map is ready
-                if (isMapReady) {
-                    updateMapMarkers();
-                } else {
-                    Log.w(TAG, "Map is not ready yet. Markers will be added once map is loaded.");
-                }
-            }
-        });
+    private void onCameraIdle() {
+        recluster();
+        if (loadByViewport) {
+            loadViewport();
+        }
     }
 
     /**
-     * Gets the feed of a user
-     * @param username
-     *      the name of the user who's feed we are checking
+     * Goes back to loading the moods of the viewport, dropping any filtered list
      */
-    private void fetchMoodFeed(String username) {
-        Log.d(TAG, "Fetching mood history for user: " + username);
-        // Gets the following list
-        feedManager.getFollowing(username, new FeedManager.FollowingCallback() {
-            /**
-             *  Callback that provides the following list
-             * @param following
-             *      following list
-             */
-            @Override
-            public void onCallback(ArrayList<String> following) {
-                // Gets the feed using the following list
-                feedManager.fetchFeed(following, new FeedManager.FeedCallback() {
-                    /**
-                     * Callback for the feed
-                     * @param feed
-                     *      list of moods that make up the feed
-                     */
-                    @Override
-                    public void onCallback(ArrayList<MoodState> feed) {
-                        // Clears mood history and makes it equal to the feed
-                        Log.e("MOOD HISTORY SIZE", String.valueOf(moodHistory.size()));
-                        moodHistory.clear();
-                        Log.e("MOOD HISTORY SIZE", String.valueOf(moodHistory.size()));
-                        moodHistory = feed;
-                        Log.e("MOOD HISTORY SIZE", String.valueOf(moodHistory.size()));
-
-                        updateMapMarkers();
-                    }
-                });
-            }
-        });
+    private void reloadViewport() {
+        loadByViewport = true;
+        loadedArea = null;
+        loadViewport();
     }
 
     /**
-     * Adds slight variations to the latitude and longitude to prevent markers from overlapping.
+     * Loads the moods in the geohash cells covering the viewport, the user's own moods or their
+     * feed, and adds markers on the map. Does nothing while the viewport is in the cells that
+     * were loaded last.
      */
-    private LatLng getOffsetLocation(double latitude, double longitude) {
-        Random random = new Random();
-        double latOffset = (random.nextDouble() - 0.5) * 0.0005; // Small offset (~50m)
-        double lonOffset = (random.nextDouble() - 0.5) * 0.0005; // Small offset (~50m)
-        return new LatLng(latitude + latOffset, longitude + lonOffset);
+    private void loadViewport() {
+        if (!isMapReady || mMap == null) {
+            return;
+        }
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        double south = bounds.southwest.latitude;
+        double west = bounds.southwest.longitude;
+        double north = bounds.northeast.latitude;
+        double east = bounds.northeast.longitude;
+        boolean feed = feedScreen;
+        String area = (feed ? "feed" : "history") + GeoHash.cover(south, west, north, east);
+        if (area.equals(loadedArea)) {
+            return;
+        }
+        if (feed && following == null) {
+            // The feed needs the following list first
+            feedManager.getFollowing(currentUser, list -> {
+                following = list;
+                loadViewport();
+            });
+            return;
+        }
+        loadedArea = area;
+        int generation = ++areaGeneration;
+        Task<ArrayList<MoodState>> moods = feed
+                ? areaQuery.fetchFeedMoods(following, south, west, north, east)
+                : areaQuery.fetchUserMoods(currentUser, south, west, north, east);
+        moods.addOnCompleteListener(task -> {
+            // The camera moved on, a filter was applied or the mode changed while this loaded
+            if (generation != areaGeneration || !loadByViewport || isDestroyed()) {
+                return;
+            }
+            if (!task.isSuccessful()) {
+                Log.e(TAG, "Could not load the moods in view", task.getException());
+                loadedArea = null;
+                return;
+            }
+            viewportMoods = task.getResult();
+            moodHistory = applyFilters(viewportMoods);
+            Log.d(TAG, "Showing " + moodHistory.size() + " of " + viewportMoods.size()
+                    + (feed ? " feed" : "") + " moods around the viewport");
+            updateMapMarkers(false);
+        });
     }
 
     /**
-     * Adds the location markers the the map using the latitude and longitude
+     * Rebuilds the clusters from the mood list on the cluster thread, then shows them
      * Sets the camera where as long as there is one valid location it will
      * be the initial camera viewpoint
      */
     private void updateMapMarkers() {
+        updateMapMarkers(true);
+    }
+
+    /**
+     * Rebuilds the clusters from the mood list on the cluster thread, then shows them
+     * @param moveCamera
+     *      true to move the camera to the first mood with a valid location
+     */
+    private void updateMapMarkers(boolean moveCamera) {
         if (!isMapReady || mMap == null) {
             Log.e(TAG, "updateMapMarkers: Google Map is NULL or not ready!");
             return;
         }
 
-        mMap.clear(); // Remove old markers
-
-        if (!moodHistory.isEmpty()) {
-            Log.d(TAG, "Processing " + moodHistory.size() + " moods.");
-
-            boolean hasValidLocation = false;
-            LatLng firstValidLocation = null;
-
-            // Loops through all the moods
-            for (MoodState mood : moodHistory) {
-                // Only displays moods with location
-                if (mood.getLocation() != null) {
-                    double lat = mood.getLocation().getLatitude();
-                    double lon = mood.getLocation().getLongitude();
-
-                    // Gets the emoji to display
-                    Bitmap decodedEmoji = BitmapFactory.decodeResource(getResources(),mood.getEmoji());
-                    Bitmap tempEmoji = Bitmap.createScaledBitmap(decodedEmoji,200,200,Boolean.FALSE);
-                    BitmapDescriptor emoji = BitmapDescriptorFactory.fromBitmap(tempEmoji);
-                    // Checks that the latitude and longitude are valid
-                    if (lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180) {
-                        LatLng adjustedLocation = getOffsetLocation(lat, lon);
-                        // Addds the marker to the map
-                        mMap.addMarker(new MarkerOptions()
-                                        .position(adjustedLocation)
-                                        .title("@" + mood.getUser())
-                                        .snippet("Mood: " + mood.getMood()))
-                                // Makes emojis on the map
-                                .setIcon(emoji);;
-
-                        Log.d(TAG, "Added marker at: " + adjustedLocation.toString() + " for mood: " + mood.getMood());
-
-                        if (!hasValidLocation) {
-                            firstValidLocation = adjustedLocation;
-                            hasValidLocation = true;
-                        }
-                    } else {
-                        Log.e(TAG, "Invalid coordinates for mood: " + mood.getMood() + " [lat=" + lat + ", lon=" + lon + "]");
-                    }
-                } else {
-                    Log.w(TAG, "Skipping mood with NULL location: " + mood.getMood());
+        // Copies what the cluster thread needs by marker key, the list may be replaced while it works
+        LinkedHashMap<String, MoodState> moods = new LinkedHashMap<>();
+        int skipped = 0;
+        for (MoodState mood : moodHistory) {
+            GeoCoordinate location = mood.getLocation();
+            // Only displays moods with a valid location
+            if (location == null || !location.isValid() || mood.getType() == null) {
+                skipped++;
+                continue;
+            }
+            moods.putIfAbsent(markerKey(mood), mood);
+        }
+        Log.d(TAG, "Clustering " + moods.size() + " moods, " + skipped + " moods without a valid location");
+
+        int generation = ++buildGeneration;
+        clusterExecutor.execute(() -> {
+            long startedAt = System.nanoTime();
+            // Moods at the same spot are spread apart before clustering, so they part at high zoom
+            LinkedHashMap<String, GeoCoordinate> locations = new LinkedHashMap<>();
+            for (Map.Entry<String, MoodState> mood : moods.entrySet()) {
+                locations.put(mood.getKey(), mood.getValue().getLocation());
+            }
+            HashMap<String, GeoCoordinate> positions = spreader.layout(locations);
+            ArrayList<MoodClusterer.Point> points = new ArrayList<>(moods.size());
+            for (Map.Entry<String, MoodState> mood : moods.entrySet()) {
+                GeoCoordinate position = positions.get(mood.getKey());
+                points.add(new MoodClusterer.Point(mood.getKey(), position.getLatitude(),
+                        position.getLongitude(), mood.getValue().getType(), mood.getValue()));
+            }
+            MoodClusterer built = new MoodClusterer(points);
+            long millis = (System.nanoTime() - startedAt) / 1_000_000;
+            mainHandler.post(() -> {
+                // A newer list was sent while this one was built
+                if (generation != buildGeneration || isDestroyed()) {
+                    return;
+                }
+                Log.d(TAG, "Built clusters of " + built.size() + " moods in " + millis + " ms");
+                clusterer = built;
+                // Move camera ONLY on the first load and if there is at least one valid location
+                if (moveCamera && !cameraPlaced && !points.isEmpty()) {
+                    cameraPlaced = true;
+                    MoodClusterer.Point first = points.get(0);
+                    // The camera stop reclusters for the new viewport
+                    mMap.moveCamera(CameraUpdateFactory.newLatLngZoom(
+                            new LatLng(first.getLatitude(), first.getLongitude()), 10));
+                    return;
                 }
+                recluster();
+            });
+        });
+    }
+
+    /**
+     * Clusters the moods in view at the current zoom on the cluster thread, then updates the markers
+     */
+    private void recluster() {
+        if (mMap == null || clusterer == null) {
+            return;
+        }
+        MoodClusterer current = clusterer;
+        float zoom = mMap.getCameraPosition().zoom;
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        int generation = ++clusterGeneration;
+        clusterExecutor.execute(() -> {
+            List<MoodClusterer.Cluster> clusters = current.cluster(zoom, bounds.southwest.latitude,
+                    bounds.southwest.longitude, bounds.northeast.latitude, bounds.northeast.longitude);
+            mainHandler.post(() -> {
+                // The camera moved again or the moods changed while this ran
+                if (generation != clusterGeneration || current != clusterer || isDestroyed()) {
+                    return;
+                }
+                applyClusters(clusters);
+            });
+        });
+    }
+
+    /**
+     * Shows a set of clusters, only touching the markers of clusters that were added, moved,
+     * changed or removed since the last time, the rest stay on the map as they are.
+     * Clusters keep their key between reclusterings, so a pan only adds the clusters that came
+     * into view and removes the ones that left it.
+     * @param clusters
+     *      the clusters to show
+     */
+    private void applyClusters(List<MoodClusterer.Cluster> clusters) {
+        HashMap<String, ShownMarker> kept = new HashMap<>();
+        int added = 0;
+        int changed = 0;
+
+        for (MoodClusterer.Cluster cluster : clusters) {
+            String key = cluster.getKey();
+            if (kept.containsKey(key)) {
+                continue;
             }
+            MoodClusterer.Point point = cluster.getPoint();
+            MoodState mood = point != null ? (MoodState) point.getTag() : null;
+            // Single moods are shown where the spreader put them, clusters at their middle
+            LatLng position = new LatLng(cluster.getLatitude(), cluster.getLongitude());
+            String iconKey = mood != null
+                    ? mood.getType().name()
+                    : cluster.getCount() + Arrays.toString(cluster.getBreakdown());
+            String title = mood != null ? "@" + mood.getUser() : cluster.getCount() + " moods";
+            String snippet = mood != null ? "Mood: " + mood.getMood() : describeBreakdown(cluster.getBreakdown());
+
+            ShownMarker shown = markers.remove(key);
+            if (shown == null) {
+                Marker marker = mMap.addMarker(new MarkerOptions()
+                        .position(position)
+                        .title(title)
+                        .snippet(snippet)
+                        .icon(iconFor(cluster, mood)));
+                if (marker == null) {
+                    continue;
+                }
+                shown = new ShownMarker(marker, position, iconKey);
+                added++;
+            } else {
+                boolean touched = false;
+                if (!position.equals(shown.position)) {
+                    shown.marker.setPosition(position);
+                    shown.position = position;
+                    touched = true;
+                }
+                if (!iconKey.equals(shown.iconKey)) {
+                    shown.marker.setIcon(iconFor(cluster, mood));
+                    shown.iconKey = iconKey;
+                    touched = true;
+                }
+                if (!title.equals(shown.marker.getTitle())) {
+                    shown.marker.setTitle(title);
+                }
+                if (!snippet.equals(shown.marker.getSnippet())) {
+                    shown.marker.setSnippet(snippet);
+                }
+                if (touched) {
+                    changed++;
+                }
+            }
+            shown.marker.setTag(cluster);
+            kept.put(key, shown);
+        }
 
-            // Move camera ONLY if there is at least one valid location
-            if (hasValidLocation && firstValidLocation != null) {
-                mMap.moveCamera(CameraUpdateFactory.newLatLngZoom(firstValidLocation, 10));
+        // Whatever was not kept is out of view or merged into another cluster
+        int removed = markers.size();
+        for (ShownMarker shown : markers.values()) {
+            shown.marker.remove();
+        }
+        markers = kept;
+        Log.d(TAG, "Markers: " + added + " added, " + changed + " changed, " + removed + " removed, "
+                + kept.size() + " shown");
+    }
+
+    /**
+     * Gets the icon of a cluster, the mood's emoji if it only holds one
+     */
+    private BitmapDescriptor iconFor(MoodClusterer.Cluster cluster, MoodState mood) {
+        return mood != null
+                ? MarkerIcons.get(getResources(), mood.getType())
+                : MarkerIcons.cluster(getResources(), cluster.getCount(), cluster.getBreakdown());
+    }
+
+    /**
+     * Describes how many moods of each type a cluster holds, e.g. "3 Happiness, 1 Fear"
+     */
+    private static String describeBreakdown(int[] breakdown) {
+        StringBuilder description = new StringBuilder();
+        for (MoodType type : MoodType.all()) {
+            int count = breakdown[type.ordinal()];
+            if (count == 0) {
+                continue;
+            }
+            if (description.length() > 0) {
+                description.append(", ");
             }
+            description.append(count).append(' ').append(type.getLabel());
         }
+        return description.toString();
     }
+
+    /**
+     * Zooms in on a cluster when it is tapped, single moods show their info window.
+     * A cluster that is still whole at the deepest zoom lists its moods instead.
+     * @param marker
+     *      the marker that was tapped
+     * @return
+     *      true if the tap was handled
+     */
+    private boolean onMarkerClick(Marker marker) {
+        Object tag = marker.getTag();
+        if (tag instanceof MoodClusterer.Cluster && ((MoodClusterer.Cluster) tag).getPoint() == null) {
+            float maxZoom = mMap.getMaxZoomLevel();
+            float zoom = mMap.getCameraPosition().zoom;
+            if (zoom >= maxZoom) {
+                showClusterMoods((MoodClusterer.Cluster) tag);
+            } else {
+                mMap.animateCamera(CameraUpdateFactory.newLatLngZoom(marker.getPosition(),
+                        Math.min(maxZoom, zoom + CLUSTER_ZOOM_STEP)));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lists the moods of a cluster that zooming in cannot split, a tap opens the mood's details
+     * @param cluster
+     *      the cluster that was tapped
+     */
+    private void showClusterMoods(MoodClusterer.Cluster cluster) {
+        if (clusterer == null) {
+            return;
+        }
+        ArrayList<MoodState> moods = new ArrayList<>();
+        for (MoodClusterer.Point point : clusterer.pointsIn(cluster)) {
+            moods.add((MoodState) point.getTag());
+        }
+        moods.sort(MoodState.NEWEST_FIRST);
+        String[] items = new String[moods.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = "@" + moods.get(i).getUser() + ": " + moods.get(i).getMood();
+        }
+        new MaterialAlertDialogBuilder(this, R.style.CustomDialogStyle)
+                .setTitle(moods.size() + " moods here")
+                .setItems(items, (dialog, which) -> {
+                    MoodState mood = moods.get(which);
+                    Intent intent = new Intent(this, MoodDetailsActivity.class);
+                    intent.putExtra("id", mood.getId());
+                    intent.putExtra("user", currentUser);
+                    intent.putExtra("moodUser", mood.getUser());
+                    startActivity(intent);
+                })
+                .setNegativeButton("Close", null)
+                .show();
+    }
+
+    /**
+     * Gets the key a mood's marker is kept under between updates
+     */
+    private static String markerKey(MoodState mood) {
+        return mood.getId() != null ? mood.getId() : "@" + System.identityHashCode(mood);
+    }
+
+    /**
+     * A marker on the map and what it was drawn from
+     */
+    private static class ShownMarker {
+        private final Marker marker;
+        private LatLng position;
+        private String iconKey;
+
+        ShownMarker(Marker marker, LatLng position, String iconKey) {
+            this.marker = marker;
+            this.position = position;
+            this.iconKey = iconKey;
+        }
+    }
+
+    /**
+     * Stops the cluster thread
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        clusterExecutor.shutdownNow();
+    }
+
     /**
      * Filters the mood history by the most recent week.
+     * The filter stays on as the map is moved, every viewport load is filtered the same way.
      */
     public void filterByRecentWeek() {
+        recentWeekFilter = true;
         moodHistory = Filter.filterByRecentWeek(moodHistory);
         updateMapMarkers();
     }
 
     /**
      * Filters the mood history by a specific emotional state.
+     * The filter stays on as the map is moved, every viewport load is filtered the same way.
      *
      * @param emotionalState
      *        The emotional state to filter by.
      */
     public void filterByEmotionalState(String emotionalState) {
+        emotionalStateFilter = emotionalState;
         moodHistory = Filter.filterByEmotionalState(moodHistory, emotionalState);
         updateMapMarkers();
     }
 
     /**
      * Filters the mood history by a keyword in the reason text.
+     * The filter stays on as the map is moved, every viewport load is filtered the same way.
      *
      * @param keyword
      *      The keyword to filter by.
      */
     public void filterByKeyword(String keyword) {
+        keywordFilter = keyword;
         moodHistory = Filter.filterByKeyword(moodHistory, keyword);
         updateMapMarkers();
     }
 
+    /**
+     * Applies the filters that are on to a list of moods
+     * @param moods
+     *      the moods to filter
+     * @return
+     *      the moods that pass every filter
+     */
+    private ArrayList<MoodState> applyFilters(ArrayList<MoodState> moods) {
+        ArrayList<MoodState> filtered = moods;
+        if (recentWeekFilter) {
+            filtered = Filter.filterByRecentWeek(filtered);
+        }
+        if (emotionalStateFilter != null) {
+            filtered = Filter.filterByEmotionalState(filtered, emotionalStateFilter);
+        }
+        if (keywordFilter != null) {
+            filtered = Filter.filterByKeyword(filtered, keywordFilter);
+        }
+        return filtered;
+    }
+
+    /**
+     * Turns every filter off
+     */
+    private void clearFilters() {
+        recentWeekFilter = false;
+        emotionalStateFilter = null;
+        keywordFilter = null;
+    }
+
     /**
      * Shows the filter dialog with options.
      */
@@ -401,13 +696,9 @@ public class LocationMapActivity extends AppCompatActivity {
                 })
                 .setNegativeButton("Cancel", null)
                 .setNeutralButton("Reset", (dialog, which) -> {
-                    if (feedScreen) {
-                        // Fetches the mood history of the user and updates the markers
-                        fetchMoodFeed(currentUser);
-                    } else {
-                        // Fetches the mood feed and updates the markers
-                        fetchMoodHistory(currentUser);
-                    }
+                    // Loads the unfiltered moods of the viewport again
+                    clearFilters();
+                    reloadViewport();
                 })
                 .show();
 
@@ -431,34 +722,33 @@ public class LocationMapActivity extends AppCompatActivity {
                  */
                 @Override
                 public void onLocationReceived(Location location) {
-                    // get the users following list
-                    feedManager.getFollowing(currentUser, new FeedManager.FollowingCallback() {
+                    // get the users feed and following list from the cache
+                    feedManager.fetchFeedCached(currentUser, new FeedManager.CachedFeedCallback() {
                         /**
-                         * Gets the users following list
+                         * Gets the users feed and adds it to the map with 5k filter
                          * @param following
+                         *      the following list the feed was built from
+                         * @param feed
+                         *      the users feed
+                         * @param isStale
+                         *      if a refreshed feed is still on its way
                          */
                         @Override
-                        public void onCallback(ArrayList<String> following) {
-                            feedManager.fetchFeed(following, new FeedManager.FeedCallback() {
-                                /**
-                                 * Gets the users feed and adds it to the map with 5k filter
-                                 * @param feed
-                                 */
-                                @Override
-                                public void onCallback(ArrayList<MoodState> feed) {
-                                    // call the filter function
-                                    moodHistory = Filter.filterBy5kDistance(
-                                            feed, location, following, radius_in_km, currentUser);
-
-                                    // update the map to reflect this
-                                    updateMapMarkers();
-
-                                    // The number of moods found should be informed to the user
-                                    Toast.makeText(LocationMapActivity.this,
-                                            moodHistory.size() + " nearby mood events found",
-                                            Toast.LENGTH_SHORT).show();
-                                }
-                            });
+                        public void onFeed(ArrayList<String> following, ArrayList<MoodState> feed, boolean isStale) {
+                            // call the filter function, the result stays until the filter is reset
+                            loadByViewport = false;
+                            moodHistory = applyFilters(Filter.filterBy5kDistance(
+                                    feed, location, following, radius_in_km, currentUser, nearbyIndex));
+
+                            // update the map to reflect this
+                            updateMapMarkers();
+
+                            // The number of moods found should be informed to the user once the feed is current
+                            if (!isStale) {
+                                Toast.makeText(LocationMapActivity.this,
+                                        moodHistory.size() + " nearby mood events found",
+                                        Toast.LENGTH_SHORT).show();
+                            }
                         }
                     });
                 }
@@ -67,6 +67,8 @@ public class LoginActivity extends AppCompatActivity {
              */
             @Override
             public void onLoginSuccess() {
+                // Rewrites this user's moods stored with the old dayTime map, resumes where it stopped if interrupted
+                new MoodSchemaMigrator(getApplicationContext(), username).start();
                 Intent i = new Intent(LoginActivity.this, HomePageActivity.class);
                 i.putExtra("currentUser", username);
                 startActivity(i);
@@ -0,0 +1,125 @@
+package com.example.androidproject;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.LruCache;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+
+/**
+ * The map marker icon of every mood type, and the bubbles of mood clusters.
+ * Each emoji is decoded and scaled once and its BitmapDescriptor reused by every marker, instead of
+ * decoding the drawable again for each mood on each refresh. Cluster bubbles are kept by their
+ * count and breakdown, so reclustering only draws the bubbles that changed.
+ * Has to be used after the map is ready, BitmapDescriptorFactory needs Maps to be initialized.
+ */
+public final class MarkerIcons {
+    // Edge of a marker icon in pixels
+    static final int ICON_SIZE = 200;
+    // Edge of a cluster bubble in pixels
+    static final int CLUSTER_SIZE = 160;
+    // Width of the ring showing the mood breakdown, as a share of the bubble
+    private static final float RING_WIDTH = 0.16f;
+    // Cluster bubbles kept at once
+    private static final int CLUSTER_CACHE_SIZE = 128;
+
+    private static final EnumMap<MoodType, BitmapDescriptor> icons = new EnumMap<>(MoodType.class);
+    private static final LruCache<String, BitmapDescriptor> clusters = new LruCache<>(CLUSTER_CACHE_SIZE);
+
+    private MarkerIcons() {
+    }
+
+    /**
+     * Gets the marker icon of a mood type, building it the first time
+     * @param resources
+     *      resources to decode the emoji from
+     * @param type
+     *      the type of the mood
+     * @return
+     *      the shared icon
+     */
+    public static synchronized BitmapDescriptor get(Resources resources, MoodType type) {
+        BitmapDescriptor icon = icons.get(type);
+        if (icon == null) {
+            Bitmap decoded = BitmapFactory.decodeResource(resources, type.getEmoji());
+            Bitmap scaled = Bitmap.createScaledBitmap(decoded, ICON_SIZE, ICON_SIZE, false);
+            icon = BitmapDescriptorFactory.fromBitmap(scaled);
+            if (scaled != decoded) {
+                decoded.recycle();
+            }
+            icons.put(type, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Gets the bubble of a cluster, a ring split by mood type around the number of moods
+     * @param resources
+     *      resources to scale the text with
+     * @param count
+     *      the number of moods in the cluster
+     * @param breakdown
+     *      how many moods of each type are in the cluster, indexed by MoodType ordinal
+     * @return
+     *      the shared icon
+     */
+    public static synchronized BitmapDescriptor cluster(Resources resources, int count, int[] breakdown) {
+        String key = count + Arrays.toString(breakdown);
+        BitmapDescriptor icon = clusters.get(key);
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.fromBitmap(drawCluster(resources, count, breakdown));
+            clusters.put(key, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Draws a cluster bubble
+     */
+    private static Bitmap drawCluster(Resources resources, int count, int[] breakdown) {
+        Bitmap bitmap = Bitmap.createBitmap(CLUSTER_SIZE, CLUSTER_SIZE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        float ring = CLUSTER_SIZE * RING_WIDTH;
+        float inset = ring / 2;
+        RectF bounds = new RectF(inset, inset, CLUSTER_SIZE - inset, CLUSTER_SIZE - inset);
+
+        Paint fill = new Paint(Paint.ANTI_ALIAS_FLAG);
+        fill.setColor(Color.WHITE);
+        canvas.drawCircle(CLUSTER_SIZE / 2f, CLUSTER_SIZE / 2f, CLUSTER_SIZE / 2f - inset, fill);
+
+        // One arc per mood type, sized by its share of the cluster
+        Paint arc = new Paint(Paint.ANTI_ALIAS_FLAG);
+        arc.setStyle(Paint.Style.STROKE);
+        arc.setStrokeWidth(ring);
+        float start = -90;
+        for (MoodType type : MoodType.all()) {
+            int moods = breakdown[type.ordinal()];
+            if (moods == 0) {
+                continue;
+            }
+            float sweep = 360f * moods / count;
+            arc.setColor(type.getColorInt());
+            canvas.drawArc(bounds, start, sweep, false, arc);
+            start += sweep;
+        }
+
+        Paint text = new Paint(Paint.ANTI_ALIAS_FLAG);
+        text.setColor(Color.BLACK);
+        text.setTextAlign(Paint.Align.CENTER);
+        text.setFakeBoldText(true);
+        String label = count >= 1000 ? (count / 1000) + "k" : Integer.toString(count);
+        text.setTextSize(Math.min(CLUSTER_SIZE * 0.3f, 18 * resources.getDisplayMetrics().density));
+        float baseline = CLUSTER_SIZE / 2f - (text.descent() + text.ascent()) / 2;
+        canvas.drawText(label, CLUSTER_SIZE / 2f, baseline, text);
+        return bitmap;
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.androidproject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places the map markers of moods that would overlap.
+ * Moods closer than OVERLAP_METERS to each other are joined into one group, so a chain of close
+ * moods is one group no matter where it lies. Neighbours are found through a grid of cells at
+ * least OVERLAP_METERS wide and joined with union-find. A mood alone in its group is shown where it
+ * happened, moods sharing a group are laid out on a spiral around its anchor, the member with the
+ * lowest id hash.
+ * The order on the spiral comes from a hash of the mood id and the slot each mood got is kept by
+ * id, so a mood keeps its position across redraws and filters, and a group that gains or loses a
+ * mood only moves the moods that have to move.
+ * Does not use the Android framework so it can be tested on the JVM. Not thread safe, the map
+ * uses it from its cluster thread only.
+ */
+public class MarkerSpreader {
+    // Moods closer than this are treated as one spot, about the distance between spiral slots
+    static final double OVERLAP_METERS = 11;
+    // Distance between neighbouring spiral slots in degrees of latitude, about 11 m
+    static final double SPIRAL_STEP_DEGREES = 0.0001;
+    // Length of a degree of latitude
+    private static final double METERS_PER_DEGREE = GeoCoordinate.EARTH_RADIUS_METERS * Math.PI / 180;
+    // Turn between consecutive slots, the golden angle keeps slots evenly apart
+    private static final double GOLDEN_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+    // The group and slot each mood was given, by mood id
+    private final HashMap<String, Slot> slots = new HashMap<>();
+
+    /**
+     * Works out where to show each mood
+     * @param locations
+     *      where each mood happened, by mood id
+     * @return
+     *      where to show each mood, by mood id
+     */
+    public HashMap<String, GeoCoordinate> layout(Map<String, GeoCoordinate> locations) {
+        ArrayList<String> ids = new ArrayList<>(locations.keySet());
+        ArrayList<GeoCoordinate> points = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            points.add(locations.get(id));
+        }
+        int[] parents = group(points);
+
+        LinkedHashMap<Integer, ArrayList<String>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            int root = find(parents, i);
+            ArrayList<String> members = groups.get(root);
+            if (members == null) {
+                members = new ArrayList<>();
+                groups.put(root, members);
+            }
+            members.add(ids.get(i));
+        }
+
+        HashMap<String, GeoCoordinate> positions = new HashMap<>(locations.size() * 2);
+        for (ArrayList<String> members : groups.values()) {
+            if (members.size() == 1) {
+                String id = members.get(0);
+                positions.put(id, locations.get(id));
+                slots.put(id, new Slot(locations.get(id), 0));
+                continue;
+            }
+            spread(members, locations, positions);
+        }
+        return positions;
+    }
+
+    /**
+     * Joins every pair of points closer than OVERLAP_METERS.
+     * Points are put in grid cells at least OVERLAP_METERS wide, so a point only has to be checked
+     * against the points in its own and the eight cells around it.
+     * @param points
+     *      the points to group
+     * @return
+     *      the union-find parent of every point, points with the same root are one group
+     */
+    static int[] group(List<GeoCoordinate> points) {
+        int[] parents = new int[points.size()];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = i;
+        }
+        double rowDegrees = OVERLAP_METERS / METERS_PER_DEGREE;
+        // The last point put in each cell, and for every point the one put in its cell before it
+        HashMap<Long, Integer> cells = new HashMap<>();
+        int[] previous = new int[points.size()];
+        // Moods at the very same spot join the first one there without a search
+        HashMap<GeoCoordinate, Integer> spots = new HashMap<>();
+        for (int i = 0; i < points.size(); i++) {
+            GeoCoordinate point = points.get(i);
+            Integer same = spots.putIfAbsent(point, i);
+            if (same != null) {
+                union(parents, i, same);
+                continue;
+            }
+            long row = (long) Math.floor(point.getLatitude() / rowDegrees);
+            long ownColumn = 0;
+            for (long neighbourRow = row - 1; neighbourRow <= row + 1; neighbourRow++) {
+                int columns = columns(neighbourRow, rowDegrees);
+                long column = column(point.getLongitude(), columns);
+                if (neighbourRow == row) {
+                    ownColumn = column;
+                }
+                for (long offset = -1; offset <= 1; offset++) {
+                    // Columns wrap around the antimeridian
+                    long neighbourColumn = Math.floorMod(column + offset, (long) columns);
+                    Integer last = cells.get(cellKey(neighbourRow, neighbourColumn));
+                    for (int other = last == null ? -1 : last; other >= 0; other = previous[other]) {
+                        if (point.distanceTo(points.get(other)) <= OVERLAP_METERS) {
+                            union(parents, i, other);
+                        }
+                    }
+                }
+            }
+            Integer last = cells.put(cellKey(row, ownColumn), i);
+            previous[i] = last == null ? -1 : last;
+        }
+        return parents;
+    }
+
+    /**
+     * Gets how many cells a row of the grid is split into around the globe.
+     * Cells are sized at the edge of the row nearest a pole, so none is narrower than
+     * OVERLAP_METERS, and split the row evenly so the last cell before the antimeridian is too.
+     */
+    private static int columns(long row, double rowDegrees) {
+        double nearPole = Math.min(90, Math.max(Math.abs(row * rowDegrees), Math.abs((row + 1) * rowDegrees)));
+        double cosLatitude = Math.max(0.01, Math.cos(Math.toRadians(nearPole)));
+        return (int) Math.max(1, Math.floor(360 / (rowDegrees / cosLatitude)));
+    }
+
+    /**
+     * Gets the column of a longitude in a row split into a number of cells
+     */
+    private static long column(double longitude, int columns) {
+        return Math.min(columns - 1, (long) Math.floor((longitude + 180) / 360 * columns));
+    }
+
+    private static long cellKey(long row, long column) {
+        return (row << 32) | (column & 0xffffffffL);
+    }
+
+    /**
+     * Gets the root of a point's group, halving the path on the way
+     */
+    static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        if (rootA != rootB) {
+            // The lower index stays the root so groups come out in the order of their first mood
+            parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /**
+     * Lays out the moods of one spot on a spiral around the spot's anchor
+     */
+    private void spread(List<String> members, Map<String, GeoCoordinate> locations,
+                        Map<String, GeoCoordinate> positions) {
+        // The anchor only changes when the mood with the lowest hash joins or leaves
+        String anchor = members.get(0);
+        for (String id : members) {
+            if (byHash(id, anchor) < 0) {
+                anchor = id;
+            }
+        }
+        GeoCoordinate middle = locations.get(anchor);
+        double latitude = middle.getLatitude();
+        double longitude = middle.getLongitude();
+
+        // Moods that were already on this spiral keep their slot, the others take free slots by hash
+        HashMap<Integer, String> taken = new HashMap<>();
+        ArrayList<String> unplaced = new ArrayList<>();
+        for (String id : members) {
+            Slot slot = slots.get(id);
+            if (slot != null && slot.middle.equals(middle) && !taken.containsKey(slot.index)) {
+                taken.put(slot.index, id);
+            } else {
+                unplaced.add(id);
+            }
+        }
+        unplaced.sort(MarkerSpreader::byHash);
+        int next = 0;
+        for (String id : unplaced) {
+            while (taken.containsKey(next)) {
+                next++;
+            }
+            taken.put(next, id);
+            slots.put(id, new Slot(middle, next));
+        }
+
+        // Every spot turns its spiral by its own angle so neighbouring spots do not line up
+        double phase = (hash(latitude + ":" + longitude) >>> 11) * 0x1.0p-53 * 2 * Math.PI;
+        double cosLatitude = Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+        for (Map.Entry<Integer, String> slot : taken.entrySet()) {
+            int index = slot.getKey();
+            double radius = SPIRAL_STEP_DEGREES * Math.sqrt(index);
+            double angle = phase + index * GOLDEN_ANGLE;
+            double slotLongitude = longitude + radius * Math.cos(angle) / cosLatitude;
+            // Keeps longitudes that were pushed past the antimeridian on the globe
+            slotLongitude = slotLongitude > 180 ? slotLongitude - 360 : slotLongitude < -180 ? slotLongitude + 360 : slotLongitude;
+            double slotLatitude = Math.max(-90, Math.min(90, latitude + radius * Math.sin(angle)));
+            positions.put(slot.getValue(), new GeoCoordinate(slotLatitude, slotLongitude));
+        }
+    }
+
+    /**
+     * Orders mood ids by their hash, then by id when the hashes are the same
+     */
+    private static int byHash(String a, String b) {
+        int byHash = Long.compare(hash(a), hash(b));
+        return byHash != 0 ? byHash : a.compareTo(b);
+    }
+
+    /**
+     * Gets a well mixed 64 bit hash of a string, the same on every device and run
+     */
+    static long hash(String value) {
+        // FNV-1a, then the finalizer of SplitMix64 to spread the bits
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    /**
+     * The middle of the spot a mood was placed at and its place on the spiral there
+     */
+    private static final class Slot {
+        private final GeoCoordinate middle;
+        private final int index;
+
+        Slot(GeoCoordinate middle, int index) {
+            this.middle = middle;
+            this.index = index;
+        }
+    }
+}
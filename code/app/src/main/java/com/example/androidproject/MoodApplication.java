@@ -17,6 +17,18 @@ public class MoodApplication extends Application {
     public void onCreate() {
         super.onCreate();
 
+        // Firestore settings only apply before its first use
+        Database.configureCache(Database.CACHE_SIZE_BYTES);
+
+        // Opens the on device copy of the moods before any screen reads it
+        LocalMoodStore.init(this);
+
+        // Sends the moods, comments and images queued while offline or before the app was closed
+        WriteOutbox.init(this);
+
+        // Keeps image download URLs so screens can start loading images without asking Storage first
+        StorageUrlCache.init(this);
+
         // taken from https://stackoverflow.com/questions/10606408/automatically-log-android-lifecycle-events-using-activitylifecyclecallbacks
         // By Haasya on March 29th
         registerActivityLifecycleCallbacks(new ActivityLifecycleCallbacks() {
@@ -0,0 +1,244 @@
+package com.example.androidproject;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Fetches only the moods inside a map viewport.
+ * The viewport is covered by a few geohash cells and each cell is one range query on the
+ * "geohash" field, so the number of moods read grows with the area shown instead of with the whole
+ * history or feed. Cells reach a little past the viewport, so small pans need no new reads.
+ * Each cell query reads a share of VIEWPORT_LIMIT, so a wide view of a busy feed stays bounded.
+ * MoodSchemaMigrator only adds the geohash to the moods of the signed in user, so moods that still
+ * have none are read once per history or feed, kept, and matched against each viewport here.
+ */
+public class MoodAreaQuery {
+    private static final String TAG = "MoodAreaQuery";
+    // Names these reads in the read metrics of Database
+    private static final String SITE = "moodArea";
+    // Newest moods looked through for a location to start the map at
+    static final int LATEST_MOODS = 10;
+    // Most moods read for one viewport, shared by its cell queries
+    static final int VIEWPORT_LIMIT = 500;
+    // Fewest moods one cell query reads, however many queries the viewport takes
+    static final int MIN_CELL_LIMIT = 20;
+
+    private final FirebaseFirestore db;
+    // The located moods without a geohash of each history or feed, read the first time it is shown
+    private final HashMap<String, Task<ArrayList<MoodState>>> unhashedMoods = new HashMap<>();
+
+    public MoodAreaQuery() {
+        db = FirebaseFirestore.getInstance();
+    }
+
+    /**
+     * Fetches the moods of a user inside a viewport
+     * @param username
+     *      the user whose moods are shown
+     * @param south
+     *      the southern edge in degrees
+     * @param west
+     *      the western edge in degrees
+     * @param north
+     *      the northern edge in degrees
+     * @param east
+     *      the eastern edge in degrees, less than west if the viewport crosses the antimeridian
+     * @return
+     *      a Task with the moods in the cells covering the viewport
+     */
+    public Task<ArrayList<MoodState>> fetchUserMoods(String username, double south, double west,
+                                                     double north, double east) {
+        ArrayList<Query> queries = new ArrayList<>();
+        queries.add(db.collection("Moods").whereEqualTo("user", username));
+        return fetch("history/" + username, queries, south, west, north, east);
+    }
+
+    /**
+     * Fetches the public moods of the followed users inside a viewport
+     * @param following
+     *      the users whose moods are shown
+     * @param south
+     *      the southern edge in degrees
+     * @param west
+     *      the western edge in degrees
+     * @param north
+     *      the northern edge in degrees
+     * @param east
+     *      the eastern edge in degrees, less than west if the viewport crosses the antimeridian
+     * @return
+     *      a Task with the moods in the cells covering the viewport
+     */
+    public Task<ArrayList<MoodState>> fetchFeedMoods(List<String> following, double south, double west,
+                                                     double north, double east) {
+        ArrayList<Query> queries = new ArrayList<>();
+        for (List<String> users : FeedManager.chunk(following, FeedManager.WHERE_IN_LIMIT)) {
+            queries.add(db.collection("Moods")
+                    .whereIn("user", users)
+                    .whereEqualTo("visibility", Boolean.TRUE));
+        }
+        return fetch("feed/" + following, queries, south, west, north, east);
+    }
+
+    /**
+     * Finds where the newest mood of a user with a location happened, to start the map there
+     * @param username
+     *      the user whose moods are shown
+     * @return
+     *      a Task with the location, null if none of the newest moods has one
+     */
+    public Task<GeoCoordinate> fetchLatestLocation(String username) {
+        Query latest = db.collection("Moods")
+                .whereEqualTo("user", username)
+                .orderBy(MoodStateCodec.FIELD_TIMESTAMP, Query.Direction.DESCENDING)
+                .limit(LATEST_MOODS);
+        return Database.getInstance().read(latest, Database.ReadPolicy.DEFAULT, SITE)
+                .continueWith(read -> {
+                    for (QueryDocumentSnapshot document : read.getResult()) {
+                        GeoCoordinate location = MoodStateCodec.decode(document).getLocation();
+                        if (location != null && location.isValid()) {
+                            return location;
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Runs every query once per cell covering the viewport, each reading at most its share of
+     * VIEWPORT_LIMIT, and adds the moods without a geohash that are in view.
+     * Queries that fail are logged and left out so the rest of the viewport still shows.
+     * @param key
+     *      names the history or feed the queries read, for the moods without a geohash
+     */
+    private Task<ArrayList<MoodState>> fetch(String key, List<Query> queries, double south, double west,
+                                             double north, double east) {
+        List<String> cells = GeoHash.cover(south, west, north, east);
+        int cellLimit = Math.max(MIN_CELL_LIMIT, VIEWPORT_LIMIT / Math.max(1, queries.size() * cells.size()));
+        ArrayList<Task<QuerySnapshot>> reads = new ArrayList<>();
+        for (Query query : queries) {
+            for (String cell : cells) {
+                Query range = query.orderBy(MoodStateCodec.FIELD_GEOHASH)
+                        .startAt(cell)
+                        .endAt(GeoHash.rangeEnd(cell))
+                        .limit(cellLimit);
+                reads.add(Database.getInstance().read(range, Database.ReadPolicy.DEFAULT, SITE));
+            }
+        }
+        Task<ArrayList<MoodState>> unhashed = fetchUnhashed(key, queries);
+        ArrayList<Task<?>> all = new ArrayList<>(reads);
+        all.add(unhashed);
+        return Tasks.whenAllComplete(all).continueWith(done -> {
+            // Keyed by id, a mood is only listed once
+            LinkedHashMap<String, MoodState> moods = new LinkedHashMap<>();
+            int fullCells = 0;
+            for (Task<QuerySnapshot> read : reads) {
+                if (!read.isSuccessful()) {
+                    Log.w(TAG, "Could not read a cell of the viewport", read.getException());
+                    continue;
+                }
+                if (read.getResult().size() >= cellLimit) {
+                    fullCells++;
+                }
+                for (QueryDocumentSnapshot document : read.getResult()) {
+                    moods.put(document.getId(), MoodStateCodec.decode(document));
+                }
+            }
+            if (fullCells > 0) {
+                Log.d(TAG, fullCells + " cell queries stopped at " + cellLimit + " moods, zooming in shows the rest");
+            }
+            if (unhashed.isSuccessful()) {
+                for (MoodState mood : unhashed.getResult()) {
+                    if (isInside(mood.getLocation(), south, west, north, east)) {
+                        moods.putIfAbsent(mood.getId(), mood);
+                    }
+                }
+            }
+            Log.d(TAG, "Read " + moods.size() + " moods in " + cells.size() + " cells with "
+                    + reads.size() + " queries");
+            return new ArrayList<>(moods.values());
+        });
+    }
+
+    /**
+     * Gets the located moods of a history or feed that have no geohash yet, reading them the first
+     * time. Firestore cannot query for a missing field, so every mood the queries match is read
+     * once and only the ones without a geohash are kept. A failed read is tried again next time.
+     * @param key
+     *      names the history or feed the queries read
+     * @param queries
+     *      the queries of the history or feed, without a cell range
+     * @return
+     *      a Task with the moods that have a valid location and no geohash
+     */
+    private Task<ArrayList<MoodState>> fetchUnhashed(String key, List<Query> queries) {
+        Task<ArrayList<MoodState>> cached = unhashedMoods.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        ArrayList<Task<QuerySnapshot>> reads = new ArrayList<>();
+        for (Query query : queries) {
+            reads.add(Database.getInstance().read(query, Database.ReadPolicy.DEFAULT, SITE));
+        }
+        Task<ArrayList<MoodState>> unhashed = Tasks.whenAllSuccess(reads).continueWith(done -> {
+            if (!done.isSuccessful()) {
+                Log.w(TAG, "Could not read the moods without a geohash", done.getException());
+                unhashedMoods.remove(key);
+                throw done.getException();
+            }
+            ArrayList<MoodState> moods = new ArrayList<>();
+            for (Task<QuerySnapshot> read : reads) {
+                for (QueryDocumentSnapshot document : read.getResult()) {
+                    if (document.contains(MoodStateCodec.FIELD_GEOHASH)) {
+                        continue;
+                    }
+                    MoodState mood = MoodStateCodec.decode(document);
+                    if (mood.getLocation() != null && mood.getLocation().isValid()) {
+                        moods.add(mood);
+                    }
+                }
+            }
+            Log.d(TAG, "Found " + moods.size() + " located moods without a geohash for " + key);
+            return moods;
+        });
+        unhashedMoods.put(key, unhashed);
+        return unhashed;
+    }
+
+    /**
+     * Checks if a location is inside a viewport
+     * @param location
+     *      the location to check
+     * @param south
+     *      the southern edge in degrees
+     * @param west
+     *      the western edge in degrees
+     * @param north
+     *      the northern edge in degrees
+     * @param east
+     *      the eastern edge in degrees, less than west if the viewport crosses the antimeridian
+     * @return
+     *      true if the location is in the viewport
+     */
+    static boolean isInside(GeoCoordinate location, double south, double west, double north, double east) {
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+        if (latitude < south || latitude > north) {
+            return false;
+        }
+        if (west <= east) {
+            return longitude >= west && longitude <= east;
+        }
+        return longitude >= west || longitude <= east;
+    }
+}
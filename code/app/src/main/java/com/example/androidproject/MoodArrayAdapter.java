@@ -2,7 +2,6 @@ package com.example.androidproject;
 
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Color;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -76,8 +75,7 @@ public class MoodArrayAdapter extends ArrayAdapter<MoodState> {
                 imageView.setImageResource(emoji);
 
                 // Set the text color of moodTextView using the color from MoodState
-                String hexColor = "#" + moodState.getColor(); // Prepend '#' to the hex color
-                moodTextView.setTextColor(Color.parseColor(hexColor));
+                moodTextView.setTextColor(moodState.getColorInt());
 
                 // Set click listener for view more button
                 viewMoreButton.setOnClickListener(v -> {
@@ -0,0 +1,482 @@
+package com.example.androidproject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups mood positions into map clusters with a quadtree.
+ * Positions are projected to Web Mercator world coordinates from 0 to 1, the projection the map
+ * tiles use, and stored in a quadtree whose nodes keep their count, coordinate sums and a count per
+ * mood type. A cluster is a node at the depth whose cell is about CLUSTER_CELL_DP wide on screen,
+ * so clustering a viewport only visits the nodes it shows instead of every mood.
+ * Cluster keys only depend on the depth and cell, and single moods are keyed by their id, so
+ * reclustering after a pan or a zoom returns the same keys for what did not change.
+ * Does not use the Android framework, so it can be built and queried on any thread.
+ */
+public class MoodClusterer {
+    // Width of a cluster cell on screen in dp
+    static final double CLUSTER_CELL_DP = 80;
+    // Width of the world at zoom 0 in dp
+    static final double WORLD_DP = 256;
+    // Points a leaf holds before it splits
+    static final int LEAF_CAPACITY = 32;
+    // Deepest node, leaves at this depth hold any number of points
+    static final int MAX_DEPTH = 24;
+    // Furthest latitude Web Mercator can show
+    static final double MAX_LATITUDE = 85.05112878;
+
+    private static final int TYPES = MoodType.values().length;
+
+    private final Node root = new Node(0, 0, 0);
+    private int size = 0;
+
+    /**
+     * Builds the quadtree over a set of points
+     * @param points
+     *      the points to cluster
+     */
+    public MoodClusterer(List<Point> points) {
+        for (Point point : points) {
+            add(point);
+        }
+    }
+
+    /**
+     * Adds a point to the tree
+     * @param point
+     *      the point to add
+     */
+    public void add(Point point) {
+        root.add(point);
+        size++;
+    }
+
+    /**
+     * Gets how many points are in the tree
+     * @return
+     *      the number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the depth whose cells are about CLUSTER_CELL_DP wide at a zoom level
+     * @param zoom
+     *      the map zoom
+     * @return
+     *      the depth to cluster at
+     */
+    static int depthForZoom(float zoom) {
+        double depth = zoom + Math.log(WORLD_DP / CLUSTER_CELL_DP) / Math.log(2);
+        return (int) Math.max(0, Math.min(MAX_DEPTH, Math.floor(depth)));
+    }
+
+    /**
+     * Clusters the points in a viewport
+     * @param zoom
+     *      the map zoom
+     * @param south
+     *      the southern edge of the viewport in degrees
+     * @param west
+     *      the western edge of the viewport in degrees
+     * @param north
+     *      the northern edge of the viewport in degrees
+     * @param east
+     *      the eastern edge of the viewport in degrees, less than west if the viewport crosses
+     *      the antimeridian
+     * @return
+     *      the clusters, clusters at the edge may reach past the viewport
+     */
+    public List<Cluster> cluster(float zoom, double south, double west, double north, double east) {
+        int depth = depthForZoom(zoom);
+        double minY = projectY(north);
+        double maxY = projectY(south);
+        ArrayList<Cluster> clusters = new ArrayList<>();
+        if (west <= east) {
+            root.collect(depth, projectX(west), minY, projectX(east), maxY, clusters);
+        } else {
+            root.collect(depth, projectX(west), minY, 1, maxY, clusters);
+            root.collect(depth, 0, minY, projectX(east), maxY, clusters);
+        }
+        return clusters;
+    }
+
+    /**
+     * Gets the points a cluster holds, e.g. to list the moods of a cluster that zooming in
+     * cannot split because they are all at the same spot
+     * @param cluster
+     *      a cluster returned by cluster()
+     * @return
+     *      the points in the cell of the cluster
+     */
+    public List<Point> pointsIn(Cluster cluster) {
+        ArrayList<Point> points = new ArrayList<>();
+        if (cluster.getPoint() != null) {
+            points.add(cluster.getPoint());
+            return points;
+        }
+        String[] cell = cluster.getKey().split(":");
+        int depth = Integer.parseInt(cell[0]);
+        long cellX = Long.parseLong(cell[1]);
+        long cellY = Long.parseLong(cell[2]);
+        Node node = root;
+        while (node != null && node.depth < depth && node.children != null) {
+            int shift = depth - node.depth - 1;
+            long childX = cellX >> shift;
+            long childY = cellY >> shift;
+            node = node.children[(int) ((childX - node.cellX * 2) + 2 * (childY - node.cellY * 2))];
+        }
+        if (node != null) {
+            node.collectPoints(depth, cellX, cellY, points);
+        }
+        return points;
+    }
+
+    /**
+     * Projects a longitude to a world x from 0 to 1
+     */
+    static double projectX(double longitude) {
+        return Math.min(Math.max((longitude + 180) / 360, 0), Math.nextDown(1.0));
+    }
+
+    /**
+     * Projects a latitude to a world y from 0 at the top to 1 at the bottom
+     */
+    static double projectY(double latitude) {
+        double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        double sin = Math.sin(Math.toRadians(clamped));
+        double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return Math.min(Math.max(y, 0), Math.nextDown(1.0));
+    }
+
+    /**
+     * Turns a world x back into a longitude
+     */
+    static double unprojectX(double x) {
+        return x * 360 - 180;
+    }
+
+    /**
+     * Turns a world y back into a latitude
+     */
+    static double unprojectY(double y) {
+        double n = Math.PI * (1 - 2 * y);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    /**
+     * Gets the key of a cluster cell
+     */
+    private static String cellKey(int depth, long cellX, long cellY) {
+        return depth + ":" + cellX + ":" + cellY;
+    }
+
+    /**
+     * A node of the quadtree, covering one cell of its depth
+     */
+    private static class Node {
+        private final int depth;
+        private final long cellX;
+        private final long cellY;
+        private int count = 0;
+        private double sumX = 0;
+        private double sumY = 0;
+        private final int[] breakdown = new int[TYPES];
+        // Points of a leaf, null once the node has split
+        private ArrayList<Point> points = new ArrayList<>();
+        private Node[] children;
+
+        Node(int depth, long cellX, long cellY) {
+            this.depth = depth;
+            this.cellX = cellX;
+            this.cellY = cellY;
+        }
+
+        void add(Point point) {
+            Node node = this;
+            while (true) {
+                node.count++;
+                node.sumX += point.x;
+                node.sumY += point.y;
+                node.breakdown[point.type.ordinal()]++;
+                if (node.children == null) {
+                    node.points.add(point);
+                    if (node.points.size() > LEAF_CAPACITY && node.depth < MAX_DEPTH) {
+                        node.split();
+                    }
+                    return;
+                }
+                node = node.childFor(point);
+            }
+        }
+
+        private void split() {
+            children = new Node[4];
+            ArrayList<Point> moved = points;
+            points = null;
+            for (Point point : moved) {
+                Node child = childFor(point);
+                child.count++;
+                child.sumX += point.x;
+                child.sumY += point.y;
+                child.breakdown[point.type.ordinal()]++;
+                child.points.add(point);
+            }
+            // A child that got every point splits again
+            for (Node child : children) {
+                if (child != null && child.points.size() > LEAF_CAPACITY && child.depth < MAX_DEPTH) {
+                    child.split();
+                }
+            }
+        }
+
+        private Node childFor(Point point) {
+            int childDepth = depth + 1;
+            long scale = 1L << childDepth;
+            long x = Math.min(scale - 1, (long) (point.x * scale));
+            long y = Math.min(scale - 1, (long) (point.y * scale));
+            int index = (int) ((x - cellX * 2) + 2 * (y - cellY * 2));
+            Node child = children[index];
+            if (child == null) {
+                child = new Node(childDepth, x, y);
+                children[index] = child;
+            }
+            return child;
+        }
+
+        private boolean intersects(double minX, double minY, double maxX, double maxY) {
+            double size = 1.0 / (1L << depth);
+            double left = cellX * size;
+            double top = cellY * size;
+            return left <= maxX && left + size >= minX && top <= maxY && top + size >= minY;
+        }
+
+        void collect(int target, double minX, double minY, double maxX, double maxY, List<Cluster> out) {
+            if (count == 0 || !intersects(minX, minY, maxX, maxY)) {
+                return;
+            }
+            if (count == 1) {
+                out.add(Cluster.single(firstPoint()));
+                return;
+            }
+            if (depth == target) {
+                out.add(new Cluster(cellKey(depth, cellX, cellY), unprojectY(sumY / count),
+                        unprojectX(sumX / count), count, breakdown.clone(), null));
+                return;
+            }
+            if (children == null) {
+                collectLeaf(target, minX, minY, maxX, maxY, out);
+                return;
+            }
+            for (Node child : children) {
+                if (child != null) {
+                    child.collect(target, minX, minY, maxX, maxY, out);
+                }
+            }
+        }
+
+        /**
+         * Groups the points of a leaf that is shallower than the cluster depth by their cell,
+         * skipping cells outside the viewport
+         */
+        private void collectLeaf(int target, double minX, double minY, double maxX, double maxY, List<Cluster> out) {
+            long scale = 1L << target;
+            double size = 1.0 / scale;
+            HashMap<String, ArrayList<Point>> cells = new HashMap<>();
+            for (Point point : points) {
+                long x = Math.min(scale - 1, (long) (point.x * scale));
+                long y = Math.min(scale - 1, (long) (point.y * scale));
+                if (x * size > maxX || (x + 1) * size < minX || y * size > maxY || (y + 1) * size < minY) {
+                    continue;
+                }
+                String key = cellKey(target, x, y);
+                ArrayList<Point> cell = cells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<>();
+                    cells.put(key, cell);
+                }
+                cell.add(point);
+            }
+            for (Map.Entry<String, ArrayList<Point>> cell : cells.entrySet()) {
+                ArrayList<Point> members = cell.getValue();
+                if (members.size() == 1) {
+                    out.add(Cluster.single(members.get(0)));
+                    continue;
+                }
+                double x = 0;
+                double y = 0;
+                int[] counts = new int[TYPES];
+                for (Point point : members) {
+                    x += point.x;
+                    y += point.y;
+                    counts[point.type.ordinal()]++;
+                }
+                out.add(new Cluster(cell.getKey(), unprojectY(y / members.size()), unprojectX(x / members.size()),
+                        members.size(), counts, null));
+            }
+        }
+
+        /**
+         * Adds the points under this node that are in a cell of the target depth
+         */
+        void collectPoints(int target, long targetX, long targetY, List<Point> out) {
+            if (children != null) {
+                for (Node child : children) {
+                    if (child != null) {
+                        child.collectPoints(target, targetX, targetY, out);
+                    }
+                }
+                return;
+            }
+            long scale = 1L << target;
+            for (Point point : points) {
+                // Leaves shallower than the target hold points of the cells around it too
+                long x = Math.min(scale - 1, (long) (point.x * scale));
+                long y = Math.min(scale - 1, (long) (point.y * scale));
+                if (x == targetX && y == targetY) {
+                    out.add(point);
+                }
+            }
+        }
+
+        private Point firstPoint() {
+            Node node = this;
+            while (node.children != null) {
+                Node next = null;
+                for (Node child : node.children) {
+                    if (child != null && child.count > 0) {
+                        next = child;
+                        break;
+                    }
+                }
+                node = next;
+            }
+            return node.points.get(0);
+        }
+    }
+
+    /**
+     * A mood position to cluster
+     */
+    public static final class Point {
+        private final String id;
+        private final double latitude;
+        private final double longitude;
+        private final MoodType type;
+        private final Object tag;
+        private final double x;
+        private final double y;
+
+        /**
+         * Creates a point
+         * @param id
+         *      the id of the mood, used as the key of its marker when it is not clustered
+         * @param latitude
+         *      the latitude of the mood
+         * @param longitude
+         *      the longitude of the mood
+         * @param type
+         *      the type of the mood, counted in the breakdown of its cluster, not null
+         * @param tag
+         *      anything the caller wants back for unclustered points, e.g. the MoodState
+         */
+        public Point(String id, double latitude, double longitude, MoodType type, Object tag) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.type = type;
+            this.tag = tag;
+            this.x = projectX(longitude);
+            this.y = projectY(latitude);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public MoodType getType() {
+            return type;
+        }
+
+        public Object getTag() {
+            return tag;
+        }
+    }
+
+    /**
+     * A group of moods shown as one marker, or a single mood
+     */
+    public static final class Cluster {
+        private final String key;
+        private final double latitude;
+        private final double longitude;
+        private final int count;
+        private final int[] breakdown;
+        private final Point point;
+
+        Cluster(String key, double latitude, double longitude, int count, int[] breakdown, Point point) {
+            this.key = key;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.count = count;
+            this.breakdown = breakdown;
+            this.point = point;
+        }
+
+        static Cluster single(Point point) {
+            int[] breakdown = new int[TYPES];
+            breakdown[point.type.ordinal()] = 1;
+            return new Cluster(point.id, point.latitude, point.longitude, 1, breakdown, point);
+        }
+
+        /**
+         * Gets the key of the marker, the same for the same cluster across reclusterings
+         * @return
+         *      the mood id for single moods, otherwise the depth and cell of the cluster
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Gets how many moods of each type are in the cluster
+         * @return
+         *      the counts, indexed by MoodType ordinal
+         */
+        public int[] getBreakdown() {
+            return breakdown;
+        }
+
+        /**
+         * Gets the mood of a cluster of one
+         * @return
+         *      the point, or null if the cluster holds more than one mood
+         */
+        public Point getPoint() {
+            return point;
+        }
+    }
+}
@@ -24,11 +24,8 @@ import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QuerySnapshot;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
-import com.squareup.picasso.Picasso;
 
-import java.text.DateFormatSymbols;
+import java.time.DateTimeException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -331,24 +328,16 @@ public class MoodDetailsActivity extends AppCompatActivity {
             // Load image if available
             if (imageUrl != null && !imageUrl.isEmpty()) {
                 try {
-                    // Initialize Firebase Storage
-                    FirebaseStorage storage = FirebaseStorage.getInstance();
-
-                    // Create a reference to the image file
-                    StorageReference imageRef = storage.getReference().child("images/" + imageUrl);
-                    // Get the download URL and load it
-                    imageRef.getDownloadUrl()
-                            .addOnSuccessListener(uri -> {
-                                ivMoodImage.setVisibility(View.VISIBLE);
-                                Picasso.get()
-                                        .load(uri)
-                                        .placeholder(R.drawable.error_placeholder_image)
-                                        .error(R.drawable.error_placeholder_image)
-                                        .into(ivMoodImage);
-                            })
+                    // Shows the placeholder until the image is loaded
+                    ivMoodImage.setVisibility(View.VISIBLE);
+                    ivMoodImage.setImageResource(R.drawable.error_placeholder_image);
+                    // Load the smallest size that fills the view, from the cache when it was seen before
+                    MoodImageLoader.getInstance(this).load(imageUrl, ImageVariant.forView(ivMoodImage))
+                            .addOnSuccessListener(bitmap -> ivMoodImage.setImageBitmap(bitmap))
                             .addOnFailureListener(e -> {
-                                // Log the error but don't crash
-                                ivMoodImage.setVisibility(View.GONE);
+                                // Log the error but don't crash, the error image stays in place
+                                Log.w(TAG, "Could not load image of mood " + imageUrl, e);
+                                ivMoodImage.setImageResource(R.drawable.error_placeholder_image);
                             });
                 } catch (Exception e) {
                     ivMoodImage.setVisibility(View.GONE);
@@ -359,10 +348,11 @@ public class MoodDetailsActivity extends AppCompatActivity {
 
             if (locationMap != null) {
                 // Get the longitude and latitude of the location
-                Double latitude = (Double) locationMap.get("latitude");
-                Double longitude = (Double) locationMap.get("longitude");
+                GeoCoordinate location = MoodStateCodec.readLocation(locationMap);
 
-                if (latitude != null && longitude != null) {
+                if (location != null) {
+                    double latitude = location.getLatitude();
+                    double longitude = location.getLongitude();
                     try {
                         // Use geocoder to convert longitude and latitude to an address
                         Geocoder geocoder = new Geocoder(this, Locale.getDefault());
@@ -421,69 +411,25 @@ public class MoodDetailsActivity extends AppCompatActivity {
      * @param document The DocumentSnapshot containing potential timestamp information
      */
     private void handleTimestamp(DocumentSnapshot document) {
-        // Check for dayTime as map
-        Object dayTimeObj = document.get("dayTime");
-        if (dayTimeObj instanceof Map) {
-            Map<String, Object> dayTimeMap = (Map<String, Object>) dayTimeObj;
-            formatTimestampFromMap(dayTimeMap);
-            return;
-        }
-
-        // Check for dayTime as string (ISO format)
-        String dayTimeStr = document.getString("dayTime");
-        if (dayTimeStr != null) {
+        LocalDateTime dateTime = null;
+        try {
+            dateTime = MoodStateCodec.readDayTime(document);
+        } catch (IllegalArgumentException | DateTimeException e) {
+            // A broken timestamp or zone offset, the dayTime the mood was posted with may still be there
+            Log.w(TAG, "Could not read the time of mood " + document.getId() + ", showing its dayTime", e);
             try {
-                LocalDateTime dateTime = null;
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    dateTime = LocalDateTime.parse(dayTimeStr);
-                }
-                formatTimestampFromLocalDateTime(dateTime);
-                return;
-            } catch (Exception e) {
+                dateTime = MoodStateCodec.readLegacyDayTime(document);
+            } catch (IllegalArgumentException | DateTimeException legacyError) {
+                Log.w(TAG, "Could not read the dayTime of mood " + document.getId(), legacyError);
             }
         }
-
-        // Check for timestamp field
-        Long timestamp = document.getLong("timestamp");
-        if (timestamp != null) {
-            String formattedDate = new java.text.SimpleDateFormat(
-                    "MMMM d, yyyy 'at' h:mm a", Locale.getDefault())
-                    .format(new java.util.Date(timestamp));
-            tvTimestamp.setText(formattedDate);
+        if (dateTime != null) {
+            formatTimestampFromLocalDateTime(dateTime);
             return;
         }
         tvTimestamp.setText("Unknown time");
     }
 
-    /**
-     * Formats timestamp from a map representation of date and time.
-     *
-     * @param dayTimeMap A map containing date and time components
-     */
-    private void formatTimestampFromMap(Map<String, Object> dayTimeMap) {
-        try {
-            int year = ((Long) dayTimeMap.get("year")).intValue();
-            int monthValue = ((Long) dayTimeMap.get("monthValue")).intValue();
-            int day = ((Long) dayTimeMap.get("dayOfMonth")).intValue();
-            int hour = ((Long) dayTimeMap.get("hour")).intValue();
-            int minute = ((Long) dayTimeMap.get("minute")).intValue();
-
-            // Convert month number to full name
-            String monthName = new DateFormatSymbols().getMonths()[monthValue - 1];
-
-            // Format time in 12-hour format
-            String amPm = (hour < 12) ? "AM" : "PM";
-            int displayHour = (hour == 0 || hour == 12) ? 12 : hour % 12;
-
-            String formattedTime = String.format(Locale.getDefault(),
-                    "%s %d, %d at %d:%02d %s", monthName, day, year, displayHour, minute, amPm);
-
-            tvTimestamp.setText(formattedTime);
-        } catch (Exception e) {
-            tvTimestamp.setText("Unknown time");
-        }
-    }
-
     /**
      * Formats timestamp from a LocalDateTime object.
      *
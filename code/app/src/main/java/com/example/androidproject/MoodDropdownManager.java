@@ -9,7 +9,7 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.PopupWindow;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Allows for the mood drop down selection
@@ -19,7 +19,7 @@ public class MoodDropdownManager {
     private Button dropdownButton;
     private PopupWindow popupWindow;
     private MoodSelectionAdapter adapter;
-    private ArrayList<String> moodList;
+    private List<MoodType> moodList;
     private MoodSelectedListener listener;
 
     // Interface for callback
@@ -39,15 +39,7 @@ public class MoodDropdownManager {
         this.listener = listener;
 
         // Initialize the mood list
-        moodList = new ArrayList<>();
-        moodList.add("Anger");
-        moodList.add("Confusion");
-        moodList.add("Disgust");
-        moodList.add("Fear");
-        moodList.add("Happiness");
-        moodList.add("Sadness");
-        moodList.add("Shame");
-        moodList.add("Surprise");
+        moodList = MoodType.all();
 
         adapter = new MoodSelectionAdapter(context, moodList);
         setupPopupWindow();
@@ -77,7 +69,7 @@ public class MoodDropdownManager {
              */
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                String selectedMood = moodList.get(position);
+                String selectedMood = moodList.get(position).getLabel();
                 dropdownButton.setText(selectedMood);
                 if (listener != null) {
                     listener.onMoodSelected(selectedMood);
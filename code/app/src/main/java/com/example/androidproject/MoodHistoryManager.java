@@ -1,20 +1,18 @@
 package com.example.androidproject;
 
-import android.location.LocationManager;
-import android.net.Uri;
 import android.util.Log;
 
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 
-import java.time.LocalDateTime;
-import android.location.Location;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 
 /**
@@ -23,6 +21,9 @@ import java.util.Map;
  */
 
 public class MoodHistoryManager {
+    // Identical mood history reads running at the same time share one request
+    private static final SingleFlight<ArrayList<MoodState>> historyFlights = new SingleFlight<>();
+
     private FirebaseFirestore db;
 
     public MoodHistoryManager() {
@@ -31,67 +32,79 @@ public class MoodHistoryManager {
 
     /**
      * Fetches the mood history for a user from the "moods" collection.
+     * When the moods of the user are on the device they are passed to the callback straight away,
+     * then the store is synced and the callback runs again if anything changed.
+     * Callers asking for the same user while a fetch is running share that fetch.
      *
      * @param userId   The ID of the user.
-     * @param callback The callback to handle the result.
+     * @param callback The callback to handle the result, may run twice.
      */
     public void fetchMoodHistory(String userId, MoodHistoryCallback callback) {
-        db.collection("Moods")
-                .whereEqualTo("user", userId) // Filter moods by the user ID
-                .get()
+        LocalMoodStore store = LocalMoodStore.getInstance();
+        if (store == null) {
+            fetchMoodHistoryFromServer(userId, callback);
+            return;
+        }
+        store.loadUserMoods(userId, local -> {
+            if (local != null) {
+                callback.onCallback(local);
+            }
+            new MoodSyncEngine(store).syncUser(userId).addOnCompleteListener(task -> {
+                if (task.isSuccessful()) {
+                    if (local == null || task.getResult() > 0) {
+                        store.loadUserMoods(userId, callback::onCallback);
+                    }
+                } else {
+                    Log.w("MoodHistoryManager", "Could not sync mood history", task.getException());
+                    if (local == null) {
+                        callback.onCallback(null); // Return null to indicate an error
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * Fetches the mood history for a user straight from Firestore, used when there is no local store.
+     *
+     * @param userId   The ID of the user.
+     * @param callback The callback to handle the result.
+     */
+    private void fetchMoodHistoryFromServer(String userId, MoodHistoryCallback callback) {
+        historyFlights.run(userId, () -> loadMoodHistory(userId))
+                .addOnCompleteListener(task -> {
+                    if (task.isSuccessful()) {
+                        callback.onCallback(new ArrayList<>(task.getResult())); // Pass the fetched moods to the callback
+                    } else {
+                        callback.onCallback(null); // Return null to indicate an error
+                    }
+                });
+    }
+
+    /**
+     * Reads the mood history of a user
+     *
+     * @param userId The ID of the user.
+     * @return A Task that completes with the moods of the user.
+     */
+    private Task<ArrayList<MoodState>> loadMoodHistory(String userId) {
+        TaskCompletionSource<ArrayList<MoodState>> source = new TaskCompletionSource<>();
+        Query history = db.collection("Moods")
+                .whereEqualTo("user", userId); // Filter moods by the user ID
+        Database.getInstance().read(history, Database.ReadPolicy.DEFAULT, "moodHistory")
                 .addOnSuccessListener(queryDocumentSnapshots -> {
                     ArrayList<MoodState> moodHistory = new ArrayList<>();
                     for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                        MoodState moodState = documentToMoodState(document);
+                        MoodState moodState = MoodStateCodec.decode(document);
                         moodHistory.add(moodState);
                     }
-                    callback.onCallback(moodHistory); // Pass the fetched moods to the callback
+                    source.setResult(moodHistory);
                 })
                 .addOnFailureListener(e -> {
                     Log.w("MoodHistoryManager", "Error fetching mood history", e);
-                    callback.onCallback(null); // Return null to indicate an error
+                    source.setException(e);
                 });
-    }
-
-    /**
-     * Converts a Firestore document to a MoodState object.
-     *
-     * @param document The Firestore document representing a mood.
-     * @return The MoodState object.
-     */
-    private MoodState documentToMoodState(QueryDocumentSnapshot document) {
-        MoodState moodState = new MoodState(document.getString("mood"));
-        moodState.setUser(document.getString("user"));
-        moodState.setId(document.getId()); // Use the document ID as the mood ID
-        moodState.setReason(document.getString("reason"));
-        moodState.setVisibility(document.get("visibility", Boolean.class));
-
-        // Convert dayTime map to LocalDateTime
-        Map<String, Object> dayTimeMap = (Map<String, Object>) document.get("dayTime");
-        if (dayTimeMap != null) {
-            LocalDateTime dayTime = mapToLocalDateTime(dayTimeMap);
-            moodState.setDayTime(dayTime);
-        }
-
-        // Handle nullable fields
-        if (document.getString("image") != null) {
-            moodState.setImage(Uri.parse(document.getString("image")));
-        }
-        // Reconstruct location from Firestore
-        if (document.get("location") != null) {
-            // Gets the longitude and latitude
-            Double latitude = document.get("location.latitude", Double.class);
-            Double longitude = document.get("location.longitude", Double.class);
-            // makes the location
-            Location location = new Location(LocationManager.GPS_PROVIDER);
-            // Set sea level so that there is no invocation error
-            location.setMslAltitudeAccuracyMeters(0);
-            location.setMslAltitudeMeters(0);
-            location.setLatitude(latitude);
-            location.setLongitude(longitude);
-            moodState.setLocation(location);
-        }
-        return moodState;
+        return source.getTask();
     }
 
     /**
@@ -100,24 +113,4 @@ public class MoodHistoryManager {
     public interface MoodHistoryCallback {
         void onCallback(ArrayList<MoodState> moodHistory);
     }
-
-    /**
-     * Converts a dayTime map to a LocalDateTime object.
-     *
-     * @param dayTimeMap The map representing the dayTime.
-     * @return The LocalDateTime object.
-     */
-    private LocalDateTime mapToLocalDateTime(Map<String, Object> dayTimeMap) {
-        // Convert Long values to int
-        int year = ((Long) dayTimeMap.get("year")).intValue();
-        int monthValue = ((Long) dayTimeMap.get("monthValue")).intValue();
-        int dayOfMonth = ((Long) dayTimeMap.get("dayOfMonth")).intValue();
-        int hour = ((Long) dayTimeMap.get("hour")).intValue();
-        int minute = ((Long) dayTimeMap.get("minute")).intValue();
-        int second = ((Long) dayTimeMap.get("second")).intValue();
-        int nano = ((Long) dayTimeMap.get("nano")).intValue();
-
-        return LocalDateTime.of(year, monthValue, dayOfMonth, hour, minute, second, nano);
-    }
-
-}
\ No newline at end of file
+}
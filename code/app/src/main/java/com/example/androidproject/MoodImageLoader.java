@@ -0,0 +1,457 @@
+package com.example.androidproject;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads mood images by mood id and variant instead of by download URL.
+ * Download URLs carry a token, so a URL keyed cache misses whenever the token changes. This keeps
+ * decoded bitmaps in a memory LRU bounded by bytes and the encoded files in a disk LRU under the
+ * app cache, both keyed by the storage path, so images seen before are not downloaded again.
+ * Every cached image keeps the storage generation it was downloaded at. An image served from the
+ * caches is checked against its storage metadata at most every REVALIDATE_MILLIS and dropped if
+ * it was replaced or deleted on another device, so the next load downloads it again.
+ * Hits, evictions and the bytes that did not have to be downloaded are counted.
+ */
+public class MoodImageLoader {
+    private static final String TAG = "MoodImageLoader";
+    private static final String DISK_FOLDER = "mood_images";
+
+    // Most bytes of encoded images kept on disk
+    static final long DISK_CACHE_BYTES = 32L * 1024 * 1024;
+    // Share of the app heap used for decoded bitmaps
+    static final int MEMORY_CACHE_FRACTION = 8;
+    // A download gives up instead of holding a loader thread on a dead connection
+    static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    static final int READ_TIMEOUT_MILLIS = 20_000;
+    // How long a cached image is used before its storage metadata is checked again
+    static final long REVALIDATE_MILLIS = 10 * 60_000;
+
+    private static MoodImageLoader instance;
+
+    private final File directory;
+    private final LruCache<String, Entry> memory;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    // Identical loads running at the same time share one download
+    private final SingleFlight<Bitmap> loads = new SingleFlight<>();
+    // Bumped when the image at a path is invalidated, so loads started before do not cache it again
+    private final HashMap<String, Integer> epochs = new HashMap<>();
+
+    // Guards the cached files and diskBytes. Never taken on the main thread, so load is not held
+    // up by disk writes
+    private final Object diskLock = new Object();
+
+    private long diskBytes = -1;
+    private int requests = 0;
+    private int memoryHits = 0;
+    private int diskHits = 0;
+    private int downloads = 0;
+    private int memoryEvictions = 0;
+    private int diskEvictions = 0;
+    private long bytesSaved = 0;
+
+    private MoodImageLoader(Context context) {
+        directory = new File(context.getCacheDir(), DISK_FOLDER);
+        int memoryBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / MEMORY_CACHE_FRACTION);
+        memory = new LruCache<String, Entry>(memoryBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+                if (evicted) {
+                    countMemoryEviction();
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the loader of the app, opening it the first time
+     * @param context
+     *      any context of the app
+     * @return
+     *      the loader
+     */
+    public static synchronized MoodImageLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new MoodImageLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the loader if it was opened
+     * @return
+     *      the loader, or null if nothing loaded an image yet
+     */
+    static synchronized MoodImageLoader peekInstance() {
+        return instance;
+    }
+
+    /**
+     * Loads a variant of the image of a mood, from memory, disk or Firebase Storage in that order
+     * @param moodId
+     *      the id of the mood the image belongs to
+     * @param variant
+     *      the size to load
+     * @return
+     *      a Task with the decoded image, completed on the main thread
+     */
+    public Task<Bitmap> load(String moodId, ImageVariant variant) {
+        String path = variant.path(moodId);
+        synchronized (this) {
+            requests++;
+        }
+        Entry cached = memory.get(path);
+        if (cached != null) {
+            synchronized (this) {
+                memoryHits++;
+                bytesSaved += cached.encodedBytes;
+            }
+            revalidateIfDue(path, cached);
+            return Tasks.forResult(cached.bitmap);
+        }
+        int epoch = epochOf(path);
+        return loads.run(path + "#" + epoch, () -> Tasks.call(executor, () -> readDisk(path))
+                .continueWithTask(read -> {
+                    Entry entry = read.getResult();
+                    if (entry != null) {
+                        synchronized (this) {
+                            diskHits++;
+                            bytesSaved += entry.encodedBytes;
+                        }
+                        if (epochOf(path) == epoch) {
+                            memory.put(path, entry);
+                        }
+                        revalidateIfDue(path, entry);
+                        return Tasks.forResult(entry.bitmap);
+                    }
+                    // The generation is stored with the file so later loads can tell if it was replaced
+                    Task<StorageMetadata> metadata = reference(path).getMetadata();
+                    Task<Uri> url = ImageVariant.getDownloadUrl(moodId, variant);
+                    return Tasks.whenAllComplete(metadata, url)
+                            .continueWith(executor, done -> {
+                                if (!url.isSuccessful()) {
+                                    throw url.getException();
+                                }
+                                // Older images have no variants and are served from the full image
+                                String generation = metadata.isSuccessful() ? metadata.getResult().getGeneration() : null;
+                                return download(path, url.getResult(), generation, epoch);
+                            })
+                            .continueWith(downloaded -> {
+                                Entry fresh = downloaded.getResult();
+                                if (epochOf(path) == epoch) {
+                                    memory.put(path, fresh);
+                                }
+                                return fresh.bitmap;
+                            });
+                }));
+    }
+
+    /**
+     * Forgets every variant of the image of a mood, called when it is replaced or deleted
+     * @param moodId
+     *      the id of the mood the image belongs to
+     */
+    public void invalidateImage(String moodId) {
+        for (ImageVariant variant : ImageVariant.values()) {
+            invalidate(variant.path(moodId));
+        }
+    }
+
+    /**
+     * Forgets the image at a path, downloads that are still running for it are not cached
+     */
+    private void invalidate(String path) {
+        synchronized (this) {
+            Integer epoch = epochs.get(path);
+            epochs.put(path, epoch == null ? 1 : epoch + 1);
+        }
+        memory.remove(path);
+        executor.execute(() -> {
+            // Waits for a write that passed the epoch check before the bump, then deletes it
+            synchronized (diskLock) {
+                File file = fileFor(path);
+                long length = file.length();
+                if (file.delete()) {
+                    addDiskBytes(-length);
+                }
+            }
+        });
+    }
+
+    private synchronized int epochOf(String path) {
+        Integer epoch = epochs.get(path);
+        return epoch == null ? 0 : epoch;
+    }
+
+    /**
+     * Checks a cached image against its storage metadata if it was not checked recently, and drops
+     * it if the image was replaced or deleted since it was downloaded
+     */
+    private void revalidateIfDue(String path, Entry entry) {
+        long now = SystemClock.elapsedRealtime();
+        if (entry.checkedAt != 0 && now - entry.checkedAt < REVALIDATE_MILLIS) {
+            return;
+        }
+        entry.checkedAt = now;
+        reference(path).getMetadata().addOnCompleteListener(task -> {
+            boolean changed;
+            if (task.isSuccessful()) {
+                changed = !Objects.equals(task.getResult().getGeneration(), entry.generation);
+            } else {
+                // A variant that was never stored is fine, one that is gone now was deleted
+                Exception e = task.getException();
+                changed = entry.generation != null && e instanceof StorageException
+                        && ((StorageException) e).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND;
+            }
+            if (changed) {
+                Log.d(TAG, path + " changed in storage, dropping the cached copy");
+                invalidate(path);
+                StorageUrlCache cache = StorageUrlCache.getInstance();
+                if (cache != null) {
+                    cache.invalidate(path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a cached image from disk, runs on the loader threads
+     * @return
+     *      the image, or null if it is not on disk or can not be decoded
+     */
+    private Entry readDisk(String path) {
+        File file = fileFor(path);
+        if (!file.exists()) {
+            return null;
+        }
+        String generation;
+        byte[] bytes;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            generation = in.readUTF();
+            bytes = readAll(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read cached " + path, e);
+            file.delete();
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        if (bitmap == null) {
+            file.delete();
+            return null;
+        }
+        // Marks the file as recently used for the disk LRU
+        file.setLastModified(System.currentTimeMillis());
+        // Not checked in this run yet
+        return new Entry(bitmap, bytes.length, generation.isEmpty() ? null : generation, 0);
+    }
+
+    /**
+     * Downloads an image, stores it on disk and decodes it, runs on the loader threads
+     */
+    private Entry download(String path, Uri url, String generation, int epoch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url.toString()).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        byte[] bytes;
+        try (InputStream in = connection.getInputStream()) {
+            bytes = readAll(in);
+        } finally {
+            connection.disconnect();
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + path);
+        }
+        synchronized (this) {
+            downloads++;
+        }
+        synchronized (diskLock) {
+            // An image invalidated while it downloaded may already be outdated. Checked under the
+            // disk lock so the delete of invalidate comes after a write that passed the check
+            if (epochOf(path) == epoch) {
+                writeDisk(path, generation, bytes);
+            }
+        }
+        return new Entry(bitmap, bytes.length, generation, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Stores an encoded image on disk and trims the disk cache to its budget, runs with diskLock held
+     */
+    private void writeDisk(String path, String generation, byte[] bytes) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+            return;
+        }
+        File file = fileFor(path);
+        long previous = file.length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeUTF(generation == null ? "" : generation);
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache " + path, e);
+            file.delete();
+            return;
+        }
+        addDiskBytes(file.length() - previous);
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently used files until the disk cache fits its budget, runs with
+     * diskLock held
+     */
+    private void trimDisk() {
+        if (diskBytes <= DISK_CACHE_BYTES) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (diskBytes <= DISK_CACHE_BYTES) {
+                return;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                addDiskBytes(-length);
+                synchronized (this) {
+                    diskEvictions++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the size of the disk cache, measuring it the first time, runs with diskLock held
+     */
+    private void addDiskBytes(long delta) {
+        if (diskBytes < 0) {
+            diskBytes = 0;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    diskBytes += file.length();
+                }
+            }
+            // The measured size already includes the change
+            return;
+        }
+        diskBytes += delta;
+    }
+
+    private synchronized void countMemoryEviction() {
+        memoryEvictions++;
+    }
+
+    private File fileFor(String path) {
+        return new File(directory, path.replace('/', '_'));
+    }
+
+    private static StorageReference reference(String path) {
+        return FirebaseStorage.getInstance().getReference().child(path);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets the share of loads served without a download
+     * @return
+     *      the hit ratio from 0 to 1, 0 before the first load
+     */
+    public synchronized double getHitRatio() {
+        return requests == 0 ? 0 : (double) (memoryHits + diskHits) / requests;
+    }
+
+    public synchronized int getMemoryHits() {
+        return memoryHits;
+    }
+
+    public synchronized int getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized int getDownloads() {
+        return downloads;
+    }
+
+    /**
+     * Gets how many images were pushed out of the memory and disk caches to make room
+     * @return
+     *      the number of evictions
+     */
+    public synchronized int getEvictionCount() {
+        return memoryEvictions + diskEvictions;
+    }
+
+    /**
+     * Gets how many encoded bytes were served from the caches instead of downloaded
+     * @return
+     *      the bytes saved
+     */
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * A decoded image, the size of its encoded file and the storage generation it was downloaded at
+     */
+    private static class Entry {
+        private final Bitmap bitmap;
+        private final int encodedBytes;
+        // Null when the image was served from the full image because the variant was never stored
+        private final String generation;
+        // When the generation was last compared with storage, in elapsed realtime, 0 if not yet
+        private volatile long checkedAt;
+
+        Entry(Bitmap bitmap, int encodedBytes, String generation, long checkedAt) {
+            this.bitmap = bitmap;
+            this.encodedBytes = encodedBytes;
+            this.generation = generation;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
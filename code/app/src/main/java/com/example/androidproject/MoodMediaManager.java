@@ -21,12 +21,9 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.cardview.widget.CardView;
 
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 import com.squareup.picasso.Picasso;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * Manages media operations like images and location for mood editing
@@ -105,10 +102,7 @@ public class MoodMediaManager {
                     @Override
                     public void onActivityResult(Uri uri) {
                         if (uri != null) {
-                            // Check image size before proceeding
-                            if (!isImageSizeValid(uri)) {
-                                return;
-                            }
+                            // Large images are shrunk by ImageProcessor when they are uploaded
 
                             // Clear any pending deletion
                             imageToDeleteId = null;
@@ -133,38 +127,6 @@ public class MoodMediaManager {
         );
     }
 
-    /**
-     * Validates if image size is within the 64KB limit
-     * @param imageUri URI of the selected image
-     * @return true if valid, false otherwise
-     */
-    private boolean isImageSizeValid(Uri imageUri) {
-        try {
-            InputStream inputStream = context.getContentResolver().openInputStream(imageUri);
-            if (inputStream == null) {
-                Toast.makeText(context, "Unable to access the selected image",
-                        Toast.LENGTH_SHORT).show();
-                return false;
-            }
-
-            int imageSize = inputStream.available();
-            inputStream.close();
-
-            if (imageSize >= 65536) {
-                // Image is too large
-                Toast.makeText(context, "Image size exceeds 64KB limit. Please select a smaller image.",
-                        Toast.LENGTH_LONG).show();
-                return false;
-            }
-
-            return true;
-        } catch (IOException e) {
-            Toast.makeText(context, "Error checking image size: " + e.getMessage(),
-                    Toast.LENGTH_SHORT).show();
-            return false;
-        }
-    }
-
     /**
      * Opens image picker using the ActivityResultLauncher
      */
@@ -263,14 +225,9 @@ public class MoodMediaManager {
             existingImageId = imageId;
             hasImage = true;
 
-            // Load image from firebase
-            StorageReference storageRef = FirebaseStorage.getInstance().getReference()
-                    .child("images/" + imageId);
-
-            storageRef.getDownloadUrl().addOnSuccessListener(uri -> {
-                Picasso.get()
-                        .load(uri)
-                        .into(moodImageView);
+            // Load the smallest size that fills the preview, from the cache when it was seen before
+            MoodImageLoader.getInstance(context).load(imageId, ImageVariant.forView(moodImageView)).addOnSuccessListener(bitmap -> {
+                moodImageView.setImageBitmap(bitmap);
 
                 imagePreviewCardView.setVisibility(View.VISIBLE);
                 // Toggle to remove image mode
@@ -0,0 +1,113 @@
+package com.example.androidproject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several lists of moods that are each sorted newest first into one newest first sequence.
+ * The merge is lazy: a heap holds the head of every list and each call to next only does
+ * O(log k) work for k lists, so the first moods can be shown before the rest are merged.
+ */
+public class MoodMerger implements Iterator<MoodState> {
+    private final PriorityQueue<Cursor> heap;
+    private int remaining;
+
+    /**
+     * Creates a merger over the given sorted lists
+     * @param streams
+     *      lists of moods, each already sorted newest first
+     */
+    public MoodMerger(List<? extends List<MoodState>> streams) {
+        heap = new PriorityQueue<>(Math.max(1, streams.size()),
+                (c1, c2) -> MoodState.NEWEST_FIRST.compare(c1.head(), c2.head()));
+        for (List<MoodState> stream : streams) {
+            if (!stream.isEmpty()) {
+                heap.add(new Cursor(stream));
+                remaining += stream.size();
+            }
+        }
+    }
+
+    /**
+     * Returns if there are moods left to merge
+     * @return
+     *      true if next will return a mood
+     */
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    /**
+     * Returns the newest mood that has not been returned yet
+     * @return
+     *      the next mood in newest first order
+     */
+    @Override
+    public MoodState next() {
+        Cursor cursor = heap.poll();
+        if (cursor == null) {
+            throw new NoSuchElementException();
+        }
+        MoodState mood = cursor.head();
+        cursor.position++;
+        // Put the list back with its new head if it still has moods
+        if (cursor.position < cursor.stream.size()) {
+            heap.add(cursor);
+        }
+        remaining--;
+        return mood;
+    }
+
+    /**
+     * Gets how many moods have not been returned yet
+     * @return
+     *      the number of remaining moods
+     */
+    public int remaining() {
+        return remaining;
+    }
+
+    /**
+     * Takes up to count of the next moods
+     * @param count
+     *      the largest number of moods to take
+     * @return
+     *      the moods in newest first order
+     */
+    public ArrayList<MoodState> take(int count) {
+        ArrayList<MoodState> moods = new ArrayList<>(Math.min(count, remaining));
+        while (moods.size() < count && hasNext()) {
+            moods.add(next());
+        }
+        return moods;
+    }
+
+    /**
+     * Merges every remaining mood into a list
+     * @return
+     *      the remaining moods in newest first order
+     */
+    public ArrayList<MoodState> drain() {
+        return take(remaining);
+    }
+
+    /**
+     * Keeps the position of the merge within one list
+     */
+    private static class Cursor {
+        private final List<MoodState> stream;
+        private int position = 0;
+
+        Cursor(List<MoodState> stream) {
+            this.stream = stream;
+        }
+
+        MoodState head() {
+            return stream.get(position);
+        }
+    }
+}
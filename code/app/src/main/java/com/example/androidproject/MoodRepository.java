@@ -1,14 +1,15 @@
 package com.example.androidproject;
 
+import android.content.ContentResolver;
 import android.location.Location;
 import android.net.Uri;
 import android.util.Log;
 
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
+import com.google.firebase.firestore.WriteBatch;
 
+import java.time.ZoneOffset;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
@@ -18,12 +19,20 @@ import java.util.Map;
  */
 public class MoodRepository {
     private FirebaseFirestore db;
+    private final ContentResolver resolver;
+    private final String username;
 
     /**
      * Creates the mood repository
+     * @param resolver
+     *      content resolver to read new images
+     * @param username
+     *      the user whose moods are edited, the author of every mood this repository changes
      */
-    public MoodRepository() {
+    public MoodRepository(ContentResolver resolver, String username) {
         db = FirebaseFirestore.getInstance();
+        this.resolver = resolver;
+        this.username = username;
     }
 
     /**
@@ -53,14 +62,9 @@ public class MoodRepository {
 
         // If we have a new image to upload, do that first
         if (newImageUri != null && newImageUri.toString().startsWith("content://")) {
-            // Create a storage reference
-            FirebaseStorage storage = FirebaseStorage.getInstance();
-            StorageReference storageRef = storage.getReference();
-            StorageReference imageRef = storageRef.child("images/" + moodId);
-
-            // Upload the file
-            imageRef.putFile(newImageUri)
-                    .addOnSuccessListener(taskSnapshot -> {
+            // Shrink the image into every variant size, then upload them
+            Database.getInstance().addImage(newImageUri, moodId, resolver)
+                    .addOnSuccessListener(aVoid -> {
                         // After successful upload, update the mood with all data
                         updateMoodData(moodId, mood, color, situation, reason, location, moodId, dateTime, isPublic, listener);
                     })
@@ -87,7 +91,15 @@ public class MoodRepository {
         Map<String, Object> updatedData = new HashMap<>();
         updatedData.put("mood", mood);
         updatedData.put("color", color);
-        updatedData.put("timestamp", dateTime.getTimeInMillis());
+
+        // Store the time as schema version 2 and drop the old dayTime fields in the same write
+        long timestamp = dateTime.getTimeInMillis();
+        ZoneOffset offset = ZoneOffset.ofTotalSeconds(dateTime.getTimeZone().getOffset(timestamp) / 1000);
+        MoodStateCodec.putTime(updatedData, timestamp, offset);
+        for (String field : MoodStateCodec.LEGACY_TIME_FIELDS) {
+            updatedData.put(field, FieldValue.delete());
+        }
+        updatedData.put(MoodSyncEngine.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
 
         // Add visibility field
         updatedData.put("visibility", isPublic);
@@ -103,29 +115,37 @@ public class MoodRepository {
             updatedData.put("reason", reason);
         }
 
-        if (location != null) {
-            // map based on chosen cords
-            Map<String, Double> locationMap = new HashMap<>();
-            locationMap.put("latitude", location.getLatitude());
-            locationMap.put("longitude", location.getLongitude());
-            updatedData.put("location", locationMap);
-        } else {
-            // only adds it if its empty/null
-            updatedData.put("location", null);
-        }
+        // Stores the chosen cords with their geohash, or clears both
+        MoodStateCodec.putLocation(updatedData, GeoCoordinate.fromLocation(location));
 
         if (imageUrl != null && !imageUrl.isEmpty()) {
             updatedData.put("id", imageUrl);
         }
 
+        WriteBatch batch = db.batch();
+        batch.update(db.collection("Moods").document(moodId), updatedData);
+        if (!isPublic && username != null) {
+            // Feed syncs only read public moods, so a tombstone tells followers to drop this one.
+            // The author's own sync applies tombstones before changes and keeps the mood.
+            batch.set(db.collection(MoodSyncEngine.TOMBSTONES).document(moodId), tombstone(username));
+        }
+
         // Update Firestore
-        db.collection("Moods").document(moodId)
-                .update(updatedData)
+        batch.commit()
                 .addOnSuccessListener(aVoid -> {
-                    // Now update the dayTime subcollection
-                    updateDayTimeSubcollection(moodId, dateTime, listener);
+                    Log.d("MoodRepository", "Mood updated successfully");
+                    if (username != null) {
+                        FeedCache.invalidateAuthor(username);
+                    }
+                    // Refresh or remove the inbox copies now that the edit is complete
+                    db.collection("Moods").document(moodId).get()
+                            .addOnSuccessListener(document -> new FeedInbox().syncMood(document));
+                    if (listener != null) {
+                        listener.onSuccess();
+                    }
                 })
                 .addOnFailureListener(e -> {
+                    Log.e("MoodRepository", "Failed to update mood", e);
                     if (listener != null) {
                         listener.onFailure(e);
                     }
@@ -136,10 +156,30 @@ public class MoodRepository {
      * Deletes a mood from Firestore
      */
     public void deleteMood(String id, OnMoodDeleteListener listener) {
+        deleteMoodDocument(id, username, listener);
+    }
+
+    /**
+     * Deletes the mood document, leaves a tombstone for syncs and removes it from the follower
+     * inboxes of its author
+     */
+    private void deleteMoodDocument(String id, String author, OnMoodDeleteListener listener) {
+        WriteBatch batch = db.batch();
         // Delete the mood document
-        db.collection("Moods").document(id)
-                .delete()
+        batch.delete(db.collection("Moods").document(id));
+        if (author != null) {
+            batch.set(db.collection(MoodSyncEngine.TOMBSTONES).document(id), tombstone(author));
+        }
+        LocalMoodStore store = LocalMoodStore.getInstance();
+        if (store != null) {
+            store.remove(id);
+        }
+        batch.commit()
                 .addOnSuccessListener(aVoid -> {
+                    if (author != null) {
+                        FeedCache.invalidateAuthor(author);
+                        new FeedInbox().removeMood(author, id);
+                    }
                     if (listener != null) {
                         listener.onSuccess();
                     }
@@ -152,53 +192,13 @@ public class MoodRepository {
     }
 
     /**
-     * Updates all fields in the dayTime field
+     * Builds the tombstone that tells syncs a mood left the feed of its author's followers
      */
-    private void updateDayTimeSubcollection(String id, Calendar cal, OnMoodUpdateListener listener) {
-        Map<String, Object> dayTimeData = new HashMap<>();
-
-        // Month names array
-        String[] monthNames = {"JANUARY", "FEBRUARY", "MARCH", "APRIL", "MAY", "JUNE",
-                "JULY", "AUGUST", "SEPTEMBER", "OCTOBER", "NOVEMBER", "DECEMBER"};
-
-        // Day of week names array
-        String[] daysOfWeek = {"SUNDAY", "MONDAY", "TUESDAY", "WEDNESDAY", "THURSDAY", "FRIDAY", "SATURDAY"};
-
-        // Year and month details
-        dayTimeData.put("year", cal.get(Calendar.YEAR));
-        dayTimeData.put("monthValue", cal.get(Calendar.MONTH) + 1);
-        dayTimeData.put("month", monthNames[cal.get(Calendar.MONTH)]);
-
-        // Day details
-        dayTimeData.put("dayOfMonth", cal.get(Calendar.DAY_OF_MONTH));
-        dayTimeData.put("dayOfWeek", daysOfWeek[cal.get(Calendar.DAY_OF_WEEK) - 1]);
-        dayTimeData.put("dayOfYear", cal.get(Calendar.DAY_OF_YEAR));
-
-        // Time details
-        dayTimeData.put("hour", cal.get(Calendar.HOUR_OF_DAY));
-        dayTimeData.put("minute", cal.get(Calendar.MINUTE));
-        dayTimeData.put("second", cal.get(Calendar.SECOND));
-        long nanos = (cal.get(Calendar.MILLISECOND) * 1000000L);
-        dayTimeData.put("nano", nanos);
-
-        Map<String, Object> chronology = new HashMap<>();
-        chronology.put("calendarType", "iso8601");
-        dayTimeData.put("chronology", chronology);
-
-        db.collection("Moods").document(id)
-                .update("dayTime", dayTimeData)
-                .addOnSuccessListener(aVoid -> {
-                    Log.d("MoodRepository", "DayTime field updated successfully");
-                    if (listener != null) {
-                        listener.onSuccess();
-                    }
-                })
-                .addOnFailureListener(e -> {
-                    Log.e("MoodRepository", "Failed to update dayTime field", e);
-                    if (listener != null) {
-                        listener.onFailure(e);
-                    }
-                });
+    private static Map<String, Object> tombstone(String author) {
+        Map<String, Object> tombstone = new HashMap<>();
+        tombstone.put("user", author);
+        tombstone.put(MoodSyncEngine.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+        return tombstone;
     }
 
     // Interface for callbacks
@@ -0,0 +1,191 @@
+package com.example.androidproject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites the older mood documents of the signed in user to the current schema version.
+ * Only the author's own moods are migrated, on the author's own device: version 1 stored the
+ * author's local time without its zone, and that device's zone is the best guess of it. Other
+ * users' moods are left to their own devices, so feeds keep reading the legacy fields meanwhile.
+ * Moods are read a page at a time in document id order, the old dayTime fields are replaced with
+ * the "timestamp" and "zoneOffset" fields, moods with a location get their "geohash", and each
+ * page is committed as one batch.
+ * The id of the last migrated document is kept in SharedPreferences per user so an interrupted
+ * run carries on where it stopped the next time that user signs in.
+ */
+public class MoodSchemaMigrator {
+    private static final String TAG = "MoodSchemaMigrator";
+    private static final String PREF_NAME = "MoodSchemaMigration";
+    private static final String KEY_CURSOR = "last_document_id";
+    private static final String KEY_DONE = "migrated_version";
+    // Moods read and rewritten per batch, below the Firestore limit of 500 writes
+    static final int PAGE_SIZE = 200;
+
+    // Only one migration runs per process
+    private static boolean running = false;
+
+    private final FirebaseFirestore db;
+    private final SharedPreferences prefs;
+    private final String username;
+    private final String cursorKey;
+    private final String doneKey;
+    private int migrated = 0;
+
+    /**
+     * Creates the migrator for the moods of one user
+     * @param context
+     *      used to store how far the migration got
+     * @param username
+     *      the signed in user, whose moods are migrated
+     */
+    public MoodSchemaMigrator(Context context, String username) {
+        db = FirebaseFirestore.getInstance();
+        prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        this.username = username;
+        cursorKey = KEY_CURSOR + ":" + username;
+        doneKey = KEY_DONE + ":" + username;
+    }
+
+    /**
+     * Starts or resumes the migration unless it already finished or is running
+     */
+    public void start() {
+        synchronized (MoodSchemaMigrator.class) {
+            if (running || prefs.getInt(doneKey, 1) >= MoodStateCodec.SCHEMA_VERSION) {
+                return;
+            }
+            running = true;
+        }
+        migratePage(prefs.getString(cursorKey, null));
+    }
+
+    /**
+     * Migrates the page of moods after the cursor, then moves on to the next page
+     * @param cursor
+     *      the id of the last migrated document, or null to start at the beginning
+     */
+    private void migratePage(String cursor) {
+        Query page = db.collection("Moods")
+                .whereEqualTo("user", username)
+                .orderBy(FieldPath.documentId())
+                .limit(PAGE_SIZE);
+        if (cursor != null) {
+            page = page.startAfter(cursor);
+        }
+        page.get()
+                .addOnSuccessListener(queryDocumentSnapshots -> {
+                    List<DocumentSnapshot> documents = queryDocumentSnapshots.getDocuments();
+                    if (documents.isEmpty()) {
+                        finish();
+                        return;
+                    }
+                    WriteBatch batch = db.batch();
+                    int writes = 0;
+                    for (DocumentSnapshot document : documents) {
+                        Map<String, Object> update = upgrade(document::get);
+                        if (update != null) {
+                            for (String field : MoodStateCodec.LEGACY_TIME_FIELDS) {
+                                update.put(field, FieldValue.delete());
+                            }
+                            batch.update(document.getReference(), update);
+                            writes++;
+                        }
+                    }
+                    String last = documents.get(documents.size() - 1).getId();
+                    boolean lastPage = documents.size() < PAGE_SIZE;
+                    int pageWrites = writes;
+                    batch.commit()
+                            .addOnSuccessListener(aVoid -> {
+                                migrated += pageWrites;
+                                // Only move the cursor once the page is stored
+                                prefs.edit().putString(cursorKey, last).apply();
+                                if (lastPage) {
+                                    finish();
+                                } else {
+                                    migratePage(last);
+                                }
+                            })
+                            .addOnFailureListener(e -> stop("Failed to migrate moods after " + cursor, e));
+                })
+                .addOnFailureListener(e -> stop("Failed to read moods after " + cursor, e));
+    }
+
+    /**
+     * Builds the fields an older mood document is missing.
+     * Must only run on the author's device, a version 1 time is read in the zone of this device.
+     * @param fields
+     *      reads the fields of the document
+     * @return
+     *      the fields to write, or null if the document is already migrated or has nothing to add
+     */
+    static Map<String, Object> upgrade(MoodStateCodec.FieldReader fields) {
+        int version = MoodStateCodec.readSchemaVersion(fields);
+        if (version >= MoodStateCodec.SCHEMA_VERSION) {
+            return null;
+        }
+        Map<String, Object> update = new HashMap<>();
+        LocalDateTime dayTime = version < 2 ? MoodStateCodec.readDayTime(fields) : null;
+        if (dayTime != null) {
+            // Version 1 stored the local time of the author, this is the author's device so its zone is used
+            ZonedDateTime zoned = dayTime.atZone(ZoneId.systemDefault());
+            MoodStateCodec.putTime(update, zoned.toInstant().toEpochMilli(), zoned.getOffset());
+        }
+        Object location = fields.get(MoodStateCodec.FIELD_LOCATION);
+        String geohash = location instanceof Map
+                ? GeoHash.forLocation(MoodStateCodec.readLocation((Map<String, Object>) location))
+                : null;
+        if (geohash != null) {
+            update.put(MoodStateCodec.FIELD_GEOHASH, geohash);
+        }
+        if (update.isEmpty()) {
+            // Moods without a time or a location have nothing to add
+            return null;
+        }
+        update.put(MoodStateCodec.FIELD_SCHEMA_VERSION, MoodStateCodec.SCHEMA_VERSION);
+        return update;
+    }
+
+    /**
+     * Marks the migration as complete
+     */
+    private void finish() {
+        prefs.edit()
+                .putInt(doneKey, MoodStateCodec.SCHEMA_VERSION)
+                .remove(cursorKey)
+                .apply();
+        Log.d(TAG, "Migrated " + migrated + " moods of " + username + " to schema version " + MoodStateCodec.SCHEMA_VERSION);
+        stop(null, null);
+    }
+
+    /**
+     * Ends this run, a failed run resumes from the stored cursor next time
+     * @param message
+     *      what went wrong, or null if nothing did
+     * @param e
+     *      the error, or null if nothing went wrong
+     */
+    private void stop(String message, Exception e) {
+        if (message != null) {
+            Log.e(TAG, message, e);
+        }
+        synchronized (MoodSchemaMigrator.class) {
+            running = false;
+        }
+    }
+}
@@ -13,18 +13,18 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Creates an array adapter to display the mood dropdown
  */
-public class MoodSelectionAdapter extends ArrayAdapter<String> {
+public class MoodSelectionAdapter extends ArrayAdapter<MoodType> {
     /**
      * Initializes the adapter
      * @param context
      * @param moods
      */
-    public MoodSelectionAdapter(Context context, ArrayList<String> moods) {
+    public MoodSelectionAdapter(Context context, List<MoodType> moods) {
         super(context, 0, moods);
     }
 
@@ -41,38 +41,13 @@ public class MoodSelectionAdapter extends ArrayAdapter<String> {
             view = convertView;
         }
         // Gets the item from the list
-        String mood = getItem(position);
+        MoodType mood = getItem(position);
         // Gets the respective views
         TextView moodName = view.findViewById(R.id.select_mood_text);
         ImageView moodImage = view.findViewById(R.id.select_mood_emoji);
-        moodName.setText(mood);
+        moodName.setText(mood.getLabel());
         // Sets the emoji to draw
-        switch (mood) {
-            case "Anger":
-                moodImage.setImageResource(R.drawable.anger);
-                break;
-            case "Confusion":
-                moodImage.setImageResource(R.drawable.confusion);
-                break;
-            case "Disgust":
-                moodImage.setImageResource(R.drawable.disgust);
-                break;
-            case "Fear":
-                moodImage.setImageResource(R.drawable.fear);
-                break;
-            case "Happiness":
-                moodImage.setImageResource(R.drawable.happiness);
-                break;
-            case "Sadness":
-                moodImage.setImageResource(R.drawable.sadness);
-                break;
-            case "Shame":
-                moodImage.setImageResource(R.drawable.shame);
-                break;
-            case "Surprise":
-                moodImage.setImageResource(R.drawable.surprise);
-                break;
-        }
+        moodImage.setImageResource(mood.getEmoji());
         return view;
 
     }
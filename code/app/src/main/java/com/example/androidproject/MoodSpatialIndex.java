@@ -0,0 +1,165 @@
+package com.example.androidproject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * A grid of moods by location that answers radius queries.
+ * Moods are bucketed into cells of CELL_DEGREES, so a query only looks at the cells under the
+ * bounding box of its circle, skips moods outside the box with two subtractions and only works
+ * out the exact distance for the rest, instead of the distance to every mood.
+ * Does not use the Android framework so it can be tested on the JVM.
+ */
+public class MoodSpatialIndex {
+    // Edge of a grid cell in degrees, about 5.5 km of latitude
+    static final double CELL_DEGREES = 0.05;
+    private static final double METERS_PER_RADIAN = GeoCoordinate.EARTH_RADIUS_METERS;
+
+    private final double cellDegrees;
+    private final long columns;
+    private final long rows;
+    // Moods of each cell, keyed by row * columns + column
+    private final HashMap<Long, ArrayList<MoodState>> cells = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Builds the index over a set of moods, moods without a valid location are left out
+     * @param moods
+     *      the moods to index
+     */
+    public MoodSpatialIndex(Collection<MoodState> moods) {
+        this(moods, CELL_DEGREES);
+    }
+
+    /**
+     * Builds the index with a given cell size
+     * @param moods
+     *      the moods to index
+     * @param cellDegrees
+     *      the edge of a cell in degrees, should divide 180
+     */
+    MoodSpatialIndex(Collection<MoodState> moods, double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.columns = Math.round(360 / cellDegrees);
+        this.rows = Math.round(180 / cellDegrees);
+        for (MoodState mood : moods) {
+            add(mood);
+        }
+    }
+
+    /**
+     * Adds a mood to the index
+     * @param mood
+     *      the mood to add, ignored if it has no valid location
+     */
+    public void add(MoodState mood) {
+        GeoCoordinate location = mood.getLocation();
+        if (location == null || !location.isValid()) {
+            return;
+        }
+        long key = row(location.getLatitude()) * columns + column(location.getLongitude());
+        ArrayList<MoodState> cell = cells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<>();
+            cells.put(key, cell);
+        }
+        cell.add(mood);
+        size++;
+    }
+
+    /**
+     * Gets how many moods are in the index
+     * @return
+     *      the number of moods with a valid location
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the moods within a distance of a point
+     * @param center
+     *      the middle of the circle
+     * @param radiusMeters
+     *      the radius of the circle in meters
+     * @return
+     *      the moods in the circle, in no particular order
+     */
+    public ArrayList<MoodState> withinRadius(GeoCoordinate center, double radiusMeters) {
+        ArrayList<MoodState> found = new ArrayList<>();
+        double radians = radiusMeters / METERS_PER_RADIAN;
+        double latitudeSpan = Math.toDegrees(radians);
+        // Widest longitude the circle reaches, every longitude when it covers a pole
+        double cosLatitude = Math.cos(Math.toRadians(center.getLatitude()));
+        boolean everyColumn = radians >= Math.PI / 2 || Math.sin(radians) >= cosLatitude;
+        double longitudeSpan = everyColumn ? 180 : Math.toDegrees(Math.asin(Math.sin(radians) / cosLatitude));
+
+        long firstRow = row(center.getLatitude() - latitudeSpan);
+        long lastRow = row(center.getLatitude() + latitudeSpan);
+        long firstColumn = (long) Math.floor((center.getLongitude() - longitudeSpan + 180) / cellDegrees);
+        long lastColumn = (long) Math.floor((center.getLongitude() + longitudeSpan + 180) / cellDegrees);
+        if (everyColumn || lastColumn - firstColumn + 1 >= columns) {
+            firstColumn = 0;
+            lastColumn = columns - 1;
+        }
+
+        for (long row = firstRow; row <= lastRow; row++) {
+            for (long column = firstColumn; column <= lastColumn; column++) {
+                // Columns past the antimeridian wrap around to the other side
+                ArrayList<MoodState> cell = cells.get(row * columns + Math.floorMod(column, columns));
+                if (cell == null) {
+                    continue;
+                }
+                for (MoodState mood : cell) {
+                    GeoCoordinate location = mood.getLocation();
+                    // Bounding box check before the exact distance
+                    if (Math.abs(location.getLatitude() - center.getLatitude()) > latitudeSpan) {
+                        continue;
+                    }
+                    if (!everyColumn && longitudeDifference(location.getLongitude(), center.getLongitude()) > longitudeSpan) {
+                        continue;
+                    }
+                    if (center.distanceTo(location) <= radiusMeters) {
+                        found.add(mood);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Keeps the newest mood of each user
+     * @param moods
+     *      the moods to pick from
+     * @return
+     *      the newest mood of every user in the list, by username
+     */
+    public static HashMap<String, MoodState> latestPerUser(Collection<MoodState> moods) {
+        HashMap<String, MoodState> latest = new HashMap<>();
+        for (MoodState mood : moods) {
+            MoodState kept = latest.get(mood.getUser());
+            if (kept == null || mood.getTimestamp() > kept.getTimestamp()) {
+                latest.put(mood.getUser(), mood);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Gets the distance between two longitudes in degrees, the short way around
+     */
+    private static double longitudeDifference(double a, double b) {
+        double difference = Math.abs(a - b) % 360;
+        return difference > 180 ? 360 - difference : difference;
+    }
+
+    private long row(double latitude) {
+        return Math.min(rows - 1, Math.max(0, (long) Math.floor((latitude + 90) / cellDegrees)));
+    }
+
+    private long column(double longitude) {
+        return Math.min(columns - 1, Math.max(0, (long) Math.floor((longitude + 180) / cellDegrees)));
+    }
+}
@@ -1,15 +1,16 @@
 package com.example.androidproject;
 
-import android.location.Location;
 import android.net.Uri;
 
-import com.google.firebase.firestore.GeoPoint;
+import com.google.firebase.firestore.Exclude;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -17,106 +18,59 @@ import java.util.Map;
  * Creates an abstract emotion class that all of the emotions extend
  */
 public class MoodState {
+    // Orders moods from the most recent to the oldest, the same order as the "timestamp" queries
+    public static final Comparator<MoodState> NEWEST_FIRST =
+            (m1, m2) -> Long.compare(m2.getTimestamp(), m1.getTimestamp());
+
     protected String id;
     protected String username;
     protected String mood;
-    protected ArrayList<String> moodList;
-    // Stores the hex code of the color
-    protected String color;
-    // Stores the id of the emoji in drawable
-    protected int emoji;
+    // The shared type of the mood, holds its color and emoji
+    protected MoodType type;
 
     protected LocalDateTime dayTime;
+    // The zone offset of the author when the mood was stored, null means the zone of this device
+    private ZoneOffset zoneOffset;
+    // The day and time as epoch milliseconds, kept with them so sorting moods does not convert them
+    private long timestamp;
     // All underneath are nullable
     protected String situation;
     protected String reason;
     protected Uri image;
-    protected Location location;
+    // Stored image text that is parsed into the Uri the first time it is needed
+    private String imagePath;
+    protected GeoCoordinate location;
     protected Boolean visibility;
 
     /**
-     * Adds all the moods to the mood list for simplicity
-     */
-    private void FillMoodList(){
-        moodList = new ArrayList<>();
-        moodList.add("Anger");
-        moodList.add("Confusion");
-        moodList.add("Disgust");
-        moodList.add("Fear");
-        moodList.add("Happiness");
-        moodList.add("Sadness");
-        moodList.add("Shame");
-        moodList.add("Surprise");
-    }
-
-    /**
-     * Maps mood types to colors
+     * Creates a constructor for mood state
      */
-    private String MapMoodToColor(String mood){
-        // Returns the color that the mood should be by switching between them
-        switch (mood) {
-            case "Anger":
-                return "FF0004";
-            case "Confusion":
-                return "BB00FF";
-            case "Disgust":
-                return "2CFC03";
-            case "Fear":
-                return "B4EBF2";
-            case "Happiness":
-                return "EEFF00";
-            case "Sadness":
-                return "0000FF";
-            case "Shame":
-                return "F5A8C2";
-            case "Surprise":
-                return "F3AB32";
-        }
-        // Base case that never activates
-        return new String();
+    public MoodState(String mood) {
+        this(mood, LocalDateTime.now());
     }
 
     /**
-     * Maps mood types to emojis
+     * Creates a mood state that happened at the given time.
+     * Used when decoding stored moods so the current time is not looked up for nothing.
      */
-    private int MapMoodToEmoji(String mood){
-        // Returns the integer id of the emoji (Found in drawable)
-        switch (mood) {
-            case "Anger":
-                return R.drawable.anger;
-            case "Confusion":
-                return R.drawable.confusion;
-            case "Disgust":
-                return R.drawable.disgust;
-            case "Fear":
-                return R.drawable.fear;
-            case "Happiness":
-                return R.drawable.happiness;
-            case "Sadness":
-                return R.drawable.sadness;
-            case "Shame":
-                return R.drawable.shame;
-            case "Surprise":
-                return R.drawable.surprise;
-        }
-        // Base case that never activates
-        return 0;
+    MoodState(String mood, LocalDateTime dayTime) {
+        this(mood, dayTime, null, toEpochMilli(dayTime, null));
     }
 
     /**
-     * Creates a constructor for mood state
+     * Creates a mood state whose time is already known as epoch milliseconds.
+     * Used when decoding stored moods so the stored timestamp is kept instead of worked out again.
      */
-    public MoodState(String mood) {
-        FillMoodList();
+    MoodState(String mood, LocalDateTime dayTime, ZoneOffset zoneOffset, long timestamp) {
+        this.type = MoodType.fromLabel(mood);
         // Throws an exception if given an invalid mood
-        if (!moodList.contains(mood)){
+        if (type == null){
             throw new IllegalArgumentException();
         }
         this.mood = mood;
-        this.color = MapMoodToColor(mood);
-        this.emoji = MapMoodToEmoji(mood);
-        // Gets the day and time
-        this.dayTime = LocalDateTime.now();
+        this.dayTime = dayTime;
+        this.zoneOffset = zoneOffset;
+        this.timestamp = timestamp;
     }
 
     public String getSituation() {
@@ -136,18 +90,44 @@ public class MoodState {
     }
 
     public Uri getImage() {
+        if (image == null && imagePath != null) {
+            image = Uri.parse(imagePath);
+        }
         return image;
     }
 
     public void setImage(Uri image) {
         this.image = image;
+        this.imagePath = null;
     }
 
-    public Location getLocation() {
+    /**
+     * Sets the image from its stored text without parsing it yet
+     * @param imagePath
+     *      the stored image text
+     */
+    void setImagePath(String imagePath) {
+        this.imagePath = imagePath;
+        this.image = null;
+    }
+
+    /**
+     * Gets the image as the text it is stored as, without parsing it into a Uri
+     * @return
+     *      the stored image text, or null if the mood has no image
+     */
+    String getImagePath() {
+        if (imagePath != null) {
+            return imagePath;
+        }
+        return image != null ? image.toString() : null;
+    }
+
+    public GeoCoordinate getLocation() {
         return location;
     }
 
-    public void setLocation(Location location) {
+    public void setLocation(GeoCoordinate location) {
         this.location = location;
     }
 
@@ -156,11 +136,31 @@ public class MoodState {
     }
 
     public String getColor() {
-        return color;
+        return type.getHex();
+    }
+
+    /**
+     * Gets the color of the mood ready to pass to a view
+     * @return
+     *      the ARGB color int
+     */
+    @Exclude
+    public int getColorInt() {
+        return type.getColorInt();
     }
 
     public int getEmoji() {
-        return emoji;
+        return type.getEmoji();
+    }
+
+    /**
+     * Gets the type of the mood
+     * @return
+     *      the mood type
+     */
+    @Exclude
+    public MoodType getType() {
+        return type;
     }
 
     public LocalDate getDay() {
@@ -169,6 +169,8 @@ public class MoodState {
 
     public void setDayTime(LocalDateTime day) {
         this.dayTime = day;
+        this.zoneOffset = null;
+        this.timestamp = toEpochMilli(day, null);
     }
 
     public LocalTime getTime() {
@@ -178,6 +180,52 @@ public class MoodState {
     public LocalDateTime getDayTime() {
         return dayTime;
     }
+
+    /**
+     * Gets the day and time as epoch milliseconds so moods can be ordered by it in queries
+     * @return
+     *      the milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the zone offset the day and time are in
+     * @return
+     *      the stored offset of the author, or the offset of this device at that time
+     */
+    @Exclude
+    public ZoneOffset getZoneOffset() {
+        if (zoneOffset != null) {
+            return zoneOffset;
+        }
+        return ZoneId.systemDefault().getRules().getOffset(dayTime);
+    }
+
+    /**
+     * Sets the zone offset a decoded day and time are in
+     * @param zoneOffset
+     *      the offset stored with the mood
+     */
+    void setZoneOffset(ZoneOffset zoneOffset) {
+        this.zoneOffset = zoneOffset;
+        this.timestamp = toEpochMilli(dayTime, zoneOffset);
+    }
+
+    /**
+     * Converts a day and time to epoch milliseconds
+     * @param dayTime
+     *      the day and time
+     * @param zoneOffset
+     *      the offset they are in, or null for the zone of this device
+     * @return
+     *      the milliseconds since the epoch
+     */
+    private static long toEpochMilli(LocalDateTime dayTime, ZoneOffset zoneOffset) {
+        ZoneOffset offset = zoneOffset != null ? zoneOffset : ZoneId.systemDefault().getRules().getOffset(dayTime);
+        return dayTime.toInstant(offset).toEpochMilli();
+    }
     public String formatDateTime() {
         // Define the format you'd like, for example: "yyyy-MM-dd HH:mm:ss"
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
@@ -211,20 +259,13 @@ public class MoodState {
         map.put("id", id);
         map.put("username", username);
         map.put("mood", mood);
-        map.put("color", color);
-        map.put("emoji", emoji);
+        map.put("color", getColor());
+        map.put("emoji", getEmoji());
         map.put("dayTime", dayTime.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)); // Convert to String
         map.put("situation", situation);
         map.put("reason", reason);
         map.put("image", image != null ? image.toString() : null); // Convert Uri to String
-        if (location != null) {
-            Map<String, Double> locationMap = new HashMap<>();
-            locationMap.put("latitude", location.getLatitude());
-            locationMap.put("longitude", location.getLongitude());
-            map.put("location", locationMap);
-        } else {
-            map.put("location", null);
-        }
+        map.put("location", location != null ? location.toMap() : null);
         return map;
     }
 
@@ -0,0 +1,289 @@
+package com.example.androidproject;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes and decodes mood documents in Firestore.
+ * Every screen that reads a mood document goes through here so the format is handled in one place.
+ * Each field is read once, the "timestamp" long is used directly when it is present instead of
+ * rebuilding the boxed dayTime map, and the image Uri is only parsed when it is first asked for.
+ * <p>
+ * Schema version 2 stores when a mood happened as an epoch milliseconds "timestamp" and the
+ * "zoneOffset" of the author in seconds. Version 1 documents have no "schemaVersion" field and keep
+ * the time in the "dayTime" map, both are read until MoodSchemaMigrator has rewritten them.
+ * Version 3 adds the "geohash" of the location, so the map can query the moods of an area.
+ */
+public final class MoodStateCodec {
+    // The schema version written by this version of the app
+    static final int SCHEMA_VERSION = 3;
+
+    static final String FIELD_TIMESTAMP = "timestamp";
+    static final String FIELD_ZONE_OFFSET = "zoneOffset";
+    static final String FIELD_SCHEMA_VERSION = "schemaVersion";
+    static final String FIELD_LOCATION = "location";
+    static final String FIELD_GEOHASH = "geohash";
+    // Fields of version 1 documents that version 2 no longer writes
+    static final String[] LEGACY_TIME_FIELDS = {"dayTime", "day", "time"};
+
+    private MoodStateCodec() {
+    }
+
+    /**
+     * Reads a single field of a mood document
+     */
+    interface FieldReader {
+        Object get(String field);
+    }
+
+    /**
+     * Converts a mood to the fields of a version 3 mood document
+     * @param mood
+     *      the mood to store
+     * @return
+     *      the document fields
+     */
+    public static Map<String, Object> encode(MoodState mood) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("id", mood.getId());
+        fields.put("user", mood.getUser());
+        fields.put("mood", mood.getMood());
+        fields.put("color", mood.getColor());
+        fields.put("emoji", mood.getEmoji());
+        fields.put("situation", mood.getSituation());
+        fields.put("reason", mood.getReason());
+        fields.put("visibility", mood.getVisibility());
+        if (mood.getImagePath() != null) {
+            fields.put("image", mood.getImagePath());
+        }
+        putLocation(fields, mood.getLocation());
+        putTime(fields, mood.getTimestamp(), mood.getZoneOffset());
+        return fields;
+    }
+
+    /**
+     * Adds the location and its geohash to a set of document fields
+     * @param fields
+     *      the fields to add to
+     * @param location
+     *      where the mood happened, or null to clear both
+     */
+    static void putLocation(Map<String, Object> fields, GeoCoordinate location) {
+        fields.put(FIELD_LOCATION, location != null ? location.toMap() : null);
+        fields.put(FIELD_GEOHASH, GeoHash.forLocation(location));
+    }
+
+    /**
+     * Adds the time fields to a set of document fields
+     * @param fields
+     *      the fields to add to
+     * @param timestamp
+     *      when the mood happened in epoch milliseconds
+     * @param offset
+     *      the zone offset of the author at that time
+     */
+    static void putTime(Map<String, Object> fields, long timestamp, ZoneOffset offset) {
+        fields.put(FIELD_TIMESTAMP, timestamp);
+        fields.put(FIELD_ZONE_OFFSET, offset.getTotalSeconds());
+        fields.put(FIELD_SCHEMA_VERSION, SCHEMA_VERSION);
+    }
+
+    /**
+     * Gets the schema version of a mood document
+     * @param fields
+     *      reads the fields of the document
+     * @return
+     *      the stored version, documents written before versioning are version 1
+     */
+    static int readSchemaVersion(FieldReader fields) {
+        Object version = fields.get(FIELD_SCHEMA_VERSION);
+        return version instanceof Number ? ((Number) version).intValue() : 1;
+    }
+
+    /**
+     * Converts a Firestore document to a MoodState object.
+     * @param document
+     *      the Firestore document representing a mood
+     * @return
+     *      the MoodState object
+     */
+    public static MoodState decode(DocumentSnapshot document) {
+        return decode(document.getId(), document::get);
+    }
+
+    /**
+     * Converts the fields of a mood document to a MoodState object.
+     * @param id
+     *      the document id, used as the mood id
+     * @param fields
+     *      reads the fields of the document
+     * @return
+     *      the MoodState object
+     */
+    static MoodState decode(String id, FieldReader fields) {
+        String mood = (String) fields.get("mood");
+        Object timestamp = fields.get(FIELD_TIMESTAMP);
+        ZoneOffset offset = readZoneOffset(fields);
+        MoodState moodState;
+        if (timestamp instanceof Number) {
+            // The stored timestamp is kept as is, only the local day and time are worked out from it
+            long millis = ((Number) timestamp).longValue();
+            moodState = new MoodState(mood, toDayTime(millis, offset), offset, millis);
+        } else {
+            LocalDateTime dayTime = readLegacyDayTime(fields);
+            // Moods without a stored time keep the old behaviour of using the current time
+            moodState = new MoodState(mood, dayTime != null ? dayTime : LocalDateTime.now());
+            if (dayTime != null && offset != null) {
+                moodState.setZoneOffset(offset);
+            }
+        }
+        moodState.setId(id);
+        moodState.setUser((String) fields.get("user"));
+        moodState.setReason((String) fields.get("reason"));
+        moodState.setSituation((String) fields.get("situation"));
+        moodState.setVisibility((Boolean) fields.get("visibility"));
+
+        // The image is kept as text until something needs the Uri
+        Object image = fields.get("image");
+        if (image instanceof String) {
+            moodState.setImagePath((String) image);
+        }
+
+        Object location = fields.get(FIELD_LOCATION);
+        if (location instanceof Map) {
+            moodState.setLocation(readLocation((Map<String, Object>) location));
+        }
+        return moodState;
+    }
+
+    /**
+     * Reads when a mood happened, in the local time of its author.
+     * Uses the "timestamp" field when present, otherwise the older dayTime map or ISO string.
+     * @param fields
+     *      reads the fields of the document
+     * @return
+     *      the day and time of the mood, or null if the document has none
+     */
+    static LocalDateTime readDayTime(FieldReader fields) {
+        Object timestamp = fields.get(FIELD_TIMESTAMP);
+        if (timestamp instanceof Number) {
+            return toDayTime(((Number) timestamp).longValue(), readZoneOffset(fields));
+        }
+        return readLegacyDayTime(fields);
+    }
+
+    /**
+     * Converts a stored timestamp to the local day and time of the author
+     * @param timestamp
+     *      when the mood happened in epoch milliseconds
+     * @param offset
+     *      the stored offset of the author, or null
+     * @return
+     *      the day and time of the mood
+     */
+    private static LocalDateTime toDayTime(long timestamp, ZoneOffset offset) {
+        // Version 1 documents that only have a timestamp use the zone of this device
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), offset != null ? offset : ZoneId.systemDefault());
+    }
+
+    /**
+     * Reads when a mood happened from the older dayTime map or ISO string only, e.g. when the
+     * timestamp of a document cannot be read
+     * @param fields
+     *      reads the fields of the document
+     * @return
+     *      the day and time of the mood, or null if the document has no dayTime
+     */
+    static LocalDateTime readLegacyDayTime(FieldReader fields) {
+        Object dayTime = fields.get("dayTime");
+        if (dayTime instanceof Map) {
+            return mapToLocalDateTime((Map<String, Object>) dayTime);
+        }
+        if (dayTime instanceof String) {
+            return LocalDateTime.parse((String) dayTime);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the zone offset of the author of a mood
+     * @param fields
+     *      reads the fields of the document
+     * @return
+     *      the offset, or null if the document does not store one
+     */
+    static ZoneOffset readZoneOffset(FieldReader fields) {
+        Object offset = fields.get(FIELD_ZONE_OFFSET);
+        return offset instanceof Number ? ZoneOffset.ofTotalSeconds(((Number) offset).intValue()) : null;
+    }
+
+    /**
+     * Reads when a mood happened from a Firestore document.
+     * @param document
+     *      the Firestore document representing a mood
+     * @return
+     *      the day and time of the mood, or null if the document has none
+     */
+    public static LocalDateTime readDayTime(DocumentSnapshot document) {
+        return readDayTime(document::get);
+    }
+
+    /**
+     * Reads when a mood happened from the dayTime of a Firestore document only.
+     * @param document
+     *      the Firestore document representing a mood
+     * @return
+     *      the day and time of the mood, or null if the document has no dayTime
+     */
+    public static LocalDateTime readLegacyDayTime(DocumentSnapshot document) {
+        return readLegacyDayTime(document::get);
+    }
+
+    /**
+     * Builds a coordinate from a stored location map
+     * @param locationMap
+     *      the map holding "latitude" and "longitude"
+     * @return
+     *      the coordinate, or null if either value is missing
+     */
+    static GeoCoordinate readLocation(Map<String, Object> locationMap) {
+        Object latitude = locationMap.get("latitude");
+        Object longitude = locationMap.get("longitude");
+        if (!(latitude instanceof Number) || !(longitude instanceof Number)) {
+            return null;
+        }
+        return new GeoCoordinate(((Number) latitude).doubleValue(), ((Number) longitude).doubleValue());
+    }
+
+    /**
+     * Converts a dayTime map to a LocalDateTime object.
+     * @param dayTimeMap
+     *      the map representing the dayTime
+     * @return
+     *      the LocalDateTime object
+     */
+    static LocalDateTime mapToLocalDateTime(Map<String, Object> dayTimeMap) {
+        return LocalDateTime.of(
+                intOf(dayTimeMap, "year"),
+                intOf(dayTimeMap, "monthValue"),
+                intOf(dayTimeMap, "dayOfMonth"),
+                intOf(dayTimeMap, "hour"),
+                intOf(dayTimeMap, "minute"),
+                intOf(dayTimeMap, "second"),
+                intOf(dayTimeMap, "nano"));
+    }
+
+    /**
+     * Reads a number from a map as an int, missing values count as 0
+     */
+    private static int intOf(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+}
@@ -0,0 +1,328 @@
+package com.example.androidproject;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps LocalMoodStore in line with Firestore.
+ * Every mood write stores a server "updatedAt" time and every delete leaves a tombstone with one, so
+ * after the first full read of a user only the moods and tombstones newer than the stored cursor are
+ * fetched. The data sent for a sync grows with the number of changes, not the number of moods.
+ * Feed syncs only ever read public moods. A mood made private leaves a tombstone like a deleted one,
+ * so followers drop it without reading the private mood.
+ */
+public class MoodSyncEngine {
+    private static final String TAG = "MoodSyncEngine";
+
+    // Server time of the last write to a mood or tombstone
+    static final String FIELD_UPDATED_AT = "updatedAt";
+    // Collection of deleted mood ids, so syncs can remove them from the store
+    static final String TOMBSTONES = "MoodTombstones";
+    // How far back each delta sync looks past its cursor, covers writes that commit out of order
+    static final long CURSOR_OVERLAP_MILLIS = 5_000;
+
+    // Identical syncs running at the same time share one request
+    private static final SingleFlight<Integer> syncFlights = new SingleFlight<>();
+
+    private final FirebaseFirestore db;
+    private final LocalMoodStore store;
+
+    /**
+     * Creates a sync engine for the store of the app
+     * @param store
+     *      the store to keep up to date
+     */
+    public MoodSyncEngine(LocalMoodStore store) {
+        this.db = FirebaseFirestore.getInstance();
+        this.store = store;
+    }
+
+    /**
+     * Gets the cursor scope for every mood of a user
+     * @param username
+     *      the user
+     * @return
+     *      the scope name
+     */
+    static String userScope(String username) {
+        return "user:" + username;
+    }
+
+    /**
+     * Gets the cursor scope for the public moods of a followed user
+     * @param username
+     *      the followed user
+     * @return
+     *      the scope name
+     */
+    static String feedScope(String username) {
+        return "feed:" + username;
+    }
+
+    /**
+     * Gets the cursor scopes for the public moods of followed users
+     * @param following
+     *      the followed users
+     * @return
+     *      the scope names, in the same order
+     */
+    static List<String> feedScopes(List<String> following) {
+        ArrayList<String> scopes = new ArrayList<>(following.size());
+        for (String user : following) {
+            scopes.add(feedScope(user));
+        }
+        return scopes;
+    }
+
+    /**
+     * Syncs every mood of a user, private ones included
+     * @param username
+     *      the user whose moods are synced
+     * @return
+     *      a Task with the number of moods that changed in the store
+     */
+    public Task<Integer> syncUser(String username) {
+        String scope = userScope(username);
+        return syncFlights.run(scope, () -> Tasks.call(store.getExecutor(), () -> store.getCursor(scope))
+                .continueWithTask(cursorTask -> {
+                    Long cursor = cursorTask.getResult();
+                    Query moods = db.collection("Moods").whereEqualTo("user", username);
+                    if (cursor == null) {
+                        return serverRead(moods).continueWithTask(task ->
+                                applyFull(Collections.singletonList(username), Collections.singletonList(scope),
+                                        task.getResult(), null));
+                    }
+                    Query tombstones = db.collection(TOMBSTONES).whereEqualTo("user", username);
+                    return applyDelta(moods, tombstones, cursor, Collections.singletonList(scope));
+                }));
+    }
+
+    /**
+     * Syncs the public moods of the followed users
+     * @param following
+     *      the followed users
+     * @return
+     *      a Task with the number of moods that changed in the store
+     */
+    public Task<Integer> syncFeed(List<String> following) {
+        return syncFeed(following, null);
+    }
+
+    /**
+     * Syncs the public moods of the followed users, handing over the moods of every full read as it
+     * arrives so a feed that was never synced can be shown before the whole sync is done
+     * @param following
+     *      the followed users
+     * @param listener
+     *      gets the moods of each chunk that was read in full, or null. Not called when the sync
+     *      joins one that is already running
+     * @return
+     *      a Task with the number of moods that changed in the store
+     */
+    public Task<Integer> syncFeed(List<String> following, ChunkListener listener) {
+        ArrayList<String> users = new ArrayList<>(following);
+        Collections.sort(users);
+        return syncFlights.run("feed:" + String.join(",", users), () ->
+                Tasks.call(store.getExecutor(), () -> store.getCursors(feedScopes(users)))
+                        .continueWithTask(cursorTask -> syncFeedChunks(users, cursorTask.getResult(), listener)));
+    }
+
+    /**
+     * Runs a full read for the users never synced and a delta read for the rest, in whereIn chunks
+     * @param users
+     *      the followed users
+     * @param cursors
+     *      the cursor of every feed scope that was synced before
+     * @param listener
+     *      gets the moods of each chunk that was read in full, or null
+     * @return
+     *      a Task with the number of moods that changed in the store
+     */
+    private Task<Integer> syncFeedChunks(List<String> users, Map<String, Long> cursors, ChunkListener listener) {
+        ArrayList<String> fresh = new ArrayList<>();
+        ArrayList<String> synced = new ArrayList<>();
+        for (String user : users) {
+            if (cursors.containsKey(feedScope(user))) {
+                synced.add(user);
+            } else {
+                fresh.add(user);
+            }
+        }
+
+        ArrayList<Task<Integer>> tasks = new ArrayList<>();
+        for (List<String> chunk : FeedManager.chunk(fresh, FeedManager.WHERE_IN_LIMIT)) {
+            tasks.add(serverRead(db.collection("Moods")
+                    .whereIn("user", chunk)
+                    .whereEqualTo("visibility", Boolean.TRUE))
+                    .continueWithTask(task -> applyFull(chunk, feedScopes(chunk), task.getResult(), listener)));
+        }
+        for (List<String> chunk : FeedManager.chunk(synced, FeedManager.WHERE_IN_LIMIT)) {
+            // One read covers the chunk from its oldest cursor, moods already stored are replaced
+            long oldest = Long.MAX_VALUE;
+            for (String scope : feedScopes(chunk)) {
+                oldest = Math.min(oldest, cursors.get(scope));
+            }
+            Query moods = db.collection("Moods")
+                    .whereIn("user", chunk)
+                    .whereEqualTo("visibility", Boolean.TRUE); // Private moods are never read for a feed
+            Query tombstones = db.collection(TOMBSTONES).whereIn("user", chunk);
+            tasks.add(applyDelta(moods, tombstones, oldest, feedScopes(chunk)));
+        }
+        return Tasks.whenAllSuccess(tasks).continueWith(done -> {
+            int changed = 0;
+            for (Object count : done.getResult()) {
+                changed += (Integer) count;
+            }
+            return changed;
+        });
+    }
+
+    /**
+     * Stores the result of a full read and starts the cursors at the newest update in it
+     * @param users
+     *      the users that were read
+     * @param scopes
+     *      the cursor scopes of the read
+     * @param snapshot
+     *      every mood of the users in the scope
+     * @param listener
+     *      gets the decoded moods before they are stored, or null
+     * @return
+     *      a Task with the number of moods stored
+     */
+    private Task<Integer> applyFull(List<String> users, List<String> scopes, QuerySnapshot snapshot,
+                                    ChunkListener listener) {
+        Map<String, ArrayList<MoodState>> byUser = new HashMap<>();
+        for (String user : users) {
+            byUser.put(user, new ArrayList<>());
+        }
+        long newest = 0;
+        ArrayList<MoodState> read = new ArrayList<>();
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+            newest = Math.max(newest, updatedAt(document));
+            MoodState mood = decode(document);
+            if (mood != null && byUser.containsKey(mood.getUser())) {
+                byUser.get(mood.getUser()).add(mood);
+                read.add(mood);
+            }
+        }
+        if (listener != null) {
+            listener.onChunk(read);
+        }
+        long cursor = newest;
+        return Tasks.call(store.getExecutor(), () -> {
+            int stored = 0;
+            for (Map.Entry<String, ArrayList<MoodState>> entry : byUser.entrySet()) {
+                store.replaceUser(entry.getKey(), entry.getValue());
+                stored += entry.getValue().size();
+            }
+            for (String scope : scopes) {
+                store.setCursor(scope, cursor);
+            }
+            Log.d(TAG, "Full sync stored " + stored + " moods for " + users.size() + " users");
+            return stored;
+        });
+    }
+
+    /**
+     * Reads the moods and tombstones updated after a cursor and applies them to the store.
+     * Tombstones are applied before the moods, so a mood that was made private and then changed or
+     * made public again is stored.
+     * @param moods
+     *      the mood query of the scope
+     * @param tombstones
+     *      the tombstone query of the scope
+     * @param cursor
+     *      the oldest cursor of the scopes
+     * @param scopes
+     *      the cursor scopes the read covers
+     * @return
+     *      a Task with the number of moods that changed
+     */
+    private Task<Integer> applyDelta(Query moods, Query tombstones, long cursor, List<String> scopes) {
+        Timestamp since = new Timestamp(new Date(Math.max(0, cursor - CURSOR_OVERLAP_MILLIS)));
+        Task<QuerySnapshot> changedMoods = serverRead(moods.whereGreaterThan(FIELD_UPDATED_AT, since));
+        Task<QuerySnapshot> deletedMoods = serverRead(tombstones.whereGreaterThan(FIELD_UPDATED_AT, since));
+        return Tasks.whenAllSuccess(changedMoods, deletedMoods).continueWithTask(done -> {
+            long newest = cursor;
+            ArrayList<MoodState> upserts = new ArrayList<>();
+            ArrayList<String> deletes = new ArrayList<>();
+            for (DocumentSnapshot document : deletedMoods.getResult().getDocuments()) {
+                newest = Math.max(newest, updatedAt(document));
+                deletes.add(document.getId());
+            }
+            for (DocumentSnapshot document : changedMoods.getResult().getDocuments()) {
+                newest = Math.max(newest, updatedAt(document));
+                MoodState mood = decode(document);
+                if (mood != null) {
+                    upserts.add(mood);
+                }
+            }
+            long advanced = newest;
+            return Tasks.call(store.getExecutor(), () -> {
+                store.delete(deletes);
+                store.upsert(upserts);
+                for (String scope : scopes) {
+                    Long current = store.getCursor(scope);
+                    store.setCursor(scope, Math.max(advanced, current == null ? 0 : current));
+                }
+                if (!deletes.isEmpty() || !upserts.isEmpty()) {
+                    Log.d(TAG, "Delta sync applied " + upserts.size() + " changes and " + deletes.size() + " deletes");
+                }
+                return upserts.size() + deletes.size();
+            });
+        });
+    }
+
+    /**
+     * Listener for the moods of a chunk of followed users read in full
+     */
+    public interface ChunkListener {
+        void onChunk(ArrayList<MoodState> moods);
+    }
+
+    /**
+     * Runs a sync query against the server.
+     * A result from the cache could miss changes older than the newest one in it and move the cursor
+     * past them, so syncs never read from the cache.
+     */
+    private static Task<QuerySnapshot> serverRead(Query query) {
+        return Database.getInstance().read(query, Database.ReadPolicy.SERVER_ONLY, "sync");
+    }
+
+    /**
+     * Decodes a mood for the store, skipping documents that cannot be read
+     */
+    private static MoodState decode(DocumentSnapshot document) {
+        try {
+            return MoodStateCodec.decode(document);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Skipping unreadable mood " + document.getId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the server update time of a document
+     * @return
+     *      the time in epoch milliseconds, or 0 for documents written before it was stored
+     */
+    private static long updatedAt(DocumentSnapshot document) {
+        Timestamp updatedAt = document.getTimestamp(FIELD_UPDATED_AT);
+        return updatedAt == null ? 0 : updatedAt.toDate().getTime();
+    }
+}
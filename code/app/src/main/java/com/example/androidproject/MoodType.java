@@ -0,0 +1,103 @@
+package com.example.androidproject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Every mood a user can post, together with the color and emoji it is shown with.
+ * The values are shared by all moods, so nothing is looked up or parsed when a mood is created or
+ * drawn in a list.
+ */
+public enum MoodType {
+    ANGER("Anger", "FF0004", R.drawable.anger),
+    CONFUSION("Confusion", "BB00FF", R.drawable.confusion),
+    DISGUST("Disgust", "2CFC03", R.drawable.disgust),
+    FEAR("Fear", "B4EBF2", R.drawable.fear),
+    HAPPINESS("Happiness", "EEFF00", R.drawable.happiness),
+    SADNESS("Sadness", "0000FF", R.drawable.sadness),
+    SHAME("Shame", "F5A8C2", R.drawable.shame),
+    SURPRISE("Surprise", "F3AB32", R.drawable.surprise);
+
+    // Every mood type in display order
+    private static final List<MoodType> ALL = Collections.unmodifiableList(Arrays.asList(values()));
+    private static final HashMap<String, MoodType> BY_LABEL = new HashMap<>();
+
+    static {
+        for (MoodType type : ALL) {
+            BY_LABEL.put(type.label, type);
+        }
+    }
+
+    private final String label;
+    // Stores the hex code of the color without the #
+    private final String hex;
+    private final int colorInt;
+    // Stores the id of the emoji in drawable
+    private final int emoji;
+
+    MoodType(String label, String hex, int emoji) {
+        this.label = label;
+        this.hex = hex;
+        // Fully opaque ARGB, the same value Color.parseColor("#" + hex) gives
+        this.colorInt = 0xFF000000 | Integer.parseInt(hex, 16);
+        this.emoji = emoji;
+    }
+
+    /**
+     * Finds the mood type with the given name
+     * @param label
+     *      the name of the mood, e.g. "Happiness"
+     * @return
+     *      the mood type, or null if there is no mood with that name
+     */
+    public static MoodType fromLabel(String label) {
+        return label == null ? null : BY_LABEL.get(label);
+    }
+
+    /**
+     * Gets every mood type in display order
+     * @return
+     *      an unmodifiable list of the mood types
+     */
+    public static List<MoodType> all() {
+        return ALL;
+    }
+
+    /**
+     * Gets the name of the mood as it is stored and shown
+     * @return
+     *      the mood name
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Gets the color of the mood as hex without the #
+     * @return
+     *      the hex color
+     */
+    public String getHex() {
+        return hex;
+    }
+
+    /**
+     * Gets the color of the mood ready to pass to a view
+     * @return
+     *      the ARGB color int
+     */
+    public int getColorInt() {
+        return colorInt;
+    }
+
+    /**
+     * Gets the emoji of the mood
+     * @return
+     *      the drawable id of the emoji
+     */
+    public int getEmoji() {
+        return emoji;
+    }
+}
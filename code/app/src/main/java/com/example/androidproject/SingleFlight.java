@@ -0,0 +1,75 @@
+package com.example.androidproject;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.HashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical requests that are running at the same time.
+ * The first caller for a key starts the request, every caller that asks for the same key before it
+ * completes gets the same Task, so one Firestore read serves all of them.
+ * The key is forgotten as soon as the Task completes, so later calls start a new request.
+ * @param <T>
+ *      the result type of the request
+ */
+public class SingleFlight<T> {
+    private final HashMap<String, Task<T>> inFlight = new HashMap<>();
+    private int started = 0;
+    private int shared = 0;
+
+    /**
+     * Runs the request for a key unless an identical one is already running
+     * @param key
+     *      identifies requests that would return the same result
+     * @param request
+     *      starts the request, only called if nothing is in flight for the key
+     * @return
+     *      the Task of the in flight request for the key
+     */
+    public synchronized Task<T> run(String key, Supplier<Task<T>> request) {
+        Task<T> running = inFlight.get(key);
+        if (running != null) {
+            shared++;
+            return running;
+        }
+        started++;
+        Task<T> task = request.get();
+        if (!task.isComplete()) {
+            inFlight.put(key, task);
+            task.addOnCompleteListener(done -> forget(key, task));
+        }
+        return task;
+    }
+
+    /**
+     * Removes a completed request so the next call for its key starts a new one
+     * @param key
+     *      the key of the request
+     * @param task
+     *      the Task that completed
+     */
+    private synchronized void forget(String key, Task<T> task) {
+        if (inFlight.get(key) == task) {
+            inFlight.remove(key);
+        }
+    }
+
+    /**
+     * Gets how many requests were actually started
+     * @return
+     *      the number of started requests
+     */
+    public synchronized int getStartedCount() {
+        return started;
+    }
+
+    /**
+     * Gets how many calls joined a request that was already running
+     * @return
+     *      the number of coalesced calls
+     */
+    public synchronized int getSharedCount() {
+        return shared;
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.androidproject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Remembers the download URLs of Firebase Storage paths.
+ * Asking Storage for a download URL is a round trip of its own before the image download can start,
+ * so URLs are kept in memory and in SharedPreferences and only asked for again when they are
+ * missing, too old, or invalidated because the image at the path was replaced or deleted.
+ */
+public class StorageUrlCache {
+    private static final String TAG = "StorageUrlCache";
+    private static final String PREF_NAME = "StorageUrlCache";
+
+    // URLs kept in memory
+    static final int MEMORY_ENTRIES = 256;
+    // URLs kept on disk, the oldest are dropped past this
+    static final int DISK_ENTRIES = 1024;
+    // URLs left on disk after dropping the oldest, so the stored URLs are only sorted now and then
+    static final int DISK_TRIM_TO = DISK_ENTRIES * 3 / 4;
+    // Stored URLs are asked for again after this long in case their token was revoked
+    static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private static StorageUrlCache instance;
+
+    // Stored "savedAt|url" values, so the memory layer expires URLs like the disk does
+    private final LruCache<String, String> memory = new LruCache<>(MEMORY_ENTRIES);
+    private final SharedPreferences disk;
+    // How many URLs are on disk, counted once on the first write and then kept up to date
+    private int diskCount = -1;
+    // Identical lookups running at the same time share one request
+    private final SingleFlight<Uri> lookups = new SingleFlight<>();
+
+    private StorageUrlCache(Context context) {
+        disk = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Opens the cache for the app, called once when the app starts
+     * @param context
+     *      any context of the app
+     */
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new StorageUrlCache(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * Gets the cache of the app
+     * @return
+     *      the cache, or null if the app did not open one
+     */
+    public static synchronized StorageUrlCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the download URL of a storage path, from the cache when it is there
+     * @param path
+     *      the Firebase Storage path
+     * @return
+     *      a Task with the URL
+     */
+    public Task<Uri> getDownloadUrl(String path) {
+        Uri cached = get(path);
+        if (cached != null) {
+            return Tasks.forResult(cached);
+        }
+        return lookups.run(path, () -> FirebaseStorage.getInstance().getReference().child(path).getDownloadUrl()
+                .addOnSuccessListener(uri -> put(path, uri)));
+    }
+
+    /**
+     * Gets a URL that is already cached
+     * @param path
+     *      the Firebase Storage path
+     * @return
+     *      the URL, or null if it has to be asked for
+     */
+    public synchronized Uri get(String path) {
+        long now = System.currentTimeMillis();
+        String stored = memory.get(path);
+        String url = readUrl(stored, now);
+        if (url == null) {
+            if (stored != null) {
+                // Too old in memory means too old on disk, the next lookup stores a new one
+                memory.remove(path);
+                return null;
+            }
+            stored = disk.getString(path, null);
+            url = readUrl(stored, now);
+            if (url == null) {
+                return null;
+            }
+            memory.put(path, stored);
+        }
+        return Uri.parse(url);
+    }
+
+    /**
+     * Caches the URL of a path
+     * @param path
+     *      the Firebase Storage path
+     * @param uri
+     *      the download URL to use for it
+     */
+    public synchronized void put(String path, Uri uri) {
+        String stored = System.currentTimeMillis() + "|" + uri;
+        memory.put(path, stored);
+        if (diskCount < 0) {
+            diskCount = disk.getAll().size();
+        }
+        if (!disk.contains(path)) {
+            diskCount++;
+        }
+        SharedPreferences.Editor editor = disk.edit().putString(path, stored);
+        if (diskCount > DISK_ENTRIES) {
+            diskCount -= dropOldest(editor, disk.getAll(), path, diskCount - DISK_TRIM_TO);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets the URL of a path, called when the file at the path is replaced or deleted
+     * @param path
+     *      the Firebase Storage path
+     */
+    public synchronized void invalidate(String path) {
+        memory.remove(path);
+        if (diskCount > 0 && disk.contains(path)) {
+            diskCount--;
+        }
+        disk.edit().remove(path).apply();
+    }
+
+    /**
+     * Forgets the URLs of every variant of the image of a mood
+     * @param moodId
+     *      the id of the mood the image belongs to
+     */
+    public void invalidateImage(String moodId) {
+        for (ImageVariant variant : ImageVariant.values()) {
+            invalidate(variant.path(moodId));
+        }
+    }
+
+    /**
+     * Removes the oldest stored URLs
+     * @param editor
+     *      the edit the removals are added to
+     * @param all
+     *      the stored URLs
+     * @param keep
+     *      the path being written, never dropped
+     * @param count
+     *      how many URLs to drop
+     * @return
+     *      how many URLs were dropped
+     */
+    private static int dropOldest(SharedPreferences.Editor editor, Map<String, ?> all, String keep, int count) {
+        ArrayList<Map.Entry<String, ?>> entries = new ArrayList<>(all.entrySet());
+        entries.sort((a, b) -> Long.compare(savedAt(a.getValue()), savedAt(b.getValue())));
+        int dropped = 0;
+        for (int i = 0; dropped < count && i < entries.size(); i++) {
+            if (!entries.get(i).getKey().equals(keep)) {
+                editor.remove(entries.get(i).getKey());
+                dropped++;
+            }
+        }
+        Log.d(TAG, "Dropped " + dropped + " old download URLs");
+        return dropped;
+    }
+
+    /**
+     * Reads a stored "savedAt|url" value
+     * @param stored
+     *      the stored value, may be null
+     * @param now
+     *      the current time in epoch milliseconds
+     * @return
+     *      the URL, or null if there is none or it is too old
+     */
+    static String readUrl(String stored, long now) {
+        if (stored == null) {
+            return null;
+        }
+        int split = stored.indexOf('|');
+        if (split <= 0 || now - savedAt(stored) > MAX_AGE_MILLIS) {
+            return null;
+        }
+        return stored.substring(split + 1);
+    }
+
+    private static long savedAt(Object stored) {
+        if (!(stored instanceof String)) {
+            return 0;
+        }
+        String value = (String) stored;
+        int split = value.indexOf('|');
+        try {
+            return split > 0 ? Long.parseLong(value.substring(0, split)) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
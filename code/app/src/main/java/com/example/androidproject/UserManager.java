@@ -88,6 +88,7 @@ public class UserManager {
                     User user = new User(username, password);
                     database.addUser(user);
                     currentUser = user;
+                    setStoreOwner(username);
                     // TODO Start the next activity, wherever the screen goes after signup
                     callback.onSignUpSuccess();
                 }
@@ -117,12 +118,16 @@ public class UserManager {
      */
     public void loginUser(String username, String password, LoginCallback callback){
         // Creates the query for a matching username and password
-        Task<QuerySnapshot> query = database.getUsers().whereEqualTo(FieldPath.documentId(), username).whereEqualTo("password", password).get();
+        // Always checked against the server so a changed password is never matched from the cache
+        Task<QuerySnapshot> query = database.read(
+                database.getUsers().whereEqualTo(FieldPath.documentId(), username).whereEqualTo("password", password),
+                Database.ReadPolicy.SERVER_ONLY, "login");
         // Perform the query and checks
         query.addOnSuccessListener(queryDocumentSnapshots ->{
             int i = queryDocumentSnapshots.size();
             if (i == 1){ // If the user was found and there was only one of them
                 Log.d("UserManager", "Username & password match, login successful!");
+                setStoreOwner(username);
                 callback.onLoginSuccess();
             } else if (i == 0) { // User does not exist
                 Log.d("User Manager", "Username & password do not match, login unsuccessful");
@@ -139,6 +144,18 @@ public class UserManager {
 
     }
 
+    /**
+     * Hands the signed in user to the local mood store, so the moods of whoever used the
+     * device before are not shown to them
+     * @param username the user who signed in
+     */
+    private static void setStoreOwner(String username) {
+        LocalMoodStore store = LocalMoodStore.getInstance();
+        if (store != null) {
+            store.setOwner(username);
+        }
+    }
+
     /**
      * Fetches the user data from the database and populates the static currentUser object.
      * @param username The username of the user to fetch.
@@ -235,6 +252,7 @@ public class UserManager {
 
                                         .addOnSuccessListener(documentReferenceUpdate1 -> {
                                             Log.d("UserManager", "currentUser now has " + requesterUsername + " in their followers list");
+                                            new FeedInbox().backfill(requesterUsername, acceptorUsername);
                                         })
                                         .addOnFailureListener(e -> { // 3rd nested update failed
                                             Log.e("UserManager", "Could not add user to follower list error message: " + e);
@@ -271,6 +289,7 @@ public class UserManager {
                             .addOnSuccessListener(userToBeUnfollowedDocRef1 -> {
 
                                 Log.d("User Manager", currentUsername + " Successfully unfollowed " + userToBeUnfollowed);
+                                new FeedInbox().removeAuthor(currentUsername, userToBeUnfollowed);
                             })
 
                             .addOnFailureListener(e -> {
@@ -0,0 +1,967 @@
+package com.example.androidproject;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.WriteBatch;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Durable queue of writes that have not reached Firebase yet.
+ * New moods, comments and image uploads are stored in SQLite first, so posting returns straight
+ * away and nothing is lost if the network drops or the app is killed. A picked image is copied in
+ * before it is shrunk, and its variants are queued as uploads once ImageProcessor is done. Pending document writes are
+ * sent together in WriteBatch commits, uploads one at a time, and failed items are retried with
+ * exponential backoff when their time comes or the network comes back.
+ */
+public class WriteOutbox extends SQLiteOpenHelper {
+    private static final String TAG = "WriteOutbox";
+    private static final String DATABASE_NAME = "outbox.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE_ITEMS = "items";
+
+    // First retry delay, doubled on every failure up to MAX_BACKOFF_MILLIS
+    static final long BASE_BACKOFF_MILLIS = 2_000;
+    static final long MAX_BACKOFF_MILLIS = 5 * 60_000;
+    // Payload key of a document's image targets, see enqueueDocument
+    private static final String IMAGE_AFTER = "imageAfter";
+
+    private static WriteOutbox instance;
+
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ArrayList<StatusListener> listeners = new ArrayList<>();
+    private final Runnable flushRunnable = this::flush;
+
+    // Only touched on the main thread
+    private boolean flushing = false;
+    private boolean flushAgain = false;
+
+    /**
+     * The kind of write an item holds
+     */
+    public enum Kind {
+        // Sets a whole document, target is the document path
+        DOCUMENT,
+        // Uploads a file to storage, target is the storage path
+        UPLOAD,
+        // Shrinks a picked image and queues its variants as uploads, target is imageTarget of the mood
+        IMAGE
+    }
+
+    /**
+     * Where an item is on its way to Firebase
+     */
+    public enum Status {
+        // Waiting to be sent
+        PENDING,
+        // Being sent right now
+        SENDING,
+        // Failed and waiting for its next attempt
+        RETRYING,
+        // Rejected by Firebase and will not be sent again
+        FAILED,
+        // Stored in Firebase and removed from the outbox
+        DONE
+    }
+
+    private WriteOutbox(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    /**
+     * Opens the outbox, sends anything left from the last run and sends again whenever the
+     * network comes back
+     * @param context
+     *      any context of the app
+     */
+    public static synchronized void init(Context context) {
+        if (instance != null) {
+            return;
+        }
+        instance = new WriteOutbox(context.getApplicationContext());
+        instance.executor.execute(instance::recoverInterrupted);
+        ConnectivityManager connectivity = context.getSystemService(ConnectivityManager.class);
+        if (connectivity != null) {
+            WriteOutbox outbox = instance;
+            connectivity.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    outbox.handler.post(outbox::flush);
+                }
+            });
+        }
+        instance.handler.post(instance::flush);
+    }
+
+    /**
+     * Gets the outbox of the app
+     * @return
+     *      the outbox, or null if the app did not open one
+     */
+    public static synchronized WriteOutbox getInstance() {
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ITEMS + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "kind TEXT NOT NULL, "
+                + "target TEXT NOT NULL UNIQUE, "
+                + "payload TEXT, "
+                + "file TEXT, "
+                + "status TEXT NOT NULL, "
+                + "attempts INTEGER NOT NULL DEFAULT 0, "
+                + "next_attempt_at INTEGER NOT NULL DEFAULT 0, "
+                + "last_error TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Pending writes must survive, so later versions have to migrate the table instead of dropping it
+    }
+
+    /**
+     * Queues a document to be set
+     * @param path
+     *      the path of the document, e.g. "Moods/abc"
+     * @param fields
+     *      the fields of the document, with no sentinel values
+     * @param touch
+     *      true to stamp "updatedAt" with the server time when it is sent
+     */
+    public void enqueueDocument(String path, Map<String, Object> fields, boolean touch) {
+        enqueueDocument(path, fields, touch, null);
+    }
+
+    /**
+     * Queues a document whose "image" field points at an image that is queued too.
+     * The document is held back until the items queued for the image are stored, so it is never
+     * written with an image that is not there yet. If one of them fails the document is written
+     * without the field.
+     * @param path
+     *      the path of the document, e.g. "Moods/abc"
+     * @param fields
+     *      the fields of the document, with no sentinel values
+     * @param touch
+     *      true to stamp "updatedAt" with the server time when it is sent
+     * @param imageTargets
+     *      the targets the image is queued under, e.g. imageTarget and the variant paths, or null
+     */
+    public void enqueueDocument(String path, Map<String, Object> fields, boolean touch, List<String> imageTargets) {
+        JSONObject payload = new JSONObject();
+        try {
+            payload.put("fields", toJson(fields));
+            payload.put("touch", touch);
+            if (imageTargets != null) {
+                payload.put(IMAGE_AFTER, new JSONArray(imageTargets));
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Document fields can not be queued", e);
+        }
+        executor.execute(() -> {
+            try {
+                insert(Kind.DOCUMENT, path, payload.toString(), null);
+            } catch (IOException e) {
+                // Only items with a file can fail to be stored
+                Log.e(TAG, "Could not queue " + path, e);
+                notifyStatus(path, Status.FAILED);
+                return;
+            }
+            handler.post(this::flush);
+        });
+    }
+
+    /**
+     * Queues bytes to be uploaded.
+     * The bytes are written to app storage first, in a file named after the item, so the upload
+     * survives a restart and queueing the same path again can not touch the file of an earlier item.
+     * @param data
+     *      the bytes to store, e.g. an image from ImageProcessor
+     * @param storagePath
+     *      where to store them in Firebase Storage
+     */
+    public void enqueueUpload(byte[] data, String storagePath) {
+        executor.execute(() -> {
+            try {
+                insert(Kind.UPLOAD, storagePath, null, file -> write(data, file));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not store " + storagePath + " for upload", e);
+                notifyStatus(storagePath, Status.FAILED);
+                return;
+            }
+            handler.post(this::flush);
+        });
+    }
+
+    /**
+     * Queues a picked image to be shrunk and uploaded under a mood.
+     * The picked file is copied to app storage first, so the image is not lost if the app is killed
+     * while it is processed, even though access to the picked Uri ends with the process. Once
+     * processed every ImageVariant is queued as an upload.
+     * @param image
+     *      where to find the picked image on the phone
+     * @param moodId
+     *      id of the mood to store the image under
+     */
+    public void enqueueImage(Uri image, String moodId) {
+        String target = imageTarget(moodId);
+        executor.execute(() -> {
+            try {
+                insert(Kind.IMAGE, target, moodId, file -> {
+                    try (InputStream in = context.getContentResolver().openInputStream(image)) {
+                        if (in == null) {
+                            throw new IOException("Could not open " + image);
+                        }
+                        copy(in, file);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Could not store the image of mood " + moodId + " for upload", e);
+                // Kept as failed so the mood waiting for the image is written without it
+                insertFailed(Kind.IMAGE, target, e);
+                failImage(moodId);
+                return;
+            }
+            handler.post(this::flush);
+        });
+    }
+
+    /**
+     * Gets the target a picked image is queued under until its variants are queued
+     * @param moodId
+     *      id of the mood the image belongs to
+     * @return
+     *      the target to pass to whenDone
+     */
+    public static String imageTarget(String moodId) {
+        return "picked/" + moodId;
+    }
+
+    /**
+     * Gets the status of an item
+     * @param target
+     *      the document or storage path of the item
+     * @param callback
+     *      gets the status on the main thread, DONE if the item is no longer in the outbox
+     */
+    public void getStatus(String target, StatusCallback callback) {
+        executor.execute(() -> {
+            Status status = Status.DONE;
+            try (Cursor cursor = getReadableDatabase().query(TABLE_ITEMS, new String[] {"status"},
+                    "target = ?", new String[] {target}, null, null, null)) {
+                if (cursor.moveToFirst()) {
+                    status = Status.valueOf(cursor.getString(0));
+                }
+            }
+            Status result = status;
+            handler.post(() -> callback.onStatus(target, result));
+        });
+    }
+
+    /**
+     * Gets a Task that finishes when an item reaches Firebase.
+     * Has to be called on the main thread before the item is queued, so no status change is missed.
+     * @param target
+     *      the document or storage path the item will be queued for
+     * @return
+     *      a Task that succeeds once the item is stored, or fails if Firebase rejects it
+     */
+    public Task<Void> whenDone(String target) {
+        TaskCompletionSource<Void> done = new TaskCompletionSource<>();
+        addStatusListener(new StatusListener() {
+            @Override
+            public void onStatusChanged(String changed, Status status) {
+                if (!changed.equals(target)) {
+                    return;
+                }
+                if (status == Status.DONE) {
+                    removeStatusListener(this);
+                    done.setResult(null);
+                } else if (status == Status.FAILED) {
+                    removeStatusListener(this);
+                    done.setException(new IllegalStateException("Queued write to " + target + " failed"));
+                }
+            }
+        });
+        return done.getTask();
+    }
+
+    /**
+     * Listens for status changes of every item
+     * @param listener
+     *      called on the main thread
+     */
+    public void addStatusListener(StatusListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeStatusListener(StatusListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sends every item whose attempt is due, runs on the main thread
+     */
+    void flush() {
+        if (flushing) {
+            flushAgain = true;
+            return;
+        }
+        flushing = true;
+        handler.removeCallbacks(flushRunnable);
+        executor.execute(() -> {
+            List<Item> due = claimDue(System.currentTimeMillis());
+            handler.post(() -> send(due));
+        });
+    }
+
+    /**
+     * Sends the claimed items and waits for all of them before the next flush
+     * @param due
+     *      the items to send
+     */
+    private void send(List<Item> due) {
+        ArrayList<Item> documents = new ArrayList<>();
+        ArrayList<Item> uploads = new ArrayList<>();
+        ArrayList<Item> images = new ArrayList<>();
+        ArrayList<Item> isolated = new ArrayList<>();
+        for (Item item : due) {
+            notifyStatus(item.target, Status.SENDING);
+            if (item.kind == Kind.UPLOAD) {
+                uploads.add(item);
+            } else if (item.kind == Kind.IMAGE) {
+                images.add(item);
+            } else if (item.attempts > 0) {
+                // Items that failed before go alone so one bad write can not hold back the others
+                isolated.add(item);
+            } else {
+                documents.add(item);
+            }
+        }
+
+        ArrayList<List<Item>> groups = new ArrayList<>(FeedManager.chunk(documents, FeedInbox.MAX_BATCH_WRITES));
+        for (Item item : isolated) {
+            ArrayList<Item> alone = new ArrayList<>();
+            alone.add(item);
+            groups.add(alone);
+        }
+
+        final int[] remaining = {groups.size() + uploads.size() + images.size()};
+        Runnable finished = () -> {
+            remaining[0]--;
+            if (remaining[0] == 0) {
+                finishFlush();
+            }
+        };
+        if (remaining[0] == 0) {
+            finishFlush();
+            return;
+        }
+        for (List<Item> group : groups) {
+            commitGroup(group, finished);
+        }
+        for (Item upload : uploads) {
+            upload(upload, finished);
+        }
+        for (Item image : images) {
+            process(image, finished);
+        }
+    }
+
+    /**
+     * Commits a group of document writes as one batch.
+     * Once committed the writes sit in Firestore's own queue, which keeps them across restarts and
+     * sends them when the network is back, but whose Task does not end while offline. So the flush
+     * does not wait for it, otherwise one offline commit would hold back every upload. The items
+     * stay sending until Firestore answers, so they are not committed twice in this run.
+     */
+    private void commitGroup(List<Item> group, Runnable finished) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        WriteBatch batch = db.batch();
+        ArrayList<Item> sent = new ArrayList<>();
+        for (Item item : group) {
+            try {
+                JSONObject payload = new JSONObject(item.payload);
+                Map<String, Object> fields = toMap(payload.getJSONObject("fields"));
+                if (payload.optBoolean("touch")) {
+                    fields.put(MoodSyncEngine.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+                }
+                batch.set(db.document(item.target), fields);
+                sent.add(item);
+            } catch (JSONException e) {
+                Log.e(TAG, "Dropping unreadable outbox item " + item.target, e);
+                markFailed(item, e);
+            }
+        }
+        if (sent.isEmpty()) {
+            finished.run();
+            return;
+        }
+        batch.commit()
+                .addOnSuccessListener(aVoid -> {
+                    Log.d(TAG, "Committed " + sent.size() + " queued writes");
+                    for (Item item : sent) {
+                        markDone(item);
+                        onDocumentWritten(item);
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    for (Item item : sent) {
+                        markFailedOrRetry(item, e);
+                    }
+                    // Retries are scheduled by the flush that runs after this one
+                    flush();
+                });
+        finished.run();
+    }
+
+    /**
+     * Uploads a queued file
+     */
+    private void upload(Item item, Runnable finished) {
+        File file = new File(item.file);
+        if (!file.exists()) {
+            markFailed(item, new IOException("Queued file is missing"));
+            finished.run();
+            return;
+        }
+        FirebaseStorage.getInstance().getReference().child(item.target)
+                .putFile(Uri.fromFile(file))
+                .addOnSuccessListener(taskSnapshot -> {
+                    Log.d(TAG, "Uploaded " + item.target);
+                    markDone(item);
+                    finished.run();
+                })
+                .addOnFailureListener(e -> {
+                    markFailedOrRetry(item, e);
+                    finished.run();
+                });
+    }
+
+    /**
+     * Shrinks a queued picked image and queues the upload of every variant
+     */
+    private void process(Item item, Runnable finished) {
+        String moodId = item.payload;
+        File file = new File(item.file);
+        if (!file.exists()) {
+            markFailed(item, new IOException("Queued image is missing"));
+            failImage(moodId);
+            finished.run();
+            return;
+        }
+        ImageProcessor.process(context.getContentResolver(), Uri.fromFile(file))
+                .addOnSuccessListener(variants -> {
+                    // The uploads are stored before the picked image is removed
+                    for (Map.Entry<ImageVariant, ImageProcessor.Result> variant : variants.entrySet()) {
+                        enqueueUpload(variant.getValue().getBytes(), variant.getKey().path(moodId));
+                    }
+                    markDone(item);
+                    finished.run();
+                })
+                .addOnFailureListener(e -> {
+                    // An image that can not be decoded or made to fit never will be
+                    Log.e(TAG, "Image of mood " + moodId + " could not be processed", e);
+                    markFailed(item, e);
+                    failImage(moodId);
+                    finished.run();
+                });
+    }
+
+    /**
+     * Tells whoever waits for the variants of an image that they will not be uploaded
+     */
+    private void failImage(String moodId) {
+        for (ImageVariant variant : ImageVariant.values()) {
+            notifyStatus(variant.path(moodId), Status.FAILED);
+        }
+    }
+
+    /**
+     * Runs follow up work once a queued document is stored
+     */
+    private void onDocumentWritten(Item item) {
+        if (!item.target.startsWith("Moods/")) {
+            return;
+        }
+        try {
+            Map<String, Object> fields = toMap(new JSONObject(item.payload).getJSONObject("fields"));
+            MoodState mood = MoodStateCodec.decode(item.target.substring("Moods/".length()), fields::get);
+            // Copy public moods into the follower inboxes
+            if (Boolean.TRUE.equals(mood.getVisibility())) {
+                new FeedInbox().fanOut(mood);
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not fan out " + item.target, e);
+        }
+    }
+
+    /**
+     * Ends a flush and schedules the next one for the earliest retry
+     */
+    private void finishFlush() {
+        executor.execute(() -> {
+            Long next = nextAttemptAt();
+            handler.post(() -> {
+                flushing = false;
+                if (flushAgain) {
+                    flushAgain = false;
+                    flush();
+                } else if (next != null) {
+                    handler.postDelayed(flushRunnable, Math.max(0, next - System.currentTimeMillis()));
+                }
+            });
+        });
+    }
+
+    /**
+     * Removes a stored item and its file
+     */
+    private void markDone(Item item) {
+        executor.execute(() -> {
+            getWritableDatabase().delete(TABLE_ITEMS, "id = ?", new String[] {String.valueOf(item.id)});
+            if (item.file != null) {
+                new File(item.file).delete();
+            }
+        });
+        notifyStatus(item.target, Status.DONE);
+    }
+
+    /**
+     * Schedules a retry, unless Firebase rejected the write for good
+     */
+    private void markFailedOrRetry(Item item, Exception e) {
+        if (isPermanent(e)) {
+            Log.e(TAG, "Giving up on " + item.target, e);
+            markFailed(item, e);
+            return;
+        }
+        int attempts = item.attempts + 1;
+        long delay = backoffMillis(attempts);
+        Log.w(TAG, "Retrying " + item.target + " in " + delay + " ms", e);
+        ContentValues values = new ContentValues();
+        values.put("status", Status.RETRYING.name());
+        values.put("attempts", attempts);
+        values.put("next_attempt_at", System.currentTimeMillis() + delay);
+        values.put("last_error", String.valueOf(e.getMessage()));
+        update(item, values);
+        notifyStatus(item.target, Status.RETRYING);
+    }
+
+    private void markFailed(Item item, Exception e) {
+        ContentValues values = new ContentValues();
+        values.put("status", Status.FAILED.name());
+        values.put("last_error", String.valueOf(e.getMessage()));
+        update(item, values);
+        notifyStatus(item.target, Status.FAILED);
+    }
+
+    private void update(Item item, ContentValues values) {
+        executor.execute(() -> {
+            int updated = getWritableDatabase().update(TABLE_ITEMS, values, "id = ?",
+                    new String[] {String.valueOf(item.id)});
+            // The item was queued again while it was being sent, and its file belongs to no row now
+            if (updated == 0 && item.file != null) {
+                new File(item.file).delete();
+            }
+        });
+    }
+
+    /**
+     * Gets the delay before an attempt
+     * @param attempts
+     *      how many attempts failed so far
+     * @return
+     *      the delay in milliseconds
+     */
+    static long backoffMillis(int attempts) {
+        int doublings = Math.min(Math.max(attempts - 1, 0), 20);
+        return Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << doublings);
+    }
+
+    /**
+     * Checks if a failure will happen again no matter how often the write is retried
+     */
+    private static boolean isPermanent(Exception e) {
+        if (e instanceof FirebaseFirestoreException) {
+            FirebaseFirestoreException.Code code = ((FirebaseFirestoreException) e).getCode();
+            return code == FirebaseFirestoreException.Code.PERMISSION_DENIED
+                    || code == FirebaseFirestoreException.Code.INVALID_ARGUMENT;
+        }
+        if (e instanceof StorageException) {
+            return ((StorageException) e).getErrorCode() == StorageException.ERROR_NOT_AUTHORIZED;
+        }
+        return false;
+    }
+
+    private void notifyStatus(String target, Status status) {
+        handler.post(() -> {
+            for (StatusListener listener : new ArrayList<>(listeners)) {
+                listener.onStatusChanged(target, status);
+            }
+        });
+    }
+
+    /**
+     * Stores a new item, replacing a pending one for the same target, runs on the outbox thread.
+     * The file of an item is named after its row id and written in the same transaction as the
+     * row, so a row never points at a missing file and no two items share one.
+     * @param fileWriter
+     *      writes the file of the item, or null if it has none
+     * @throws IOException
+     *      if the file could not be written, nothing is queued then
+     */
+    private void insert(Kind kind, String target, String payload, ItemFileWriter fileWriter) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        File file = null;
+        try {
+            releaseReplaced(db, target);
+            ContentValues values = new ContentValues();
+            values.put("kind", kind.name());
+            values.put("target", target);
+            values.put("payload", payload);
+            values.put("status", Status.PENDING.name());
+            values.put("attempts", 0);
+            values.put("next_attempt_at", 0);
+            long id = db.insertWithOnConflict(TABLE_ITEMS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            if (fileWriter != null) {
+                file = new File(new File(context.getFilesDir(), "outbox"), String.valueOf(id));
+                fileWriter.write(file);
+                ContentValues stored = new ContentValues();
+                stored.put("file", file.getAbsolutePath());
+                db.update(TABLE_ITEMS, stored, "id = ?", new String[] {String.valueOf(id)});
+            }
+            db.setTransactionSuccessful();
+        } catch (IOException e) {
+            if (file != null) {
+                file.delete();
+            }
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+        notifyStatus(target, Status.PENDING);
+    }
+
+    /**
+     * Stores an item that failed before it could be queued, runs on the outbox thread
+     */
+    private void insertFailed(Kind kind, String target, Exception e) {
+        ContentValues values = new ContentValues();
+        values.put("kind", kind.name());
+        values.put("target", target);
+        values.put("status", Status.FAILED.name());
+        values.put("last_error", String.valueOf(e.getMessage()));
+        SQLiteDatabase db = getWritableDatabase();
+        releaseReplaced(db, target);
+        db.insertWithOnConflict(TABLE_ITEMS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        notifyStatus(target, Status.FAILED);
+    }
+
+    /**
+     * Deletes the file of the item a new one for the same target replaces, runs on the outbox
+     * thread. An item that is being sent still reads its file, so that one is deleted once the
+     * send ends.
+     */
+    private static void releaseReplaced(SQLiteDatabase db, String target) {
+        try (Cursor cursor = db.query(TABLE_ITEMS, new String[] {"status", "file"}, "target = ?",
+                new String[] {target}, null, null, null)) {
+            if (cursor.moveToFirst() && !cursor.isNull(1)
+                    && !Status.SENDING.name().equals(cursor.getString(0))) {
+                new File(cursor.getString(1)).delete();
+            }
+        }
+    }
+
+    /**
+     * Marks every due item as sending and returns them in the order they were queued, runs on the
+     * outbox thread. Documents still waiting for their image are put off and checked again later.
+     */
+    private List<Item> claimDue(long now) {
+        ArrayList<Item> due = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            try (Cursor cursor = db.query(TABLE_ITEMS, null,
+                    "status IN (?, ?) AND next_attempt_at <= ?",
+                    new String[] {Status.PENDING.name(), Status.RETRYING.name(), String.valueOf(now)},
+                    null, null, "id")) {
+                while (cursor.moveToNext()) {
+                    Item item = releaseAfterImage(db, new Item(cursor), now);
+                    if (item != null) {
+                        due.add(item);
+                    }
+                }
+            }
+            ContentValues sending = new ContentValues();
+            sending.put("status", Status.SENDING.name());
+            for (Item item : due) {
+                db.update(TABLE_ITEMS, sending, "id = ?", new String[] {String.valueOf(item.id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return due;
+    }
+
+    /**
+     * Checks a document that waits for its image, runs on the outbox thread
+     * @return
+     *      the item to send, without its image field if the image failed, or null if the image is
+     *      still queued and the item was put off
+     */
+    private static Item releaseAfterImage(SQLiteDatabase db, Item item, long now) {
+        if (item.kind != Kind.DOCUMENT || item.payload == null || !item.payload.contains(IMAGE_AFTER)) {
+            return item;
+        }
+        try {
+            JSONObject payload = new JSONObject(item.payload);
+            JSONArray targets = payload.getJSONArray(IMAGE_AFTER);
+            String[] args = new String[targets.length()];
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < args.length; i++) {
+                args[i] = targets.getString(i);
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            boolean failed = false;
+            try (Cursor cursor = db.query(TABLE_ITEMS, new String[] {"status"},
+                    "target IN (" + placeholders + ")", args, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    if (!Status.FAILED.name().equals(cursor.getString(0))) {
+                        // Still on its way, looked at again on a later flush
+                        ContentValues later = new ContentValues();
+                        later.put("next_attempt_at", now + BASE_BACKOFF_MILLIS);
+                        db.update(TABLE_ITEMS, later, "id = ?", new String[] {String.valueOf(item.id)});
+                        return null;
+                    }
+                    failed = true;
+                }
+            }
+            payload.remove(IMAGE_AFTER);
+            if (failed) {
+                Log.w(TAG, "Image of " + item.target + " failed, writing it without one");
+                payload.getJSONObject("fields").remove("image");
+            }
+            ContentValues released = new ContentValues();
+            released.put("payload", payload.toString());
+            db.update(TABLE_ITEMS, released, "id = ?", new String[] {String.valueOf(item.id)});
+            return item.withPayload(payload.toString());
+        } catch (JSONException e) {
+            // Sent as it is, commitGroup drops an unreadable item
+            return item;
+        }
+    }
+
+    /**
+     * Gets when the next retry is due, runs on the outbox thread
+     * @return
+     *      the time in epoch milliseconds, or null if nothing is waiting
+     */
+    private Long nextAttemptAt() {
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT MIN(next_attempt_at) FROM " + TABLE_ITEMS + " WHERE status IN (?, ?)",
+                new String[] {Status.PENDING.name(), Status.RETRYING.name()})) {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : null;
+        }
+    }
+
+    /**
+     * Puts items that were being sent when the app was killed back in the queue, runs on the
+     * outbox thread
+     */
+    private void recoverInterrupted() {
+        ContentValues pending = new ContentValues();
+        pending.put("status", Status.PENDING.name());
+        int recovered = getWritableDatabase().update(TABLE_ITEMS, pending, "status = ?",
+                new String[] {Status.SENDING.name()});
+        if (recovered > 0) {
+            Log.d(TAG, "Recovered " + recovered + " interrupted writes");
+        }
+    }
+
+    /**
+     * Writes bytes to a file
+     */
+    private static void write(byte[] data, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try (OutputStream out = new FileOutputStream(target)) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Copies a stream to a file
+     */
+    private static void copy(InputStream in, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try (OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Converts document fields to JSON, nested maps and lists included
+     */
+    static JSONObject toJson(Map<String, Object> fields) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            json.put(field.getKey(), toJsonValue(field.getValue()));
+        }
+        return json;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object toJsonValue(Object value) throws JSONException {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof Map) {
+            return toJson((Map<String, Object>) value);
+        }
+        if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object element : (List<Object>) value) {
+                array.put(toJsonValue(element));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    /**
+     * Converts JSON back to document fields
+     */
+    static Map<String, Object> toMap(JSONObject json) throws JSONException {
+        Map<String, Object> fields = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            fields.put(key, fromJsonValue(json.get(key)));
+        }
+        return fields;
+    }
+
+    private static Object fromJsonValue(Object value) throws JSONException {
+        if (value == JSONObject.NULL) {
+            return null;
+        }
+        if (value instanceof JSONObject) {
+            return toMap((JSONObject) value);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            ArrayList<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(fromJsonValue(array.get(i)));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    /**
+     * A stored outbox row
+     */
+    private static class Item {
+        private final long id;
+        private final Kind kind;
+        private final String target;
+        private final String payload;
+        private final String file;
+        private final int attempts;
+
+        Item(Cursor cursor) {
+            id = cursor.getLong(cursor.getColumnIndexOrThrow("id"));
+            kind = Kind.valueOf(cursor.getString(cursor.getColumnIndexOrThrow("kind")));
+            target = cursor.getString(cursor.getColumnIndexOrThrow("target"));
+            payload = cursor.getString(cursor.getColumnIndexOrThrow("payload"));
+            file = cursor.getString(cursor.getColumnIndexOrThrow("file"));
+            attempts = cursor.getInt(cursor.getColumnIndexOrThrow("attempts"));
+        }
+
+        private Item(Item item, String payload) {
+            id = item.id;
+            kind = item.kind;
+            target = item.target;
+            this.payload = payload;
+            file = item.file;
+            attempts = item.attempts;
+        }
+
+        /**
+         * Copies the item with another payload
+         */
+        Item withPayload(String payload) {
+            return new Item(this, payload);
+        }
+    }
+
+    /**
+     * Writes the file of an item while it is being queued
+     */
+    private interface ItemFileWriter {
+        void write(File file) throws IOException;
+    }
+
+    /**
+     * Callback for the status of one item
+     */
+    public interface StatusCallback {
+        void onStatus(String target, Status status);
+    }
+
+    /**
+     * Listener for status changes of any item
+     */
+    public interface StatusListener {
+        void onStatusChanged(String target, Status status);
+    }
+}
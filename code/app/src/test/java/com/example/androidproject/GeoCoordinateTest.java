@@ -0,0 +1,54 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs tests for the coordinate value type and its distance
+ */
+public class GeoCoordinateTest {
+    private static final GeoCoordinate EDMONTON = new GeoCoordinate(53.5461, -113.4938);
+    private static final GeoCoordinate CALGARY = new GeoCoordinate(51.0447, -114.0719);
+
+    /**
+     * Tests distances against known great circle distances
+     */
+    @Test
+    public void testDistance() {
+        assertEquals(0, EDMONTON.distanceTo(EDMONTON), 1e-6);
+        // About 280 km between the two city centres
+        assertEquals(280_000, EDMONTON.distanceTo(CALGARY), 2_000);
+        assertEquals(EDMONTON.distanceTo(CALGARY), CALGARY.distanceTo(EDMONTON), 1e-6);
+
+        // One degree of longitude on the equator
+        GeoCoordinate origin = new GeoCoordinate(0, 0);
+        assertEquals(111_195, origin.distanceTo(new GeoCoordinate(0, 1)), 1);
+    }
+
+    /**
+     * Tests that a point just inside 5 km is kept and one just outside is not
+     */
+    @Test
+    public void testRadius() {
+        // 0.001 degrees of latitude is about 111 m
+        GeoCoordinate inside = new GeoCoordinate(EDMONTON.getLatitude() + 0.044, EDMONTON.getLongitude());
+        GeoCoordinate outside = new GeoCoordinate(EDMONTON.getLatitude() + 0.046, EDMONTON.getLongitude());
+        assertTrue(EDMONTON.distanceTo(inside) <= 5_000);
+        assertFalse(EDMONTON.distanceTo(outside) <= 5_000);
+    }
+
+    /**
+     * Tests equality and range checks
+     */
+    @Test
+    public void testValueSemantics() {
+        assertEquals(new GeoCoordinate(1.5, 2.5), new GeoCoordinate(1.5, 2.5));
+        assertEquals(new GeoCoordinate(1.5, 2.5).hashCode(), new GeoCoordinate(1.5, 2.5).hashCode());
+        assertTrue(CALGARY.isValid());
+        assertFalse(new GeoCoordinate(91, 0).isValid());
+        assertFalse(new GeoCoordinate(0, -181).isValid());
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs tests for geohashes and the cells that cover a viewport
+ */
+public class GeoHashTest {
+
+    /**
+     * Tests geohashes against known values
+     */
+    @Test
+    public void testEncode() {
+        assertEquals("ezs42", GeoHash.encode(42.605, -5.603, 5));
+        assertEquals("c3x2", GeoHash.encode(53.5461, -113.4938, 4));
+        assertEquals("s0000", GeoHash.encode(0, 0, 5));
+        assertEquals(GeoHash.STORED_PRECISION, GeoHash.forLocation(new GeoCoordinate(53.5461, -113.4938)).length());
+        assertNull(GeoHash.forLocation(null));
+        assertNull(GeoHash.forLocation(new GeoCoordinate(91, 0)));
+    }
+
+    /**
+     * Tests that every position in a viewport is in one of the cells covering it
+     */
+    @Test
+    public void testCover() {
+        Random random = new Random(7);
+        double[][] viewports = {
+                // A city, a province, a continent and one crossing the antimeridian
+                {53.45, -113.7, 53.65, -113.3},
+                {49, -120, 60, -110},
+                {10, -130, 70, -50},
+                {50, 170, 60, -170},
+        };
+        for (double[] viewport : viewports) {
+            double south = viewport[0];
+            double west = viewport[1];
+            double north = viewport[2];
+            double east = viewport[3];
+            List<String> cells = GeoHash.cover(south, west, north, east);
+            assertTrue(cells.size() <= 2 * GeoHash.MAX_CELLS);
+            double width = west <= east ? east - west : east - west + 360;
+            for (int i = 0; i < 1000; i++) {
+                double latitude = south + random.nextDouble() * (north - south);
+                double longitude = west + random.nextDouble() * width;
+                if (longitude > 180) {
+                    longitude -= 360;
+                }
+                String hash = GeoHash.encode(latitude, longitude, GeoHash.STORED_PRECISION);
+                boolean covered = false;
+                for (String cell : cells) {
+                    covered |= hash.startsWith(cell);
+                }
+                assertTrue(hash + " is not covered by " + cells, covered);
+            }
+        }
+    }
+
+    /**
+     * Tests that smaller viewports get finer cells
+     */
+    @Test
+    public void testPrecision() {
+        int city = GeoHash.precisionFor(53.45, -113.7, 53.65, -113.3);
+        int province = GeoHash.precisionFor(49, -120, 60, -110);
+        assertTrue(city > province);
+        assertEquals(0, GeoHash.precisionFor(-85, -180, 85, 180));
+        assertEquals("", GeoHash.cover(-85, -180, 85, 180).get(0));
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs tests for the sizes images are shrunk to and the variant loaders pick
+ */
+public class ImageProcessorTest {
+
+    /**
+     * Tests that large images keep their aspect ratio and small ones are not scaled up
+     */
+    @Test
+    public void testTargetSize() {
+        assertArrayEquals(new int[] {1080, 810}, ImageProcessor.targetSize(4000, 3000, 1080));
+        assertArrayEquals(new int[] {810, 1080}, ImageProcessor.targetSize(3000, 4000, 1080));
+        assertArrayEquals(new int[] {640, 480}, ImageProcessor.targetSize(640, 480, 1080));
+        // Very thin images keep at least one pixel
+        assertArrayEquals(new int[] {1080, 1}, ImageProcessor.targetSize(20000, 2, 1080));
+    }
+
+    /**
+     * Tests that each retry shrinks the image until the smallest edge allowed
+     */
+    @Test
+    public void testScaledSize() {
+        assertArrayEquals(new int[] {810, 608}, ImageProcessor.scaledSize(1080, 810));
+
+        int[] size = {1080, 810};
+        int steps = 0;
+        while (ImageProcessor.scaledSize(size[0], size[1]) != null) {
+            int[] next = ImageProcessor.scaledSize(size[0], size[1]);
+            assertTrue(Math.max(next[0], next[1]) < Math.max(size[0], size[1]));
+            size = next;
+            steps++;
+        }
+        assertTrue(steps < 10);
+        assertArrayEquals(new int[] {ImageProcessor.MIN_DIMENSION, 120}, size);
+        assertNull(ImageProcessor.scaledSize(ImageProcessor.MIN_DIMENSION, 120));
+    }
+
+    /**
+     * Tests that loaders pick the smallest variant that is not scaled up
+     */
+    @Test
+    public void testVariantForDimension() {
+        assertEquals(ImageVariant.THUMBNAIL, ImageVariant.forDimension(96));
+        assertEquals(ImageVariant.THUMBNAIL, ImageVariant.forDimension(240));
+        assertEquals(ImageVariant.MEDIUM, ImageVariant.forDimension(241));
+        assertEquals(ImageVariant.FULL, ImageVariant.forDimension(1080));
+        // Nothing is bigger than the full image
+        assertEquals(ImageVariant.FULL, ImageVariant.forDimension(1440));
+        assertEquals("images/thumb/abc", ImageVariant.THUMBNAIL.path("abc"));
+        assertEquals("images/abc", ImageVariant.FULL.path("abc"));
+    }
+}
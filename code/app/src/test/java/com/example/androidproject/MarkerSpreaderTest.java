@@ -0,0 +1,121 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Runs tests for spreading apart the markers of moods at the same spot
+ */
+public class MarkerSpreaderTest {
+    private static final GeoCoordinate EDMONTON = new GeoCoordinate(53.5461, -113.4938);
+    private static final GeoCoordinate CALGARY = new GeoCoordinate(51.0447, -114.0719);
+
+    /**
+     * Creates the locations of a few moods at Edmonton and one at Calgary
+     */
+    private static LinkedHashMap<String, GeoCoordinate> locations(int atEdmonton) {
+        LinkedHashMap<String, GeoCoordinate> locations = new LinkedHashMap<>();
+        for (int i = 0; i < atEdmonton; i++) {
+            locations.put("mood" + i, EDMONTON);
+        }
+        locations.put("calgary", CALGARY);
+        return locations;
+    }
+
+    /**
+     * Tests that a mood alone at its spot is shown where it happened
+     */
+    @Test
+    public void testAloneIsNotMoved() {
+        HashMap<String, GeoCoordinate> positions = new MarkerSpreader().layout(locations(1));
+        assertEquals(EDMONTON, positions.get("mood0"));
+        assertEquals(CALGARY, positions.get("calgary"));
+    }
+
+    /**
+     * Tests that moods at the same spot are spread apart, close to where they happened
+     */
+    @Test
+    public void testOverlappingAreSpread() {
+        HashMap<String, GeoCoordinate> positions = new MarkerSpreader().layout(locations(20));
+        for (int i = 0; i < 20; i++) {
+            GeoCoordinate a = positions.get("mood" + i);
+            assertTrue(EDMONTON.distanceTo(a) < 100);
+            for (int j = i + 1; j < 20; j++) {
+                // Slots on the spiral are at least a few meters apart
+                assertTrue(a.distanceTo(positions.get("mood" + j)) > 3);
+            }
+        }
+        assertEquals(CALGARY, positions.get("calgary"));
+    }
+
+    /**
+     * Tests that moods a metre apart are spread wherever they are, and moods further apart are not
+     */
+    @Test
+    public void testCloseMoodsAreGrouped() {
+        // Straddles where rounding to a grid of 0.0001 degrees would split them
+        LinkedHashMap<String, GeoCoordinate> close = new LinkedHashMap<>();
+        close.put("north", new GeoCoordinate(53.546154, -113.4938));
+        close.put("south", new GeoCoordinate(53.546146, -113.4938));
+        HashMap<String, GeoCoordinate> positions = new MarkerSpreader().layout(close);
+        assertTrue(positions.get("north").distanceTo(positions.get("south")) > 3);
+
+        // Across the antimeridian
+        LinkedHashMap<String, GeoCoordinate> dateLine = new LinkedHashMap<>();
+        dateLine.put("east", new GeoCoordinate(-16.5, 179.999995));
+        dateLine.put("west", new GeoCoordinate(-16.5, -179.999995));
+        positions = new MarkerSpreader().layout(dateLine);
+        assertTrue(positions.get("east").distanceTo(positions.get("west")) > 3);
+
+        // A chain of moods a few metres apart is one spot
+        LinkedHashMap<String, GeoCoordinate> chain = new LinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            chain.put("mood" + i, new GeoCoordinate(53.5461 + i * 0.00008, -113.4938));
+        }
+        int[] parents = MarkerSpreader.group(new ArrayList<>(chain.values()));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, MarkerSpreader.find(parents, i));
+        }
+
+        LinkedHashMap<String, GeoCoordinate> apart = new LinkedHashMap<>();
+        apart.put("a", EDMONTON);
+        apart.put("b", new GeoCoordinate(EDMONTON.getLatitude() + 0.0005, EDMONTON.getLongitude()));
+        positions = new MarkerSpreader().layout(apart);
+        assertEquals(EDMONTON, positions.get("a"));
+        assertEquals(apart.get("b"), positions.get("b"));
+    }
+
+    /**
+     * Tests that the layout is the same on every run and stays put across redraws
+     */
+    @Test
+    public void testStable() {
+        HashMap<String, GeoCoordinate> first = new MarkerSpreader().layout(locations(10));
+        HashMap<String, GeoCoordinate> second = new MarkerSpreader().layout(locations(10));
+        assertEquals(first, second);
+
+        MarkerSpreader spreader = new MarkerSpreader();
+        HashMap<String, GeoCoordinate> before = spreader.layout(locations(10));
+        assertEquals(before, spreader.layout(locations(10)));
+
+        // Filtering out a mood or adding one does not move the others
+        LinkedHashMap<String, GeoCoordinate> filtered = locations(10);
+        filtered.remove("mood3");
+        HashMap<String, GeoCoordinate> after = spreader.layout(filtered);
+        LinkedHashMap<String, GeoCoordinate> grown = locations(12);
+        HashMap<String, GeoCoordinate> more = spreader.layout(grown);
+        for (int i = 0; i < 10; i++) {
+            if (i != 3) {
+                assertEquals(before.get("mood" + i), after.get("mood" + i));
+            }
+            assertEquals(before.get("mood" + i), more.get("mood" + i));
+        }
+    }
+}
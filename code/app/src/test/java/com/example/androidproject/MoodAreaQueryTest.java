@@ -0,0 +1,33 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs tests for matching moods without a geohash against a viewport
+ */
+public class MoodAreaQueryTest {
+
+    /**
+     * Tests that the edges of a viewport are inside it and positions past them are not
+     */
+    @Test
+    public void testIsInside() {
+        assertTrue(MoodAreaQuery.isInside(new GeoCoordinate(53.5, -113.5), 53.4, -113.7, 53.6, -113.3));
+        assertTrue(MoodAreaQuery.isInside(new GeoCoordinate(53.4, -113.7), 53.4, -113.7, 53.6, -113.3));
+        assertFalse(MoodAreaQuery.isInside(new GeoCoordinate(53.7, -113.5), 53.4, -113.7, 53.6, -113.3));
+        assertFalse(MoodAreaQuery.isInside(new GeoCoordinate(53.5, -113.2), 53.4, -113.7, 53.6, -113.3));
+    }
+
+    /**
+     * Tests a viewport that crosses the antimeridian, where the east edge is less than the west
+     */
+    @Test
+    public void testIsInsideAcrossAntimeridian() {
+        assertTrue(MoodAreaQuery.isInside(new GeoCoordinate(0, 179), -10, 170, 10, -170));
+        assertTrue(MoodAreaQuery.isInside(new GeoCoordinate(0, -179), -10, 170, 10, -170));
+        assertFalse(MoodAreaQuery.isInside(new GeoCoordinate(0, 0), -10, 170, 10, -170));
+    }
+}
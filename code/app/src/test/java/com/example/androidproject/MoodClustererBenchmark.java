@@ -0,0 +1,65 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Measures building the clustering quadtree and clustering a viewport at 10k, 100k and 1M moods.
+ * Prints the timings and checks the results. Left out of the default test run because of the 1M
+ * moods, run it with ./gradlew testDebugUnitTest -Pbenchmarks.
+ */
+public class MoodClustererBenchmark {
+    // Clusterings timed per zoom after warming up
+    private static final int RUNS = 20;
+    private static final float[] ZOOMS = {4, 8, 12, 16};
+
+    private void benchmark(int count) {
+        List<MoodClusterer.Point> points = MoodClustererTest.randomPoints(count, count);
+
+        long buildStart = System.nanoTime();
+        MoodClusterer clusterer = new MoodClusterer(points);
+        double buildMillis = (System.nanoTime() - buildStart) / 1e6;
+        assertEquals(count, clusterer.size());
+        System.out.printf("%,d moods: built in %.1f ms%n", count, buildMillis);
+
+        for (float zoom : ZOOMS) {
+            // Roughly what a phone shows around Edmonton at this zoom
+            double span = 360 / Math.pow(2, zoom) * 2;
+            double south = 53.5 - span / 2;
+            double north = 53.5 + span / 2;
+            double west = -113.25 - span;
+            double east = -113.25 + span;
+            List<MoodClusterer.Cluster> clusters = clusterer.cluster(zoom, south, west, north, east);
+            for (int i = 0; i < RUNS; i++) {
+                clusters = clusterer.cluster(zoom, south, west, north, east);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                clusters = clusterer.cluster(zoom, south, west, north, east);
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / RUNS;
+            assertTrue(!clusters.isEmpty());
+            System.out.printf("%,d moods: zoom %.0f gives %,d clusters in %.3f ms%n",
+                    count, zoom, clusters.size(), millis);
+        }
+    }
+
+    @Test
+    public void benchmark10k() {
+        benchmark(10_000);
+    }
+
+    @Test
+    public void benchmark100k() {
+        benchmark(100_000);
+    }
+
+    @Test
+    public void benchmark1m() {
+        benchmark(1_000_000);
+    }
+}
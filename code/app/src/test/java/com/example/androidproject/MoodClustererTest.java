@@ -0,0 +1,167 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs tests for quadtree clustering of mood positions
+ */
+public class MoodClustererTest {
+
+    /**
+     * Creates points spread over a box around Edmonton
+     */
+    static List<MoodClusterer.Point> randomPoints(int count, long seed) {
+        Random random = new Random(seed);
+        MoodType[] types = MoodType.values();
+        ArrayList<MoodClusterer.Point> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new MoodClusterer.Point("mood" + i,
+                    53.0 + random.nextDouble(), -114.0 + random.nextDouble() * 1.5,
+                    types[random.nextInt(types.length)], null));
+        }
+        return points;
+    }
+
+    private static int total(List<MoodClusterer.Cluster> clusters) {
+        int total = 0;
+        for (MoodClusterer.Cluster cluster : clusters) {
+            int breakdown = 0;
+            for (int count : cluster.getBreakdown()) {
+                breakdown += count;
+            }
+            assertEquals(cluster.getCount(), breakdown);
+            total += cluster.getCount();
+        }
+        return total;
+    }
+
+    /**
+     * Tests that every point ends up in exactly one cluster at every zoom
+     */
+    @Test
+    public void testEveryPointClusteredOnce() {
+        MoodClusterer clusterer = new MoodClusterer(randomPoints(5_000, 1));
+        assertEquals(5_000, clusterer.size());
+        for (float zoom = 0; zoom <= 21; zoom += 1.5f) {
+            List<MoodClusterer.Cluster> clusters = clusterer.cluster(zoom, -85, -180, 85, 180);
+            assertEquals(5_000, total(clusters));
+            HashSet<String> keys = new HashSet<>();
+            for (MoodClusterer.Cluster cluster : clusters) {
+                assertTrue(keys.add(cluster.getKey()));
+            }
+        }
+        // The whole box is one cluster when zoomed out, and mostly single moods when zoomed in
+        assertEquals(1, clusterer.cluster(2, -85, -180, 85, 180).size());
+        assertTrue(clusterer.cluster(19, -85, -180, 85, 180).size() > 4_000);
+    }
+
+    /**
+     * Tests that the points of a cluster are the ones it counts, at every zoom
+     */
+    @Test
+    public void testPointsIn() {
+        List<MoodClusterer.Point> points = randomPoints(3_000, 3);
+        // Moods at the very same spot stay a cluster at any zoom
+        for (int i = 0; i < 40; i++) {
+            points.add(new MoodClusterer.Point("same" + i, 53.5461, -113.4938, MoodType.FEAR, null));
+        }
+        MoodClusterer clusterer = new MoodClusterer(points);
+        for (float zoom = 0; zoom <= 21; zoom += 1.5f) {
+            HashSet<String> seen = new HashSet<>();
+            for (MoodClusterer.Cluster cluster : clusterer.cluster(zoom, -85, -180, 85, 180)) {
+                List<MoodClusterer.Point> members = clusterer.pointsIn(cluster);
+                assertEquals(cluster.getCount(), members.size());
+                for (MoodClusterer.Point point : members) {
+                    assertTrue(seen.add(point.getId()));
+                }
+            }
+            assertEquals(points.size(), seen.size());
+        }
+        MoodClusterer.Cluster same = null;
+        for (MoodClusterer.Cluster cluster : clusterer.cluster(21, 53.54, -113.5, 53.55, -113.48)) {
+            if (cluster.getCount() == 40) {
+                same = cluster;
+            }
+        }
+        assertEquals(40, clusterer.pointsIn(same).size());
+    }
+
+    /**
+     * Tests that close points cluster, far ones do not, and single moods keep their id as key
+     */
+    @Test
+    public void testCloseAndFarPoints() {
+        ArrayList<MoodClusterer.Point> points = new ArrayList<>();
+        points.add(new MoodClusterer.Point("a", 53.5461, -113.4938, MoodType.HAPPINESS, "tag"));
+        points.add(new MoodClusterer.Point("b", 53.5462, -113.4939, MoodType.SADNESS, null));
+        points.add(new MoodClusterer.Point("c", 51.0447, -114.0719, MoodType.HAPPINESS, null));
+        MoodClusterer clusterer = new MoodClusterer(points);
+
+        List<MoodClusterer.Cluster> clusters = clusterer.cluster(8, -85, -180, 85, 180);
+        assertEquals(2, clusters.size());
+        for (MoodClusterer.Cluster cluster : clusters) {
+            if (cluster.getCount() == 2) {
+                assertNull(cluster.getPoint());
+                assertEquals(1, cluster.getBreakdown()[MoodType.HAPPINESS.ordinal()]);
+                assertEquals(1, cluster.getBreakdown()[MoodType.SADNESS.ordinal()]);
+                assertEquals(53.54615, cluster.getLatitude(), 1e-3);
+            } else {
+                assertEquals("c", cluster.getKey());
+                assertNotNull(cluster.getPoint());
+            }
+        }
+
+        // Zoomed in far enough the two Edmonton moods split, the first keeps its tag
+        List<MoodClusterer.Cluster> close = clusterer.cluster(21, 53.5, -113.6, 53.6, -113.4);
+        assertEquals(2, close.size());
+        for (MoodClusterer.Cluster cluster : close) {
+            if (cluster.getKey().equals("a")) {
+                assertEquals("tag", cluster.getPoint().getTag());
+            }
+        }
+    }
+
+    /**
+     * Tests that only clusters near the viewport are returned, across the antimeridian too
+     */
+    @Test
+    public void testViewport() {
+        ArrayList<MoodClusterer.Point> points = new ArrayList<>();
+        points.add(new MoodClusterer.Point("edmonton", 53.5461, -113.4938, MoodType.FEAR, null));
+        points.add(new MoodClusterer.Point("fiji", -17.7, 178.0, MoodType.FEAR, null));
+        points.add(new MoodClusterer.Point("samoa", -13.8, -172.0, MoodType.FEAR, null));
+        MoodClusterer clusterer = new MoodClusterer(points);
+
+        List<MoodClusterer.Cluster> alberta = clusterer.cluster(10, 53, -114, 54, -113);
+        assertEquals(1, alberta.size());
+        assertEquals("edmonton", alberta.get(0).getKey());
+
+        List<MoodClusterer.Cluster> pacific = clusterer.cluster(10, -20, 170, -10, -170);
+        assertEquals(2, total(pacific));
+    }
+
+    /**
+     * Tests that keys stay the same when the camera pans at one zoom
+     */
+    @Test
+    public void testStableKeys() {
+        MoodClusterer clusterer = new MoodClusterer(randomPoints(2_000, 2));
+        HashSet<String> wide = new HashSet<>();
+        for (MoodClusterer.Cluster cluster : clusterer.cluster(11, 53, -114, 54, -112.5)) {
+            wide.add(cluster.getKey());
+        }
+        for (MoodClusterer.Cluster cluster : clusterer.cluster(11, 53.2, -113.8, 53.6, -113.2)) {
+            assertTrue(wide.contains(cluster.getKey()));
+        }
+    }
+}
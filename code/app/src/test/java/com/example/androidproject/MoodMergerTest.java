@@ -0,0 +1,60 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs tests for merging sorted mood lists
+ */
+public class MoodMergerTest {
+
+    /**
+     * Creates a mood at the given minute of a fixed day
+     */
+    private MoodState moodAt(int minute) {
+        MoodState mood = new MoodState("Happiness");
+        mood.setDayTime(LocalDateTime.of(2025, 3, 1, 0, 0).plusMinutes(minute));
+        return mood;
+    }
+
+    /**
+     * Tests that several newest first lists merge into one newest first list
+     */
+    @Test
+    public void testMergeOrder() {
+        List<MoodState> first = Arrays.asList(moodAt(50), moodAt(30), moodAt(10));
+        List<MoodState> second = Arrays.asList(moodAt(60), moodAt(20));
+        List<MoodState> third = Arrays.asList(moodAt(40));
+
+        ArrayList<MoodState> merged = new MoodMerger(Arrays.asList(first, second, third)).drain();
+
+        assertEquals(6, merged.size());
+        for (int i = 1; i < merged.size(); i++) {
+            assertFalse(merged.get(i).getDayTime().isAfter(merged.get(i - 1).getDayTime()));
+        }
+        assertEquals(first.get(0), merged.get(1));
+    }
+
+    /**
+     * Tests that taking the first few moods only returns the newest ones
+     */
+    @Test
+    public void testTake() {
+        List<MoodState> first = Arrays.asList(moodAt(5), moodAt(1));
+        List<MoodState> second = Arrays.asList(moodAt(4), moodAt(3));
+        MoodMerger merger = new MoodMerger(Arrays.asList(first, second, new ArrayList<>()));
+
+        ArrayList<MoodState> top = merger.take(3);
+        assertEquals(3, top.size());
+        assertEquals(first.get(0), top.get(0));
+        assertEquals(second.get(1), top.get(2));
+        assertEquals(1, merger.remaining());
+    }
+}
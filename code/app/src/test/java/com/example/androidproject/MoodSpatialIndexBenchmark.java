@@ -0,0 +1,73 @@
+package com.example.androidproject;
+
+import static com.example.androidproject.MoodSpatialIndexTest.EDMONTON;
+import static com.example.androidproject.MoodSpatialIndexTest.RADIUS_METERS;
+import static com.example.androidproject.MoodSpatialIndexTest.bruteForce;
+import static com.example.androidproject.MoodSpatialIndexTest.moods;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Measures radius queries of the grid index over 100k moods against checking every mood.
+ * Prints the timings and checks the results. Left out of the default test run, run it with
+ * ./gradlew testDebugUnitTest -Pbenchmarks.
+ */
+public class MoodSpatialIndexBenchmark {
+    private static final int MOOD_COUNT = 100_000;
+
+    /**
+     * Measures radius queries over 100k moods against checking every mood, and the distance filter
+     * with the index build it needs for a new feed and without it for a copy of the same feed
+     */
+    @Test
+    public void benchmarkQueries() {
+        ArrayList<MoodState> moods = moods(MOOD_COUNT, EDMONTON, 2, 5);
+
+        long buildStart = System.nanoTime();
+        MoodSpatialIndex index = new MoodSpatialIndex(moods);
+        long buildNanos = System.nanoTime() - buildStart;
+
+        // Warm up so the timed runs are not measuring class loading and the interpreter
+        for (int i = 0; i < 5; i++) {
+            index.withinRadius(EDMONTON, RADIUS_METERS);
+            bruteForce(moods, EDMONTON, RADIUS_METERS);
+        }
+
+        int runs = 20;
+        long indexStart = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < runs; i++) {
+            found = index.withinRadius(EDMONTON, RADIUS_METERS).size();
+        }
+        long indexNanos = (System.nanoTime() - indexStart) / runs;
+
+        long scanStart = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            bruteForce(moods, EDMONTON, RADIUS_METERS);
+        }
+        long scanNanos = (System.nanoTime() - scanStart) / runs;
+
+        ArrayList<String> following = new ArrayList<>();
+        for (int i = 0; i < MOOD_COUNT / 10; i++) {
+            following.add("user" + i);
+        }
+        Filter.DistanceIndex distanceIndex = new Filter.DistanceIndex();
+        long newFeedStart = System.nanoTime();
+        Filter.filterBy5kDistance(moods, EDMONTON, following, 5, "user0", distanceIndex);
+        long newFeedNanos = System.nanoTime() - newFeedStart;
+        long sameFeedStart = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            Filter.filterBy5kDistance(new ArrayList<>(moods), EDMONTON, following, 5, "user0", distanceIndex);
+        }
+        long sameFeedNanos = (System.nanoTime() - sameFeedStart) / runs;
+
+        System.out.printf("%,d moods: index built in %.1f ms, %d within 5 km in %.3f ms, full scan %.3f ms%n",
+                MOOD_COUNT, buildNanos / 1e6, found, indexNanos / 1e6, scanNanos / 1e6);
+        System.out.printf("Distance filter: %.1f ms for a new feed with the index build, %.3f ms for the same feed%n",
+                newFeedNanos / 1e6, sameFeedNanos / 1e6);
+        assertEquals(bruteForce(moods, EDMONTON, RADIUS_METERS).size(), found);
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Runs tests for the grid index of moods
+ */
+public class MoodSpatialIndexTest {
+    static final GeoCoordinate EDMONTON = new GeoCoordinate(53.5461, -113.4938);
+    private static final LocalDateTime START = LocalDateTime.of(2025, 3, 1, 8, 30);
+    static final double RADIUS_METERS = 5_000;
+
+    /**
+     * Creates moods spread over a box around a point, newest first like the feed
+     */
+    static ArrayList<MoodState> moods(int count, GeoCoordinate around, double spread, long seed) {
+        Random random = new Random(seed);
+        ArrayList<MoodState> moods = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            MoodState mood = new MoodState("Happiness", START.minusMinutes(i));
+            mood.setId("mood" + i);
+            mood.setUser("user" + random.nextInt(count / 10));
+            double longitude = around.getLongitude() + (random.nextDouble() - 0.5) * spread;
+            // Wraps moods past the antimeridian back onto the globe
+            longitude = longitude > 180 ? longitude - 360 : longitude < -180 ? longitude + 360 : longitude;
+            mood.setLocation(new GeoCoordinate(around.getLatitude() + (random.nextDouble() - 0.5) * spread, longitude));
+            moods.add(mood);
+        }
+        return moods;
+    }
+
+    /**
+     * Finds the moods in a circle by checking the distance to every mood
+     */
+    static HashSet<String> bruteForce(ArrayList<MoodState> moods, GeoCoordinate center, double radiusMeters) {
+        HashSet<String> found = new HashSet<>();
+        for (MoodState mood : moods) {
+            if (center.distanceTo(mood.getLocation()) <= radiusMeters) {
+                found.add(mood.getId());
+            }
+        }
+        return found;
+    }
+
+    private static HashSet<String> ids(ArrayList<MoodState> moods) {
+        HashSet<String> ids = new HashSet<>();
+        for (MoodState mood : moods) {
+            ids.add(mood.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Tests that radius queries find the same moods as checking every mood
+     */
+    @Test
+    public void testMatchesBruteForce() {
+        ArrayList<MoodState> moods = moods(20_000, EDMONTON, 0.5, 1);
+        MoodSpatialIndex index = new MoodSpatialIndex(moods);
+        assertEquals(moods.size(), index.size());
+        for (double radius : new double[]{100, 1_000, RADIUS_METERS, 20_000}) {
+            HashSet<String> expected = bruteForce(moods, EDMONTON, radius);
+            assertEquals(expected, ids(index.withinRadius(EDMONTON, radius)));
+        }
+    }
+
+    /**
+     * Tests circles that cross the antimeridian or reach a pole
+     */
+    @Test
+    public void testEdgesOfTheGlobe() {
+        GeoCoordinate dateLine = new GeoCoordinate(-16.5, 179.99);
+        ArrayList<MoodState> aroundDateLine = moods(5_000, dateLine, 0.3, 2);
+        MoodSpatialIndex index = new MoodSpatialIndex(aroundDateLine);
+        assertEquals(bruteForce(aroundDateLine, dateLine, RADIUS_METERS), ids(index.withinRadius(dateLine, RADIUS_METERS)));
+
+        GeoCoordinate pole = new GeoCoordinate(89.98, 0);
+        ArrayList<MoodState> aroundPole = new ArrayList<>();
+        for (MoodState mood : moods(5_000, pole, 0.03, 3)) {
+            if (mood.getLocation().isValid()) {
+                aroundPole.add(mood);
+            }
+        }
+        index = new MoodSpatialIndex(aroundPole);
+        assertEquals(bruteForce(aroundPole, pole, RADIUS_METERS), ids(index.withinRadius(pole, RADIUS_METERS)));
+    }
+
+    /**
+     * Tests that only the newest mood of each user is kept
+     */
+    @Test
+    public void testLatestPerUser() {
+        ArrayList<MoodState> moods = moods(1_000, EDMONTON, 0.1, 4);
+        HashMap<String, MoodState> latest = MoodSpatialIndex.latestPerUser(moods);
+        for (MoodState mood : moods) {
+            MoodState kept = latest.get(mood.getUser());
+            assertTrue(kept.getTimestamp() >= mood.getTimestamp());
+        }
+        // The list is newest first, so the first mood of each user is the one kept
+        HashSet<String> seen = new HashSet<>();
+        for (MoodState mood : moods) {
+            if (seen.add(mood.getUser())) {
+                assertEquals(mood, latest.get(mood.getUser()));
+            }
+        }
+    }
+
+    /**
+     * Tests that the distance filter keeps the newest followed mood per user and reuses its index
+     * for copies of the same moods
+     */
+    @Test
+    public void testDistanceFilterReusesIndex() {
+        ArrayList<MoodState> moods = moods(5_000, EDMONTON, 0.3, 6);
+        ArrayList<String> following = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            following.add("user" + i);
+        }
+        ArrayList<MoodState> nearby = new ArrayList<>();
+        for (MoodState mood : moods) {
+            if (following.contains(mood.getUser()) && !mood.getUser().equals("user0")
+                    && EDMONTON.distanceTo(mood.getLocation()) <= RADIUS_METERS) {
+                nearby.add(mood);
+            }
+        }
+        HashSet<MoodState> expected = new HashSet<>(MoodSpatialIndex.latestPerUser(nearby).values());
+
+        Filter.DistanceIndex distanceIndex = new Filter.DistanceIndex();
+        ArrayList<MoodState> filtered = Filter.filterBy5kDistance(moods, EDMONTON, following, 5, "user0", distanceIndex);
+        assertEquals(expected, new HashSet<>(filtered));
+        for (int i = 1; i < filtered.size(); i++) {
+            assertTrue(filtered.get(i - 1).getTimestamp() >= filtered.get(i).getTimestamp());
+        }
+
+        MoodSpatialIndex index = distanceIndex.indexFor(moods);
+        assertTrue(index == distanceIndex.indexFor(new ArrayList<>(moods)));
+        ArrayList<MoodState> changed = new ArrayList<>(moods);
+        changed.remove(0);
+        assertTrue(index != distanceIndex.indexFor(changed));
+    }
+
+    /**
+     * Tests that the distance filter sees a mood that was moved in place
+     */
+    @Test
+    public void testDistanceFilterSeesMovedMood() {
+        ArrayList<MoodState> moods = moods(1_000, EDMONTON, 0.3, 7);
+        ArrayList<String> following = new ArrayList<>();
+        following.add(moods.get(0).getUser());
+        Filter.DistanceIndex distanceIndex = new Filter.DistanceIndex();
+        Filter.filterBy5kDistance(moods, EDMONTON, following, 5, "user-none", distanceIndex);
+
+        // Moving the newest mood right on top of the user makes it the one found for its author
+        moods.get(0).setLocation(EDMONTON);
+        ArrayList<MoodState> filtered = Filter.filterBy5kDistance(moods, EDMONTON, following, 5, "user-none", distanceIndex);
+        assertEquals(1, filtered.size());
+        assertEquals(moods.get(0), filtered.get(0));
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Measures how many mood documents per second are decoded by the codec and by the decoder the
+ * feed used before it. Prints the rates and checks both decode the same moods. Left out of the
+ * default test run, run it with ./gradlew testDebugUnitTest -Pbenchmarks.
+ */
+public class MoodStateCodecBenchmark {
+    private static final int DOCUMENT_COUNT = 20_000;
+    // Passes over every document before timing
+    private static final int WARM_UP_RUNS = 3;
+
+    private interface Decoder {
+        MoodState decode(String id, Map<String, Object> fields);
+    }
+
+    /**
+     * Decodes a document the way FeedManager.documentToMoodState did before the codec, reading
+     * the dayTime map field by field. The image is kept as text because Uri.parse does not run
+     * off a device, and the synthetic documents have no location.
+     */
+    private static MoodState decodeOld(String id, Map<String, Object> fields) {
+        MoodState moodState = new MoodState((String) fields.get("mood"));
+        moodState.setUser((String) fields.get("user"));
+        moodState.setId(id);
+        moodState.setReason((String) fields.get("reason"));
+        moodState.setSituation((String) fields.get("situation"));
+        moodState.setVisibility((Boolean) fields.get("visibility"));
+
+        Map<String, Object> dayTimeMap = (Map<String, Object>) fields.get("dayTime");
+        if (dayTimeMap != null) {
+            int year = ((Long) dayTimeMap.get("year")).intValue();
+            int monthValue = ((Long) dayTimeMap.get("monthValue")).intValue();
+            int dayOfMonth = ((Long) dayTimeMap.get("dayOfMonth")).intValue();
+            int hour = ((Long) dayTimeMap.get("hour")).intValue();
+            int minute = ((Long) dayTimeMap.get("minute")).intValue();
+            int second = ((Long) dayTimeMap.get("second")).intValue();
+            int nano = ((Long) dayTimeMap.get("nano")).intValue();
+            moodState.setDayTime(LocalDateTime.of(year, monthValue, dayOfMonth, hour, minute, second, nano));
+        }
+
+        if (fields.get("image") != null) {
+            moodState.setImagePath((String) fields.get("image"));
+        }
+        return moodState;
+    }
+
+    /**
+     * Decodes every document and checks they come out in order
+     * @return
+     *      the time it took in nanoseconds
+     */
+    private long decodeAll(Decoder decoder, ArrayList<Map<String, Object>> documents) {
+        long start = System.nanoTime();
+        MoodState previous = null;
+        for (int i = 0; i < documents.size(); i++) {
+            MoodState mood = decoder.decode("mood" + i, documents.get(i));
+            if (previous != null) {
+                assertTrue(mood.getDayTime().isAfter(previous.getDayTime()));
+            }
+            previous = mood;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long perSecond(long nanos) {
+        return DOCUMENT_COUNT * 1_000_000_000L / Math.max(1, nanos);
+    }
+
+    @Test
+    public void benchmarkDecode() {
+        ArrayList<Map<String, Object>> timestampDocuments = new ArrayList<>(DOCUMENT_COUNT);
+        ArrayList<Map<String, Object>> mapDocuments = new ArrayList<>(DOCUMENT_COUNT);
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            timestampDocuments.add(MoodStateCodecTest.document(i, true));
+            mapDocuments.add(MoodStateCodecTest.document(i, false));
+        }
+
+        Decoder codec = (id, fields) -> MoodStateCodec.decode(id, fields::get);
+        Decoder old = MoodStateCodecBenchmark::decodeOld;
+
+        // Both decoders have to agree before their speeds are worth comparing
+        for (int i = 0; i < DOCUMENT_COUNT; i += 997) {
+            MoodState expected = old.decode("mood" + i, mapDocuments.get(i));
+            assertEquals(expected.getDayTime(), codec.decode("mood" + i, timestampDocuments.get(i)).getDayTime());
+            assertEquals(expected.getDayTime(), codec.decode("mood" + i, mapDocuments.get(i)).getDayTime());
+            assertEquals(expected.getImagePath(), codec.decode("mood" + i, mapDocuments.get(i)).getImagePath());
+        }
+
+        // Warm up so the timed runs are not measuring class loading and the interpreter
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            decodeAll(old, mapDocuments);
+            decodeAll(codec, timestampDocuments);
+            decodeAll(codec, mapDocuments);
+        }
+
+        long oldNanos = decodeAll(old, mapDocuments);
+        long timestampNanos = decodeAll(codec, timestampDocuments);
+        long mapNanos = decodeAll(codec, mapDocuments);
+
+        System.out.println("Decoded " + DOCUMENT_COUNT + " moods: old decoder " + perSecond(oldNanos)
+                + "/s, codec timestamp " + perSecond(timestampNanos)
+                + "/s, codec dayTime map " + perSecond(mapNanos) + "/s");
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs tests for decoding mood documents
+ */
+public class MoodStateCodecTest {
+    private static final String[] MOODS = {
+            "Anger", "Confusion", "Disgust", "Fear", "Happiness", "Sadness", "Shame", "Surprise"};
+    private static final LocalDateTime START = LocalDateTime.of(2025, 3, 1, 8, 30);
+
+    /**
+     * Creates the fields of a synthetic mood document the way Firestore returns them
+     */
+    static Map<String, Object> document(int i, boolean withTimestamp) {
+        LocalDateTime dayTime = START.plusMinutes(i);
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("mood", MOODS[i % MOODS.length]);
+        fields.put("user", "user" + (i % 50));
+        fields.put("reason", "reason " + i);
+        fields.put("situation", "Alone");
+        fields.put("visibility", Boolean.TRUE);
+        fields.put("image", "images/" + i);
+        if (withTimestamp) {
+            // Stored the way schema version 2 writes it, by an author in UTC
+            fields.put("timestamp", dayTime.toInstant(ZoneOffset.UTC).toEpochMilli());
+            fields.put("zoneOffset", 0L);
+            fields.put("schemaVersion", 2L);
+        }
+        // Firestore hands back every number in the dayTime map as a Long
+        Map<String, Object> dayTimeMap = new HashMap<>();
+        dayTimeMap.put("year", (long) dayTime.getYear());
+        dayTimeMap.put("monthValue", (long) dayTime.getMonthValue());
+        dayTimeMap.put("dayOfMonth", (long) dayTime.getDayOfMonth());
+        dayTimeMap.put("hour", (long) dayTime.getHour());
+        dayTimeMap.put("minute", (long) dayTime.getMinute());
+        dayTimeMap.put("second", (long) dayTime.getSecond());
+        dayTimeMap.put("nano", (long) dayTime.getNano());
+        fields.put("dayTime", dayTimeMap);
+        return fields;
+    }
+
+    /**
+     * Tests that the timestamp and the older dayTime map decode to the same mood
+     */
+    @Test
+    public void testDecodeFields() {
+        Map<String, Object> withTimestamp = document(7, true);
+        Map<String, Object> withDayTimeMap = document(7, false);
+
+        MoodState fromTimestamp = MoodStateCodec.decode("mood7", withTimestamp::get);
+        MoodState fromMap = MoodStateCodec.decode("mood7", withDayTimeMap::get);
+
+        assertEquals("mood7", fromTimestamp.getId());
+        assertEquals("user7", fromTimestamp.getUser());
+        assertEquals(MOODS[7], fromTimestamp.getMood());
+        assertEquals("reason 7", fromTimestamp.getReason());
+        assertEquals("Alone", fromTimestamp.getSituation());
+        assertEquals(Boolean.TRUE, fromTimestamp.getVisibility());
+        assertNull(fromTimestamp.getLocation());
+        assertEquals(START.plusMinutes(7), fromTimestamp.getDayTime());
+        assertEquals(fromTimestamp.getDayTime(), fromMap.getDayTime());
+        // The stored timestamp is kept, not worked out again from the day and time
+        assertEquals(withTimestamp.get("timestamp"), fromTimestamp.getTimestamp());
+    }
+
+    /**
+     * Tests that the timestamp follows a changed day and time
+     */
+    @Test
+    public void testTimestampFollowsDayTime() {
+        MoodState mood = MoodStateCodec.decode("mood2", document(2, true)::get);
+        mood.setDayTime(START);
+        assertEquals(START.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), mood.getTimestamp());
+    }
+
+    /**
+     * Tests that an encoded mood decodes to the same time, in the zone of its author
+     */
+    @Test
+    public void testEncodeRoundTrip() {
+        MoodState mood = new MoodState("Fear", START);
+        mood.setId("mood1");
+        mood.setUser("user1");
+        mood.setVisibility(Boolean.FALSE);
+
+        Map<String, Object> fields = MoodStateCodec.encode(mood);
+        assertEquals(MoodStateCodec.SCHEMA_VERSION, fields.get("schemaVersion"));
+        assertEquals(mood.getTimestamp(), fields.get("timestamp"));
+        assertNull(fields.get("dayTime"));
+
+        MoodState decoded = MoodStateCodec.decode("mood1", fields::get);
+        assertEquals(START, decoded.getDayTime());
+        assertEquals(mood.getTimestamp(), decoded.getTimestamp());
+
+        // An author two hours ahead of the same instant sees a later local time
+        ZoneOffset ahead = ZoneOffset.ofTotalSeconds(mood.getZoneOffset().getTotalSeconds() + 7200);
+        fields.put("zoneOffset", ahead.getTotalSeconds());
+        MoodState shifted = MoodStateCodec.decode("mood1", fields::get);
+        assertEquals(START.plusHours(2), shifted.getDayTime());
+        assertEquals(mood.getTimestamp(), shifted.getTimestamp());
+    }
+
+    /**
+     * Tests that the dayTime of a document can still be read when its timestamp is broken
+     */
+    @Test
+    public void testLegacyDayTimeFallback() {
+        Map<String, Object> fields = document(9, true);
+        // Further from UTC than any zone can be
+        fields.put("zoneOffset", 999_999L);
+        try {
+            MoodStateCodec.readDayTime(fields::get);
+            fail("An offset past 18 hours should not be read");
+        } catch (DateTimeException expected) {
+            // The activity falls back to the dayTime
+        }
+        assertEquals(START.plusMinutes(9), MoodStateCodec.readLegacyDayTime(fields::get));
+        assertNull(MoodStateCodec.readLegacyDayTime(new HashMap<String, Object>()::get));
+    }
+
+    /**
+     * Tests that the feed inbox copy of a mood keeps its image
+     */
+    @Test
+    public void testInboxEntryKeepsImage() {
+        MoodState mood = MoodStateCodec.decode("mood5", document(5, true)::get);
+        Map<String, Object> entry = FeedInbox.toEntry(mood);
+        assertEquals("images/5", entry.get("image"));
+        assertEquals("images/5", MoodStateCodec.decode("mood5", entry::get).getImagePath());
+
+        mood.setImagePath(null);
+        assertNull(FeedInbox.toEntry(mood).get("image"));
+    }
+
+    /**
+     * Tests that a version 1 document is upgraded to the same instant
+     */
+    @Test
+    public void testUpgrade() {
+        Map<String, Object> legacy = document(3, false);
+        Map<String, Object> update = MoodSchemaMigrator.upgrade(legacy::get);
+        assertEquals(START.plusMinutes(3).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                update.get("timestamp"));
+
+        legacy.putAll(update);
+        assertNull(MoodSchemaMigrator.upgrade(legacy::get));
+
+        // A version 1 document without a time still gets the geohash of its location
+        Map<String, Object> untimed = document(4, false);
+        untimed.remove("dayTime");
+        GeoCoordinate location = new GeoCoordinate(53.5461, -113.4938);
+        untimed.put("location", location.toMap());
+        update = MoodSchemaMigrator.upgrade(untimed::get);
+        assertEquals(GeoHash.forLocation(location), update.get("geohash"));
+        assertNull(update.get("timestamp"));
+    }
+}
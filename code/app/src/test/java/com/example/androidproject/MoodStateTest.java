@@ -115,6 +115,10 @@ public class MoodStateTest {
         moodState.setReason(newReason);
         assertEquals(moodState.getReason(),"Dropped a large pan");
 
+        GeoCoordinate newLocation = new GeoCoordinate(53.5232, -113.5263);
+        moodState.setLocation(newLocation);
+        assertEquals(moodState.getLocation(),new GeoCoordinate(53.5232, -113.5263));
+
     }
 
 }
@@ -0,0 +1,44 @@
+package com.example.androidproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Runs tests for reading the stored download URLs of the storage URL cache
+ */
+public class StorageUrlCacheTest {
+    private static final long NOW = 1_750_000_000_000L;
+    private static final String URL = "https://firebasestorage.googleapis.com/v0/b/app/o/images%2Fabc?alt=media&token=t";
+
+    /**
+     * Tests that a stored URL is read back until it is too old
+     */
+    @Test
+    public void testReadUrl() {
+        assertEquals(URL, StorageUrlCache.readUrl(NOW + "|" + URL, NOW));
+        assertEquals(URL, StorageUrlCache.readUrl(NOW + "|" + URL, NOW + StorageUrlCache.MAX_AGE_MILLIS));
+        assertNull(StorageUrlCache.readUrl(NOW + "|" + URL, NOW + StorageUrlCache.MAX_AGE_MILLIS + 1));
+    }
+
+    /**
+     * Tests that only the first separator splits the time from the URL
+     */
+    @Test
+    public void testUrlWithSeparator() {
+        assertEquals(URL + "|more", StorageUrlCache.readUrl(NOW + "|" + URL + "|more", NOW));
+    }
+
+    /**
+     * Tests that missing and broken values are not read as URLs
+     */
+    @Test
+    public void testBrokenValues() {
+        assertNull(StorageUrlCache.readUrl(null, NOW));
+        assertNull(StorageUrlCache.readUrl(URL, NOW));
+        assertNull(StorageUrlCache.readUrl("|" + URL, NOW));
+        // A time that is not a number counts as saved long ago
+        assertNull(StorageUrlCache.readUrl("soon|" + URL, NOW));
+    }
+}